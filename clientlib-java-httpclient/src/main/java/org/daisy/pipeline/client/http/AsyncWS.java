@@ -0,0 +1,270 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.daisy.pipeline.client.Pipeline2Exception;
+import org.daisy.pipeline.client.Pipeline2Logger;
+import org.daisy.pipeline.client.models.*;
+
+/**
+ * Asynchronous methods for communicating with the Pipeline 2 API.
+ * 
+ * The endpoint, credentials and HTTP transport are taken from a {@link WS} instance.
+ * With a {@link JavaHttpTransport} no thread is blocked while waiting for the engine,
+ * so a small executor is enough to keep a large number of requests in flight. Other
+ * transports fall back to running the blocking requests on the common fork/join pool.
+ * 
+ * Responses are parsed on the executor given to the constructor, in the same way as by
+ * {@link WS}. With a {@link JavaHttpTransport}, a response is only parsed once its body
+ * has been received in full, so parsing does not wait for the engine either.
+ */
+public class AsyncWS implements AsyncWSInterface {
+
+	private final WS ws;
+	private final Executor executor;
+
+	/**
+	 * Create an AsyncWS instance that parses responses on the common fork/join pool.
+	 * 
+	 * @param ws the WS instance that provides the endpoint, credentials and transport
+	 */
+	public AsyncWS(WS ws) {
+		this(ws, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Create an AsyncWS instance.
+	 * 
+	 * @param ws the WS instance that provides the endpoint, credentials and transport
+	 * @param executor the executor used to parse the responses
+	 */
+	public AsyncWS(WS ws, Executor executor) {
+		this.ws = ws;
+		this.executor = executor;
+	}
+
+	/** Get the WS instance that provides the endpoint, credentials and transport. */
+	public WS getWS() {
+		return ws;
+	}
+
+	@Override
+	public CompletableFuture<Alive> alive() {
+		return parse(get("/alive", null, null, null), "/alive", response -> new Alive(response.asXml()));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> halt() {
+		return success(get("/admin/halt/"+ws.getShutDownKey(), null), "/admin/halt/"+ws.getShutDownKey());
+	}
+
+	@Override
+	public CompletableFuture<List<Property>> getProperties() {
+		return parse(get("/admin/properties", null), "/admin/properties", response -> Property.parsePropertiesXml(response.asXml()));
+	}
+
+	@Override
+	public CompletableFuture<Script> getScript(String scriptId) {
+		return parse(get("/scripts/"+scriptId, null), "/scripts/"+scriptId, response -> new Script(response.asXml()));
+	}
+
+	@Override
+	public CompletableFuture<List<Script>> getScripts() {
+		return parse(get("/scripts", null), "/scripts", response -> Script.parseScriptsXml(response.asXml()));
+	}
+
+	@Override
+	public CompletableFuture<DataType> getDataType(String dataTypeId) {
+		return parse(get("/datatypes/"+dataTypeId, null), "/datatypes/"+dataTypeId, response -> DataType.getDataType(response.asXml()));
+	}
+
+	@Override
+	public CompletableFuture<Map<String,String>> getDataTypes() {
+		return parse(get("/datatypes", null), "/datatypes", response -> DataType.getDataTypes(response.asXml()));
+	}
+
+	@Override
+	public CompletableFuture<List<Job>> getJobs() {
+		return parse(get("/jobs", null), "/jobs", response -> StaxParser.parseJobs(response.asStream(), ws.getParallelismThreshold()));
+	}
+
+	@Override
+	public CompletableFuture<Job> getJob(String jobId, long msgSeq) {
+		Map<String,String> parameters = null;
+		if (msgSeq > 0) {
+			parameters = new HashMap<String,String>();
+			parameters.put("msgSeq", msgSeq+"");
+		}
+		return parse(get("/jobs/"+jobId, parameters), "/jobs/"+jobId+"?msgSeq="+msgSeq, response -> StaxParser.parseJob(response.asStream()));
+	}
+
+	@Override
+	public CompletableFuture<Job> postJob(Job job) {
+		return postJob(job, null);
+	}
+
+	/**
+	 * Submit a job to the engine, and get notified of the upload progress
+	 * 
+	 * @see WS#postJob(Job, UploadProgressListener)
+	 * @param job the job to post
+	 * @param progressListener notified while the job is being uploaded, can be null
+	 * @return the posted job
+	 */
+	public CompletableFuture<Job> postJob(Job job, UploadProgressListener progressListener) {
+		HttpTransport transport = ws.getTransport();
+		CompletableFuture<WSResponse> request;
+		if (ws.isLocal()) {
+			request = transport.postXmlAsync(ws.getEndpoint(), "/jobs", ws.getUsername(), ws.getSecret(), job.toJobRequestXml(true));
+		} else {
+			request = transport.postMultipartAsync(ws.getEndpoint(), "/jobs", ws.getUsername(), ws.getSecret(), WS.jobRequestBody(job, progressListener));
+		}
+		return parse(request, "/jobs", response -> StaxParser.parseJob(response.asStream()));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteJob(String jobId) {
+		return success(delete("/jobs/"+jobId), "/jobs/"+jobId);
+	}
+
+	@Override
+	public CompletableFuture<JobSizes> getSizes() {
+		return parse(get("/admin/sizes", null), "/admin/sizes", response -> StaxParser.parseSizes(response.asStream()));
+	}
+
+	@Override
+	public CompletableFuture<List<Job>> getBatch(String batchId) {
+		return parse(get("/batch/"+batchId, null), "/batch/"+batchId, response -> StaxParser.parseJobs(response.asStream(), ws.getParallelismThreshold()));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteBatch(String batchId) {
+		return success(delete("/batch/"+batchId), "/batch/"+batchId);
+	}
+
+	@Override
+	public CompletableFuture<String> getJobLog(String jobId) {
+		return parse(get("/jobs/"+jobId+"/log", null), "/jobs/"+jobId+"/log", response -> response.asText());
+	}
+
+	/**
+	 * Get results from a job as an InputStream.
+	 * 
+	 * The future completes as soon as the engine starts sending the result. The result is
+	 * read from the connection while the stream is consumed, so the stream must be closed.
+	 */
+	@Override
+	public CompletableFuture<InputStream> getJobResultAsStream(String jobId, String href) {
+		if (href == null || "".equals(href))
+			href = "";
+		else
+			href = "/"+href.replace(" ", "%20");
+		String path = "/jobs/"+jobId+"/result"+href;
+		// the response is not closed; the connection is released when the caller closes the stream
+		return getAsStream(path).handleAsync((response, e) -> {
+			if (e != null) {
+				Pipeline2Logger.logger().error("failed to get "+path+" response as InputStream", unwrap(e));
+				return null;
+			}
+			try {
+				return response.asStream();
+
+			} catch (Pipeline2Exception ex) {
+				Pipeline2Logger.logger().error("failed to get "+path+" response as InputStream", ex);
+				return null;
+			}
+		}, executor);
+	}
+
+	@Override
+	public CompletableFuture<JobQueue> getQueue() {
+		return parse(get("/queue", null), "/queue", response -> StaxParser.parseQueue(response.asStream()));
+	}
+
+	@Override
+	public CompletableFuture<JobQueue> moveUpQueue(String jobId) {
+		return parse(get("/queue/up/"+jobId, null), "/queue/up/"+jobId, response -> StaxParser.parseQueue(response.asStream()));
+	}
+
+	@Override
+	public CompletableFuture<JobQueue> moveDownQueue(String jobId) {
+		return parse(get("/queue/down/"+jobId, null), "/queue/down/"+jobId, response -> StaxParser.parseQueue(response.asStream()));
+	}
+
+	@Override
+	public CompletableFuture<List<Client>> getClients() {
+		return parse(get("/admin/clients", null), "/admin/clients", response -> Client.parseClientsXml(response.asXml()));
+	}
+
+	@Override
+	public CompletableFuture<Client> getClient(String clientId) {
+		return parse(get("/admin/clients/"+clientId, null), "/admin/clients/"+clientId, response -> new Client(response.asXml()));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteClient(String clientId) {
+		return success(delete("/admin/clients/"+clientId), "/admin/clients/"+clientId);
+	}
+
+	/* Turns a successful response into a result */
+	interface Parser<T> {
+		public T parse(WSResponse response) throws Pipeline2Exception;
+	}
+
+	private CompletableFuture<WSResponse> get(String path, Map<String,String> parameters) {
+		return get(path, ws.getUsername(), ws.getSecret(), parameters);
+	}
+
+	private CompletableFuture<WSResponse> get(String path, String username, String secret, Map<String,String> parameters) {
+		return ws.getTransport().getAsync(ws.getEndpoint(), path, username, secret, parameters);
+	}
+
+	private CompletableFuture<WSResponse> getAsStream(String path) {
+		return ws.getTransport().getAsStreamAsync(ws.getEndpoint(), path, ws.getUsername(), ws.getSecret(), null);
+	}
+
+	private CompletableFuture<WSResponse> delete(String path) {
+		return ws.getTransport().deleteAsync(ws.getEndpoint(), path, ws.getUsername(), ws.getSecret(), null);
+	}
+
+	private <T> CompletableFuture<T> parse(CompletableFuture<WSResponse> request, String path, Parser<T> parser) {
+		return request.handleAsync((response, e) -> {
+			if (e != null) {
+				Pipeline2Logger.logger().error("failed to parse "+path+" response", unwrap(e));
+				return null;
+			}
+			try (WSResponse r = response) {
+				if (r.status >= 200 && r.status < 300) {
+					return parser.parse(r);
+
+				} else {
+					WS.error(r);
+					return null;
+				}
+
+			} catch (Pipeline2Exception ex) {
+				Pipeline2Logger.logger().error("failed to parse "+path+" response", ex);
+				return null;
+			}
+		}, executor);
+	}
+
+	private CompletableFuture<Boolean> success(CompletableFuture<WSResponse> request, String path) {
+		return parse(request, path, response -> true).thenApply(success -> success != null);
+	}
+
+	private static Exception unwrap(Throwable e) {
+		if (e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e instanceof Exception ? (Exception)e : new Exception(e);
+	}
+
+}
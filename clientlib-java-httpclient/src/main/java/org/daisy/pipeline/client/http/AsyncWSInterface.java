@@ -0,0 +1,209 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.daisy.pipeline.client.models.*;
+
+/**
+ * Asynchronous methods for communicating with the Pipeline 2 API.
+ * 
+ * Every method returns immediately with a future that is completed when the response
+ * has been received and parsed. As with {@link WSInterface}, errors are logged and
+ * the future completes with null (or false) rather than exceptionally.
+ * 
+ * @see WSInterface
+ * @see <a href="http://code.google.com/p/daisy-pipeline/wiki/WebServiceAPI">http://code.google.com/p/daisy-pipeline/wiki/WebServiceAPI</a>
+ */
+public interface AsyncWSInterface {
+
+	// ---------- Engine ----------
+
+	/**
+	 * Get information about the engine
+	 * 
+	 * @return information about the engine
+	 */
+	public CompletableFuture<Alive> alive();
+
+	/**
+	 * Stop the web service
+	 * 
+	 * @return whether or not halting the engine succeeded
+	 */
+	public CompletableFuture<Boolean> halt();
+
+	/**
+	 * Get the properties used in the Pipeline 2 engine
+	 * 
+	 * @return the list of properties
+	 */
+	public CompletableFuture<List<Property>> getProperties();
+
+
+	// ---------- Scripts ----------
+
+	/**
+	 * Get a single script
+	 * 
+	 * @param scriptId the ID of the script
+	 * @return the script
+	 */
+	public CompletableFuture<Script> getScript(String scriptId);
+
+	/**
+	 * Get all scripts
+	 * 
+	 * @return the list of scripts
+	 */
+	public CompletableFuture<List<Script>> getScripts();
+
+
+	// ---------- Data Types ----------
+
+	/**
+	 * Get a single data type
+	 * 
+	 * @param dataTypeId the ID of the datatype
+	 * @return the datatype
+	 */
+	public CompletableFuture<DataType> getDataType(String dataTypeId);
+
+	/**
+	 * Get all data types
+	 * 
+	 * @return a map of all datatypes
+	 */
+	public CompletableFuture<Map<String,String>> getDataTypes();
+
+
+	// ---------- Jobs ----------
+
+	/**
+	 * Get all jobs
+	 * 
+	 * @return the list of all jobs
+	 */
+	public CompletableFuture<List<Job>> getJobs();
+
+	/**
+	 * Get a single job
+	 * 
+	 * @param jobId the job ID
+	 * @param msgSeq the number of the first message to include
+	 * @return the job
+	 */
+	public CompletableFuture<Job> getJob(String jobId, long msgSeq);
+
+	/**
+	 * Submit a job to the engine
+	 * 
+	 * @param job the job to post
+	 * @return the posted job
+	 */
+	public CompletableFuture<Job> postJob(Job job);
+
+	/**
+	 * Delete a single job
+	 * 
+	 * @param jobId the job ID
+	 * @return whether or not the job was deleted
+	 */
+	public CompletableFuture<Boolean> deleteJob(String jobId);
+
+	/**
+	 * Get the size used to store each job
+	 * 
+	 * @return the job sizes
+	 */
+	public CompletableFuture<JobSizes> getSizes();
+
+	/**
+	 * Get all jobs with the given batchId
+	 * 
+	 * @param batchId the batch ID
+	 * @return the list of jobs for the given batch ID
+	 */
+	public CompletableFuture<List<Job>> getBatch(String batchId);
+
+	/**
+	 * Delete all jobs with the given batchId
+	 * 
+	 * @param batchId the batch ID
+	 * @return whether or not all jobs were successfully deleted
+	 */
+	public CompletableFuture<Boolean> deleteBatch(String batchId);
+
+	/**
+	 * Get the log file for a job
+	 * 
+	 * The log is held in memory as a String, so a log that is larger than the text limit of
+	 * {@link WSResponse} is truncated (see {@link WSResponse#setDefaultTextLimit(long)}). Use
+	 * {@link WS#getJobLogAsStream(String)} to get a large log completely.
+	 * 
+	 * @param jobId the job ID
+	 * @return the log
+	 */
+	public CompletableFuture<String> getJobLog(String jobId);
+
+	/**
+	 * Get results from a job as an InputStream
+	 * 
+	 * @param jobId the job ID
+	 * @param href the relative path to the desired job result file
+	 * @return the file as an InputStream
+	 */
+	public CompletableFuture<InputStream> getJobResultAsStream(String jobId, String href);
+
+	/**
+	 * Get the job queue
+	 * 
+	 * @return the job queue
+	 */
+	public CompletableFuture<JobQueue> getQueue();
+
+	/**
+	 * Move job up the queue
+	 * 
+	 * @param jobId the job ID
+	 * @return the job queue
+	 */
+	public CompletableFuture<JobQueue> moveUpQueue(String jobId);
+
+	/**
+	 * Move job down the queue
+	 * 
+	 * @param jobId the job ID
+	 * @return the job queue
+	 */
+	public CompletableFuture<JobQueue> moveDownQueue(String jobId);
+
+
+	// ---------- Clients ----------
+
+	/**
+	 * List all clients
+	 * 
+	 * @return the list of clients
+	 */
+	public CompletableFuture<List<Client>> getClients();
+
+	/**
+	 * Get a client
+	 * 
+	 * @param clientId the client ID
+	 * @return the client
+	 */
+	public CompletableFuture<Client> getClient(String clientId);
+
+	/**
+	 * Delete a client
+	 * 
+	 * @param clientId the client ID
+	 * @return whether or not the client were successfully deleted
+	 */
+	public CompletableFuture<Boolean> deleteClient(String clientId);
+
+}
@@ -0,0 +1,227 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.daisy.pipeline.client.Pipeline2Exception;
+import org.w3c.dom.Document;
+
+/**
+ * The HTTP layer used by {@link WS} to communicate with the Pipeline 2 Web API.
+ * 
+ * Available implementations are {@link Pipeline2HttpClient}, which uses Apache HTTP
+ * Client, and {@link JavaHttpTransport}, which uses the HTTP client of the Java
+ * platform and supports HTTP/2.
+ * 
+ * Implementations must be thread-safe.
+ * 
+ * The asynchronous methods are used by {@link AsyncWS}. Their default implementations
+ * simply run the blocking methods on the common fork/join pool; implementations that
+ * support non-blocking I/O (like {@link JavaHttpTransport}) override them.
+ */
+public interface HttpTransport extends Closeable {
+	
+	/**
+	 * Send a GET request.
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param parameters URL query string parameters
+	 * @return The return body.
+	 * @throws Pipeline2Exception thrown if an error occurs
+	 */
+	public default WSResponse get(String endpoint, String path, String username, String secret, Map<String,String> parameters) throws Pipeline2Exception {
+		return get(endpoint, path, username, secret, parameters, null);
+	}
+	
+	/**
+	 * Send a GET request with additional request headers.
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param parameters URL query string parameters
+	 * @param headers Request headers, for instance "If-None-Match". Can be null.
+	 * @return The return body.
+	 * @throws Pipeline2Exception thrown if an error occurs
+	 */
+	public WSResponse get(String endpoint, String path, String username, String secret, Map<String,String> parameters, Map<String,String> headers) throws Pipeline2Exception;
+	
+	/**
+	 * Send a DELETE request.
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param parameters URL query string parameters
+	 * @return The return body.
+	 * @throws Pipeline2Exception thrown if an error occurs
+	 */
+	public WSResponse delete(String endpoint, String path, String username, String secret, Map<String,String> parameters) throws Pipeline2Exception;
+	
+	/**
+	 * POST an XML document.
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param xml The XML document to post.
+	 * @return The return body.
+	 * @throws Pipeline2Exception thrown if an error occurs
+	 */
+	public WSResponse postXml(String endpoint, String path, String username, String secret, Document xml) throws Pipeline2Exception;
+	
+	/**
+	 * POST a multipart request where each part is a file.
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param parts A map of all the parts.
+	 * @return The return body.
+	 * @throws Pipeline2Exception thrown if an error occurs
+	 */
+	public default WSResponse postMultipart(String endpoint, String path, String username, String secret, Map<String,File> parts) throws Pipeline2Exception {
+		return postMultipart(endpoint, path, username, secret, MultipartBody.of(parts));
+	}
+	
+	/**
+	 * POST a multipart request. The body is generated while it is being sent.
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param body The multipart body.
+	 * @return The return body.
+	 * @throws Pipeline2Exception thrown if an error occurs
+	 */
+	public WSResponse postMultipart(String endpoint, String path, String username, String secret, MultipartBody body) throws Pipeline2Exception;
+	
+	/**
+	 * Send a GET request asynchronously.
+	 * 
+	 * The returned future completes exceptionally with a {@link Pipeline2Exception} if the request fails.
+	 * 
+	 * @see #get(String, String, String, String, Map)
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param parameters URL query string parameters
+	 * @return The future response.
+	 */
+	public default CompletableFuture<WSResponse> getAsync(String endpoint, String path, String username, String secret, Map<String,String> parameters) {
+		return async(() -> get(endpoint, path, username, secret, parameters));
+	}
+	
+	/**
+	 * Send a GET request asynchronously, for a response body that is read as a stream.
+	 * 
+	 * Unlike {@link #getAsync(String, String, String, String, Map)}, the returned future may
+	 * complete before the body has been received, so that a large body, like a job result,
+	 * does not have to be buffered. The response must be closed.
+	 * 
+	 * @see #get(String, String, String, String, Map)
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param parameters URL query string parameters
+	 * @return The future response.
+	 */
+	public default CompletableFuture<WSResponse> getAsStreamAsync(String endpoint, String path, String username, String secret, Map<String,String> parameters) {
+		return getAsync(endpoint, path, username, secret, parameters);
+	}
+	
+	/**
+	 * Send a DELETE request asynchronously.
+	 * 
+	 * The returned future completes exceptionally with a {@link Pipeline2Exception} if the request fails.
+	 * 
+	 * @see #delete(String, String, String, String, Map)
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param parameters URL query string parameters
+	 * @return The future response.
+	 */
+	public default CompletableFuture<WSResponse> deleteAsync(String endpoint, String path, String username, String secret, Map<String,String> parameters) {
+		return async(() -> delete(endpoint, path, username, secret, parameters));
+	}
+	
+	/**
+	 * POST an XML document asynchronously.
+	 * 
+	 * The returned future completes exceptionally with a {@link Pipeline2Exception} if the request fails.
+	 * 
+	 * @see #postXml(String, String, String, String, Document)
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param xml The XML document to post.
+	 * @return The future response.
+	 */
+	public default CompletableFuture<WSResponse> postXmlAsync(String endpoint, String path, String username, String secret, Document xml) {
+		return async(() -> postXml(endpoint, path, username, secret, xml));
+	}
+	
+	/**
+	 * POST a multipart request where each part is a file, asynchronously.
+	 * 
+	 * The returned future completes exceptionally with a {@link Pipeline2Exception} if the request fails.
+	 * 
+	 * @see #postMultipart(String, String, String, String, Map)
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param parts A map of all the parts.
+	 * @return The future response.
+	 */
+	public default CompletableFuture<WSResponse> postMultipartAsync(String endpoint, String path, String username, String secret, Map<String,File> parts) {
+		return postMultipartAsync(endpoint, path, username, secret, MultipartBody.of(parts));
+	}
+	
+	/**
+	 * POST a multipart request asynchronously. The body is generated while it is being sent.
+	 * 
+	 * The returned future completes exceptionally with a {@link Pipeline2Exception} if the request fails.
+	 * 
+	 * @see #postMultipart(String, String, String, String, MultipartBody)
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
+	 * @param secret Robot secret. Can be null.
+	 * @param body The multipart body.
+	 * @return The future response.
+	 */
+	public default CompletableFuture<WSResponse> postMultipartAsync(String endpoint, String path, String username, String secret, MultipartBody body) {
+		return async(() -> postMultipart(endpoint, path, username, secret, body));
+	}
+	
+	/**
+	 * Release all resources (open connections, threads) held by the transport.
+	 * 
+	 * The transport can not be used anymore afterwards.
+	 */
+	@Override
+	public void close();
+	
+	private static CompletableFuture<WSResponse> async(Callable<WSResponse> request) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return request.call();
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+	
+}
@@ -0,0 +1,500 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.daisy.pipeline.client.Pipeline2Exception;
+import org.daisy.pipeline.client.Pipeline2Logger;
+import org.daisy.pipeline.client.utils.XML;
+import org.w3c.dom.Document;
+
+/**
+ * Implementation of HttpTransport that uses the HTTP client of the Java platform (java.net.http).
+ *
+ * HTTP/2 is used when the engine supports it, in which case all concurrent requests
+ * to the same endpoint are multiplexed over a single connection. Otherwise the client
+ * falls back to HTTP/1.1 with persistent connections.
+ *
+ * Instances are thread-safe and are meant to be shared.
+ */
+public class JavaHttpTransport implements HttpTransport {
+
+	/** Default time in milliseconds to wait for a connection to be established. */
+	public static final long DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	private static final int PIPE_SIZE = 64 * 1024;
+
+	private final HttpClient httpclient;
+
+	/* Threads that generate request bodies */
+	private final ExecutorService bodyWriters = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "pipeline2-request-body");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/** Create a transport that prefers HTTP/2. */
+	public JavaHttpTransport() {
+		this(HttpClient.newBuilder()
+		               .version(HttpClient.Version.HTTP_2)
+		               .connectTimeout(Duration.ofMillis(DEFAULT_CONNECT_TIMEOUT))
+		               .followRedirects(HttpClient.Redirect.NORMAL)
+		               .build());
+	}
+
+	/**
+	 * Create a transport that uses the given HTTP client.
+	 *
+	 * @param httpclient the HTTP client to use
+	 */
+	public JavaHttpTransport(HttpClient httpclient) {
+		this.httpclient = httpclient;
+	}
+
+	@Override
+	public WSResponse get(String endpoint, String path, String username, String secret, Map<String,String> parameters, Map<String,String> headers) throws Pipeline2Exception {
+		return getDelete("GET", endpoint, path, username, secret, parameters, headers);
+	}
+
+	@Override
+	public WSResponse delete(String endpoint, String path, String username, String secret, Map<String,String> parameters) throws Pipeline2Exception {
+		return getDelete("DELETE", endpoint, path, username, secret, parameters, null);
+	}
+
+	private WSResponse getDelete(String method, String endpoint, String path, String username, String secret, Map<String,String> parameters, Map<String,String> headers) throws Pipeline2Exception {
+		String url = Pipeline2HttpClient.url(endpoint, path, username, secret, parameters);
+		if (endpoint == null) {
+			return endpointNotSet(url);
+		}
+		return execute(method, url, getDeleteRequest(method, url, headers), null);
+	}
+
+	@Override
+	public WSResponse postXml(String endpoint, String path, String username, String secret, Document xml) throws Pipeline2Exception {
+		String url = Pipeline2HttpClient.url(endpoint, path, username, secret, null);
+		RequestBody requestBody = new RequestBody();
+		return execute("POST", url, postXmlRequest(url, xml, requestBody), requestBody);
+	}
+
+	@Override
+	public WSResponse postMultipart(String endpoint, String path, String username, String secret, MultipartBody body) throws Pipeline2Exception {
+		String url = Pipeline2HttpClient.url(endpoint, path, username, secret, null);
+		RequestBody requestBody = new RequestBody();
+		return execute("POST", url, postMultipartRequest(url, body, requestBody), requestBody);
+	}
+
+	/**
+	 * Send a GET request without blocking the calling thread.
+	 * 
+	 * The response body is received in full before the returned future completes, so
+	 * that parsing it never blocks. No thread is blocked while the body arrives. A body
+	 * larger than the memory threshold of {@link WSResponse} is received into a temporary
+	 * file instead of into memory.
+	 */
+	@Override
+	public CompletableFuture<WSResponse> getAsync(String endpoint, String path, String username, String secret, Map<String,String> parameters) {
+		return getDeleteAsync("GET", endpoint, path, username, secret, parameters);
+	}
+
+	/**
+	 * Send a DELETE request without blocking the calling thread.
+	 * 
+	 * The response body is received in full before the returned future completes, like for
+	 * {@link #getAsync(String, String, String, String, Map)}.
+	 */
+	@Override
+	public CompletableFuture<WSResponse> deleteAsync(String endpoint, String path, String username, String secret, Map<String,String> parameters) {
+		return getDeleteAsync("DELETE", endpoint, path, username, secret, parameters);
+	}
+
+	/**
+	 * Send a GET request without blocking the calling thread, and read the response body as a stream.
+	 * 
+	 * The returned future completes as soon as the response headers have been received.
+	 */
+	@Override
+	public CompletableFuture<WSResponse> getAsStreamAsync(String endpoint, String path, String username, String secret, Map<String,String> parameters) {
+		try {
+			String url = Pipeline2HttpClient.url(endpoint, path, username, secret, parameters);
+			if (endpoint == null) {
+				return CompletableFuture.completedFuture(endpointNotSet(url));
+			}
+			return executeAsync("GET", url, getDeleteRequest("GET", url, null), null, true);
+
+		} catch (Pipeline2Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	private CompletableFuture<WSResponse> getDeleteAsync(String method, String endpoint, String path, String username, String secret, Map<String,String> parameters) {
+		try {
+			String url = Pipeline2HttpClient.url(endpoint, path, username, secret, parameters);
+			if (endpoint == null) {
+				return CompletableFuture.completedFuture(endpointNotSet(url));
+			}
+			return executeAsync(method, url, getDeleteRequest(method, url, null), null, false);
+
+		} catch (Pipeline2Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * POST an XML document without blocking the calling thread.
+	 * 
+	 * The response body is received in full before the returned future completes, like for
+	 * {@link #getAsync(String, String, String, String, Map)}.
+	 */
+	@Override
+	public CompletableFuture<WSResponse> postXmlAsync(String endpoint, String path, String username, String secret, Document xml) {
+		try {
+			String url = Pipeline2HttpClient.url(endpoint, path, username, secret, null);
+			RequestBody requestBody = new RequestBody();
+			return executeAsync("POST", url, postXmlRequest(url, xml, requestBody), requestBody, false);
+
+		} catch (Pipeline2Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * POST a multipart request without blocking the calling thread.
+	 * 
+	 * The request body is generated on a separate thread. The response body is received
+	 * in full before the returned future completes, like for
+	 * {@link #getAsync(String, String, String, String, Map)}.
+	 */
+	@Override
+	public CompletableFuture<WSResponse> postMultipartAsync(String endpoint, String path, String username, String secret, MultipartBody body) {
+		try {
+			String url = Pipeline2HttpClient.url(endpoint, path, username, secret, null);
+			RequestBody requestBody = new RequestBody();
+			return executeAsync("POST", url, postMultipartRequest(url, body, requestBody), requestBody, false);
+
+		} catch (Pipeline2Exception e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	private static WSResponse endpointNotSet(String url) {
+		return new WSResponse(url, 503, "Endpoint is not set", "Please provide a Pipeline 2 endpoint.", null, null, null);
+	}
+
+	private static HttpRequest getDeleteRequest(String method, String url, Map<String,String> headers) {
+		Pipeline2Logger.logger().debug(method+": ["+url+"]");
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url));
+		if ("DELETE".equals(method)) {
+			request.DELETE();
+		} else { // "GET"
+			request.GET();
+		}
+		if (headers != null) {
+			for (String name : headers.keySet()) {
+				request.header(name, headers.get(name));
+			}
+		}
+		return request.build();
+	}
+
+	private HttpRequest postXmlRequest(String url, Document xml, RequestBody requestBody) {
+		if (Pipeline2Logger.logger().logsLevel(Pipeline2Logger.LEVEL.DEBUG)) {
+			Pipeline2Logger.logger().debug("POST: ["+url+"]");
+			Pipeline2Logger.logger().debug(XML.toString(xml));
+		}
+
+		return HttpRequest.newBuilder(URI.create(url))
+		                  .header("Content-Type", "application/xml; charset=UTF-8")
+		                  .POST(HttpRequest.BodyPublishers.ofInputStream(() -> pipe(os -> XML.write(xml, os), requestBody)))
+		                  .build();
+	}
+
+	private HttpRequest postMultipartRequest(String url, MultipartBody body, RequestBody requestBody) {
+		Pipeline2Logger.logger().debug("POST: ["+url+"]");
+
+		return HttpRequest.newBuilder(URI.create(url))
+		                  .header("Content-Type", body.getContentType())
+		                  .POST(HttpRequest.BodyPublishers.ofInputStream(() -> pipe(body::writeTo, requestBody)))
+		                  .build();
+	}
+
+	/*
+	 * The pipes of the body of a request. The HTTP client may stop reading the body before
+	 * the end, for instance when the server answers early with an error, or when the
+	 * request times out. The pipes are therefore closed when the request completes, so that
+	 * a writer that is blocked on a full pipe fails and its thread is released.
+	 */
+	private static class RequestBody {
+		private final List<PipedInputStream> pipes = new ArrayList<PipedInputStream>();
+		private boolean closed = false;
+
+		synchronized void add(PipedInputStream pipe) {
+			if (closed) {
+				close(pipe);
+			} else {
+				pipes.add(pipe);
+			}
+		}
+
+		synchronized boolean isClosed() {
+			return closed;
+		}
+
+		synchronized void close() {
+			closed = true;
+			for (PipedInputStream pipe : pipes) {
+				close(pipe);
+			}
+			pipes.clear();
+		}
+
+		private static void close(PipedInputStream pipe) {
+			try {
+				pipe.close();
+			} catch (IOException e) {
+				// PipedInputStream.close() does not throw
+			}
+		}
+	}
+
+	/*
+	 * Generate the content on a separate thread and return the reading end of the pipe.
+	 * An error that occurs while generating the content is rethrown to the reader, so
+	 * that the request is aborted instead of being sent with a truncated body. When the
+	 * request completes before the whole body is read, the pipe is closed and the writer
+	 * stops.
+	 */
+	private InputStream pipe(MultipartBody.Content content, RequestBody requestBody) {
+		PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+		PipedOutputStream out;
+		try {
+			out = new PipedOutputStream(in);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		requestBody.add(in);
+		AtomicReference<IOException> error = new AtomicReference<IOException>();
+		bodyWriters.execute(() -> {
+			try (OutputStream os = out) {
+				content.writeTo(os);
+			} catch (IOException e) {
+				if (requestBody.isClosed()) {
+					// the pipe was closed by the reader: the request is cancelled
+					Pipeline2Logger.logger().debug("Request body was not read to the end");
+				} else {
+					Pipeline2Logger.logger().error("Error while generating request body", e);
+					error.set(e);
+				}
+			}
+		});
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				return checkError(super.read());
+			}
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return checkError(super.read(b, off, len));
+			}
+			private int checkError(int result) throws IOException {
+				if (result == -1 && error.get() != null) {
+					throw error.get();
+				}
+				return result;
+			}
+		};
+	}
+
+	private WSResponse execute(String method, String url, HttpRequest request, RequestBody requestBody) throws Pipeline2Exception {
+		HttpResponse<InputStream> response;
+		try {
+			response = httpclient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+		} catch (IOException | UncheckedIOException e) {
+			throw new Pipeline2Exception("Error while "+method+"ing.", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new Pipeline2Exception("Interrupted while "+method+"ing.", e);
+		} finally {
+			if (requestBody != null) {
+				requestBody.close();
+			}
+		}
+		return toWSResponse(url, response.statusCode(), response.headers(), response.body());
+	}
+
+	/*
+	 * With stream, the future completes when the headers have been received, and the body is
+	 * read from the connection while the caller consumes it. Otherwise, the body is received in
+	 * full, without blocking a thread, before the future completes.
+	 */
+	private CompletableFuture<WSResponse> executeAsync(String method, String url, HttpRequest request, RequestBody requestBody, boolean stream) {
+		CompletableFuture<WSResponse> response;
+		if (stream) {
+			response = httpclient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+			                     .thenApply(r -> toWSResponse(url, r.statusCode(), r.headers(), r.body()));
+		} else {
+			response = httpclient.sendAsync(request, info -> new BufferingSubscriber(url, info))
+			                     .thenApply(HttpResponse::body);
+		}
+		return response.handle((r, e) -> {
+		                   if (requestBody != null) {
+		                       requestBody.close();
+		                   }
+		                   if (e != null) {
+		                       Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+		                       throw new CompletionException(new Pipeline2Exception("Error while "+method+"ing.", cause));
+		                   }
+		                   return r;
+		               });
+	}
+
+	private static WSResponse toWSResponse(String url, int status, HttpHeaders responseHeaders, InputStream body) {
+		String contentType = responseHeaders.firstValue("Content-Type").orElse("application/octet-stream");
+		OptionalLong contentLength = responseHeaders.firstValueAsLong("Content-Length");
+		Long size = contentLength.isPresent() ? contentLength.getAsLong() : null;
+		Map<String,String> headers = new HashMap<String,String>();
+		for (String name : responseHeaders.map().keySet()) {
+			headers.put(name, responseHeaders.firstValue(name).orElse(""));
+		}
+		// java.net.http does not expose the reason phrase
+		return new WSResponse(url, status, "", null, contentType, size, body, headers);
+	}
+
+	/*
+	 * Receives a response body into memory, or into a temporary file once it is larger than the
+	 * memory threshold of WSResponse, as it arrives. The body is written to the file on the
+	 * thread of the HTTP client that delivers it.
+	 */
+	private static class BufferingSubscriber implements HttpResponse.BodySubscriber<WSResponse> {
+
+		private final String url;
+		private final HttpResponse.ResponseInfo info;
+		private final long threshold = WSResponse.getDefaultMemoryThreshold();
+		private final CompletableFuture<WSResponse> body = new CompletableFuture<WSResponse>();
+		private Flow.Subscription subscription;
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		private File file = null;
+		private FileChannel channel = null;
+
+		BufferingSubscriber(String url, HttpResponse.ResponseInfo info) {
+			this.url = url;
+			this.info = info;
+		}
+
+		@Override
+		public CompletionStage<WSResponse> getBody() {
+			return body;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> buffers) {
+			if (body.isDone()) {
+				return;
+			}
+			try {
+				for (ByteBuffer buffer : buffers) {
+					if (channel == null && memory.size() + buffer.remaining() > threshold) {
+						spill();
+					}
+					if (channel != null) {
+						while (buffer.hasRemaining()) {
+							channel.write(buffer);
+						}
+					} else {
+						byte[] bytes = new byte[buffer.remaining()];
+						buffer.get(bytes);
+						memory.write(bytes, 0, bytes.length);
+					}
+				}
+			} catch (IOException e) {
+				subscription.cancel();
+				onError(e);
+			}
+		}
+
+		private void spill() throws IOException {
+			file = File.createTempFile("pipeline2-response", ".tmp");
+			Pipeline2Logger.logger().debug("buffering response from "+url+" as: "+file.getAbsolutePath());
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			ByteBuffer head = ByteBuffer.wrap(memory.toByteArray());
+			while (head.hasRemaining()) {
+				channel.write(head);
+			}
+			memory = null;
+		}
+
+		@Override
+		public void onError(Throwable e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ex) {
+					// the file is removed anyway
+				}
+			}
+			if (file != null) {
+				file.delete();
+			}
+			body.completeExceptionally(e);
+		}
+
+		@Override
+		public void onComplete() {
+			WSResponse response = toWSResponse(url, info.statusCode(), info.headers(), null);
+			try {
+				if (channel != null) {
+					channel.close();
+					response.setBody(file);
+				} else {
+					response.setBody(memory.toByteArray());
+				}
+				body.complete(response);
+			} catch (IOException e) {
+				onError(e);
+			}
+		}
+	}
+
+	/**
+	 * Stop the threads that generate request bodies. The connections of the underlying
+	 * HTTP client are closed automatically when they have been idle for a while.
+	 */
+	@Override
+	public void close() {
+		bodyWriters.shutdownNow();
+	}
+
+}
@@ -0,0 +1,180 @@
+package org.daisy.pipeline.client.http;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.daisy.pipeline.client.models.Job;
+import org.daisy.pipeline.client.models.JobSnapshot;
+import org.daisy.pipeline.client.models.Message;
+
+/**
+ * Keeps one live Job per job ID up to date by polling the engine for what changed.
+ *
+ * The first poll for a job fetches the whole job. Every following poll only asks for the
+ * messages from the last known message sequence number on (msgSeq), and merges the response
+ * into the live job with {@link Job#joinUpdate(Job)}: the status, progress and other fields
+ * are updated, and only the new and changed messages are applied. The cost of a poll is
+ * therefore proportional to what changed, not to the size of the job.
+ *
+ * The jobs returned are updated in place by later polls; callers that need a stable view
+ * should copy what they need. The models are not thread-safe, so a job should not be read
+ * while it is being updated. Polls for different jobs may run concurrently.
+ *
+ * Any number of threads can read an immutable {@link JobSnapshot} of a job with
+ * {@link #getSnapshot(String)}. Taking a snapshot copies all messages of the job, so it is not
+ * done by the poll: a snapshot is taken the first time it is asked for after a poll, and then
+ * shared until the next poll. Jobs whose snapshots are not read don't pay for them, and the
+ * cost of a snapshot is paid at most once per poll. While a poll or another snapshot of the
+ * job is in progress, readers get the previous snapshot instead of waiting.
+ */
+public class JobMonitor {
+
+	private final WSInterface ws;
+	private final ConcurrentMap<String,Monitored> jobs = new ConcurrentHashMap<String,Monitored>();
+
+	/* A live job, the sequence number of its newest message, and the latest snapshot of the job */
+	private static class Monitored {
+		final ReentrantLock lock = new ReentrantLock(); // guards job and msgSeq
+		Job job;
+		long msgSeq = 0;
+		volatile JobSnapshot snapshot;
+		volatile boolean changed = false; // whether the job was updated after the snapshot was taken
+	}
+
+	/**
+	 * @param ws the engine to poll
+	 */
+	public JobMonitor(WSInterface ws) {
+		this.ws = ws;
+	}
+
+	/**
+	 * Poll the engine for changes to a job, and apply them to the live job.
+	 *
+	 * Starts monitoring the job if it is not monitored yet.
+	 *
+	 * @param jobId the job ID
+	 * @return the live job, or null if the job could not be fetched the first time
+	 */
+	public Job update(String jobId) {
+		Monitored monitored = jobs.computeIfAbsent(jobId, id -> new Monitored());
+		monitored.lock.lock();
+		try {
+			Job update = ws.getJob(jobId, monitored.msgSeq);
+			if (update == null) {
+				if (monitored.job == null) {
+					jobs.remove(jobId, monitored);
+				}
+				return monitored.job;
+			}
+			if (monitored.job == null) {
+				monitored.job = update;
+			} else {
+				monitored.job.joinUpdate(update);
+			}
+			List<Message> messages = monitored.job.getMessages();
+			if (messages != null && !messages.isEmpty()) {
+				// the messages are sorted by sequence number
+				monitored.msgSeq = Math.max(monitored.msgSeq, messages.get(messages.size() - 1).sequence);
+			}
+			monitored.changed = true;
+			return monitored.job;
+		} finally {
+			monitored.lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the live job without polling the engine.
+	 *
+	 * @param jobId the job ID
+	 * @return the live job, or null if the job is not monitored
+	 */
+	public Job getJob(String jobId) {
+		Monitored monitored = jobs.get(jobId);
+		if (monitored == null) {
+			return null;
+		}
+		monitored.lock.lock();
+		try {
+			return monitored.job;
+		} finally {
+			monitored.lock.unlock();
+		}
+	}
+
+	/**
+	 * Get a snapshot of a job without polling the engine.
+	 *
+	 * The first call after a poll takes a new snapshot. Can be called from any number of
+	 * threads: while the job is being polled, or while another thread is taking the snapshot,
+	 * the previous snapshot is returned without waiting. Only the very first snapshot of a job
+	 * may have to wait for a poll to finish.
+	 *
+	 * @param jobId the job ID
+	 * @return the snapshot, or null if the job is not monitored or was not fetched yet
+	 */
+	public JobSnapshot getSnapshot(String jobId) {
+		Monitored monitored = jobs.get(jobId);
+		if (monitored == null) {
+			return null;
+		}
+		JobSnapshot snapshot = monitored.snapshot;
+		if (!monitored.changed) {
+			return snapshot;
+		}
+		if (snapshot == null) {
+			monitored.lock.lock();
+		} else if (!monitored.lock.tryLock()) {
+			return snapshot;
+		}
+		try {
+			if (monitored.changed) {
+				monitored.snapshot = monitored.job.snapshot();
+				monitored.changed = false;
+			}
+			return monitored.snapshot;
+		} finally {
+			monitored.lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the sequence number of the newest message of a job, which is the msgSeq of the next poll.
+	 *
+	 * @param jobId the job ID
+	 * @return the sequence number, or 0 if the job is not monitored or has no messages yet
+	 */
+	public long getMsgSeq(String jobId) {
+		Monitored monitored = jobs.get(jobId);
+		if (monitored == null) {
+			return 0;
+		}
+		monitored.lock.lock();
+		try {
+			return monitored.msgSeq;
+		} finally {
+			monitored.lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop monitoring a job, for instance when it is finished or deleted.
+	 *
+	 * @param jobId the job ID
+	 * @return the live job, or null if the job was not monitored
+	 */
+	public Job remove(String jobId) {
+		Monitored monitored = jobs.remove(jobId);
+		return monitored == null ? null : monitored.job;
+	}
+
+	/** @return the IDs of the monitored jobs */
+	public Set<String> getJobIds() {
+		return Collections.unmodifiableSet(jobs.keySet());
+	}
+}
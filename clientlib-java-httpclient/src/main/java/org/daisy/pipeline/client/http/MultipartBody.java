@@ -0,0 +1,164 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A multipart/form-data request body that is generated while it is being sent.
+ *
+ * The content of each part is produced by a {@link Content} that writes directly into
+ * the request body, so large parts (like the ZIP archive of a job context) don't have
+ * to be stored in temporary files first. The length of the body is not known in advance,
+ * so it is sent with chunked transfer encoding.
+ *
+ * A body can only be written once.
+ */
+public class MultipartBody {
+
+	/** Writes the content of a part or of a request body. */
+	public interface Content {
+
+		/**
+		 * Write the content to the given stream. The stream must not be closed.
+		 *
+		 * @param os the stream to write to
+		 * @throws IOException thrown if an error occurs
+		 */
+		public void writeTo(OutputStream os) throws IOException;
+
+	}
+
+	private static class Part {
+		final String name;
+		final String filename;
+		final String contentType;
+		final Content content;
+		Part(String name, String filename, String contentType, Content content) {
+			this.name = name;
+			this.filename = filename;
+			this.contentType = contentType;
+			this.content = content;
+		}
+	}
+
+	private final String boundary = UUID.randomUUID().toString();
+	private final List<Part> parts = new ArrayList<Part>();
+	private UploadProgressListener progressListener;
+
+	/**
+	 * Create a multipart body where each file is a part.
+	 *
+	 * @param files a map from part names to files
+	 * @return the multipart body
+	 */
+	public static MultipartBody of(Map<String,File> files) {
+		MultipartBody body = new MultipartBody();
+		for (String partName : files.keySet()) {
+			body.addPart(partName, files.get(partName));
+		}
+		return body;
+	}
+
+	/**
+	 * Add a part with the contents of a file.
+	 *
+	 * @param name the part name
+	 * @param file the file
+	 * @return this body
+	 */
+	public MultipartBody addPart(String name, File file) {
+		return addPart(name, file.getName(), "application/octet-stream", os -> Files.copy(file.toPath(), os));
+	}
+
+	/**
+	 * Add a part whose content is generated when the body is written.
+	 *
+	 * @param name the part name
+	 * @param filename the file name sent with the part
+	 * @param contentType the media type of the part
+	 * @param content generates the content of the part
+	 * @return this body
+	 */
+	public MultipartBody addPart(String name, String filename, String contentType, Content content) {
+		parts.add(new Part(name, filename, contentType, content));
+		return this;
+	}
+
+	/**
+	 * Set the listener that is notified while the body is written.
+	 *
+	 * @param progressListener the listener, or null
+	 * @return this body
+	 */
+	public MultipartBody setProgressListener(UploadProgressListener progressListener) {
+		this.progressListener = progressListener;
+		return this;
+	}
+
+	/** The value of the Content-Type header for this body. */
+	public String getContentType() {
+		return "multipart/form-data; boundary=" + boundary;
+	}
+
+	/**
+	 * Write the complete body to the given stream. The stream is not closed.
+	 *
+	 * @param os the stream to write to
+	 * @throws IOException thrown if one of the parts could not be generated or written
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		OutputStream out = progressListener == null ? os : new ProgressOutputStream(os, progressListener);
+		for (Part part : parts) {
+			String header = "--" + boundary + "\r\n"
+			              + "Content-Disposition: form-data; name=\"" + part.name + "\"; filename=\"" + part.filename + "\"\r\n"
+			              + "Content-Type: " + part.contentType + "\r\n"
+			              + "Content-Transfer-Encoding: binary\r\n"
+			              + "\r\n";
+			out.write(header.getBytes(StandardCharsets.UTF_8));
+			part.content.writeTo(out);
+			out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+		}
+		out.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	/* Counts the bytes that pass through and notifies the listener */
+	private static class ProgressOutputStream extends FilterOutputStream {
+
+		private final UploadProgressListener listener;
+		private long bytesWritten = 0;
+
+		ProgressOutputStream(OutputStream os, UploadProgressListener listener) {
+			super(os);
+			this.listener = listener;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			listener.progress(++bytesWritten);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesWritten += len;
+			listener.progress(bytesWritten);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// the underlying stream is owned by the transport
+			flush();
+		}
+	}
+
+}
@@ -1,6 +1,5 @@
 package org.daisy.pipeline.client.http;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -13,41 +12,100 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.w3c.dom.Document;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.entity.mime.MultipartEntity;
-import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.protocol.HTTP;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.protocol.HttpContext;
 import org.daisy.pipeline.client.Pipeline2Exception;
 import org.daisy.pipeline.client.Pipeline2Logger;
 import org.daisy.pipeline.client.utils.XML;
 
-/** Implementation of DP2HttpClient that uses Apache HTTP Client as the underlying HTTP client. */
-public class Pipeline2HttpClient {
+/**
+ * Implementation of HttpTransport that uses Apache HTTP Client as the underlying HTTP client.
+ * 
+ * Connections are kept alive and pooled so that consecutive requests to the same
+ * endpoint (for instance when polling a running job) can reuse an open connection
+ * instead of doing a new TCP handshake every time. A connection is returned to the
+ * pool when the body of the WSResponse has been read, or when the WSResponse is closed.
+ * 
+ * Instances are thread-safe and are meant to be shared. Call {@link #close()} when
+ * the client is no longer needed to shut down the pool.
+ */
+public class Pipeline2HttpClient implements HttpTransport {
 	
 	// TODO: implement PUT support put(...) ?
 	
 	private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
 	
+	/** Default maximum number of open connections in total. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 100;
+	
+	/** Default maximum number of open connections per endpoint. */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT = 20;
+	
+	/** Default time in milliseconds to keep a connection alive if the server does not say otherwise. */
+	public static final long DEFAULT_KEEP_ALIVE = 30000;
+	
+	/** Default time in milliseconds after which an idle connection is closed. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+	
 	public static DateFormat iso8601;
 	static {
 		iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
 		iso8601.setTimeZone(TimeZone.getTimeZone("UTC"));
 	}
 	
+	private final ThreadSafeClientConnManager connectionManager;
+	private final DefaultHttpClient httpclient;
+	private final IdleConnectionEvictor evictor;
+	
+	/** Create a client with the default pool configuration. */
+	public Pipeline2HttpClient() {
+		this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT, DEFAULT_KEEP_ALIVE, DEFAULT_IDLE_TIMEOUT);
+	}
+	
+	/**
+	 * Create a client with the given pool configuration.
+	 * 
+	 * @param maxConnections maximum number of open connections in total
+	 * @param maxConnectionsPerEndpoint maximum number of open connections per endpoint (host and port)
+	 * @param keepAlive time in milliseconds to keep a connection alive when the server does not send a Keep-Alive header
+	 * @param idleTimeout time in milliseconds after which a connection that has not been used is closed
+	 */
+	public Pipeline2HttpClient(int maxConnections, int maxConnectionsPerEndpoint, final long keepAlive, long idleTimeout) {
+		connectionManager = new ThreadSafeClientConnManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerEndpoint);
+		
+		httpclient = new DefaultHttpClient(connectionManager);
+		httpclient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				return duration > 0 ? duration : keepAlive;
+			}
+		});
+		
+		evictor = new IdleConnectionEvictor(connectionManager, idleTimeout);
+		evictor.start();
+	}
+	
 	/**
 	 * Send a GET request.
 	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
@@ -55,11 +113,13 @@ public class Pipeline2HttpClient {
 	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
 	 * @param secret Robot secret. Can be null.
 	 * @param parameters URL query string parameters
+	 * @param headers Request headers, for instance "If-None-Match". Can be null.
 	 * @return The return body.
 	 * @throws Pipeline2Exception thrown if an error occurs
 	 */
-	public static WSResponse get(String endpoint, String path, String username, String secret, Map<String,String> parameters) throws Pipeline2Exception {
-		return getDelete("GET", endpoint, path, username, secret, parameters);
+	@Override
+	public WSResponse get(String endpoint, String path, String username, String secret, Map<String,String> parameters, Map<String,String> headers) throws Pipeline2Exception {
+		return getDelete("GET", endpoint, path, username, secret, parameters, headers);
 	}
 	
 	/**
@@ -72,18 +132,18 @@ public class Pipeline2HttpClient {
 	 * @return The return body.
 	 * @throws Pipeline2Exception thrown if an error occurs
 	 */
-	public static WSResponse delete(String endpoint, String path, String username, String secret, Map<String,String> parameters) throws Pipeline2Exception {
-		return getDelete("DELETE", endpoint, path, username, secret, parameters);
+	@Override
+	public WSResponse delete(String endpoint, String path, String username, String secret, Map<String,String> parameters) throws Pipeline2Exception {
+		return getDelete("DELETE", endpoint, path, username, secret, parameters, null);
 	}
 	
-	private static WSResponse getDelete(String method, String endpoint, String path, String username, String secret, Map<String,String> parameters) throws Pipeline2Exception {
+	private WSResponse getDelete(String method, String endpoint, String path, String username, String secret, Map<String,String> parameters, Map<String,String> headers) throws Pipeline2Exception {
 		String url = url(endpoint, path, username, secret, parameters);
 		Pipeline2Logger.logger().debug(method.toUpperCase()+": ["+url+"]");
 		if (endpoint == null) {
 			return new WSResponse(url, 503, "Endpoint is not set", "Please provide a Pipeline 2 endpoint.", null, null, null);
 		}
 		
-		HttpClient httpclient = new DefaultHttpClient();
 		HttpRequestBase http;
 		
 		if ("DELETE".equals(method)) {
@@ -91,33 +151,13 @@ public class Pipeline2HttpClient {
 		} else { // "GET"
 			http = new HttpGet(url);
 		}
-		
-		HttpResponse response = null;
-		try {
-			response = httpclient.execute(http);
-		} catch (ClientProtocolException e) {
-			throw new Pipeline2Exception("Error while "+method+"ing.", e);
-		} catch (IOException e) {
-			throw new Pipeline2Exception("Error while "+method+"ing.", e);
-		}
-		HttpEntity resEntity = response.getEntity();
-		
-		InputStream bodyStream = null;
-		if (resEntity != null) {
-			try {
-				bodyStream = resEntity.getContent();
-			} catch (IOException e) {
-				throw new Pipeline2Exception("Error while reading response body", e);
+		if (headers != null) {
+			for (String name : headers.keySet()) {
+				http.addHeader(name, headers.get(name));
 			}
 		}
 		
-		int status = response.getStatusLine() != null ? response.getStatusLine().getStatusCode() : 204; // Not sure if it's ok to default to 204, but let's try!
-		String statusName = response.getStatusLine() != null ? response.getStatusLine().getReasonPhrase() : "";
-		String statusDescription = null;
-		String contentType = response.getFirstHeader("Content-Type") != null ? response.getFirstHeader("Content-Type").getValue() : "application/octet-stream";
-		Long size = (resEntity != null && resEntity.getContentLength() >= 0) ? resEntity.getContentLength() : null;
-		
-		return new WSResponse(url, status, statusName, statusDescription, contentType, size, bodyStream);
+		return execute(method, url, http);
 	}
 	
 	/**
@@ -130,7 +170,8 @@ public class Pipeline2HttpClient {
 	 * @return The return body.
 	 * @throws Pipeline2Exception thrown if an error occurs
 	 */
-	public static WSResponse postXml(String endpoint, String path, String username, String secret, Document xml) throws Pipeline2Exception {
+	@Override
+	public WSResponse postXml(String endpoint, String path, String username, String secret, Document xml) throws Pipeline2Exception {
 		String url = url(endpoint, path, username, secret, null);
 		
 		if (Pipeline2Logger.logger().logsLevel(Pipeline2Logger.LEVEL.DEBUG)) {
@@ -138,84 +179,133 @@ public class Pipeline2HttpClient {
 			Pipeline2Logger.logger().debug(XML.toString(xml));
 		}
 		
-		HttpClient httpclient = new DefaultHttpClient();
 		HttpPost httppost = new HttpPost(url);
+		httppost.setEntity(streamingEntity("application/xml; charset=UTF-8", os -> XML.write(xml, os)));
 		
-		StringEntity entity;
-		try {
-			entity = new StringEntity(XML.toString(xml), "application/xml", HTTP.UTF_8);
-		} catch (UnsupportedEncodingException e) {
-			throw new Pipeline2Exception("Error while serializing XML for POSTing.", e);
-		}
-		
-		httppost.setEntity(entity);
-		
-		HttpResponse response = null;
-		try {
-			response = httpclient.execute(httppost);
-		} catch (ClientProtocolException e) {
-			throw new Pipeline2Exception("Error while POSTing.", e);
-		} catch (IOException e) {
-			throw new Pipeline2Exception("Error while POSTing.", e);
-		}
-		HttpEntity resEntity = response.getEntity();
-		
-		InputStream bodyStream = null;
-		try {
-			bodyStream = resEntity.getContent();
-		} catch (IOException e) {
-			throw new Pipeline2Exception("Error while reading response body", e); 
-		}
-		
-		return new WSResponse(url, response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase(), null,
-				response.getFirstHeader("Content-Type").getValue(),
-				resEntity.getContentLength()>=0?resEntity.getContentLength():null,
-				bodyStream);
+		return execute("POST", url, httppost);
 	}
 	
 	/**
-	 * POST a multipart request.
+	 * POST a multipart request. The body is generated while it is being sent.
 	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
 	 * @param path Path to resource, for instance "/scripts".
 	 * @param username Robot username. Can be null. If null, then the URL will not be signed.
 	 * @param secret Robot secret. Can be null.
-	 * @param parts A map of all the parts.
+	 * @param body The multipart body.
 	 * @return The return body.
 	 * @throws Pipeline2Exception thrown if an error occurs
 	 */
-	public static WSResponse postMultipart(String endpoint, String path, String username, String secret, Map<String,File> parts) throws Pipeline2Exception {
+	@Override
+	public WSResponse postMultipart(String endpoint, String path, String username, String secret, MultipartBody body) throws Pipeline2Exception {
 		String url = url(endpoint, path, username, secret, null);
+		Pipeline2Logger.logger().debug("POST: ["+url+"]");
 		
-		HttpClient httpclient = new DefaultHttpClient();
 		HttpPost httppost = new HttpPost(url);
+		httppost.setEntity(streamingEntity(body.getContentType(), body::writeTo));
 		
-		MultipartEntity reqEntity = new MultipartEntity();
-		for (String partName : parts.keySet()) { 
-			reqEntity.addPart(partName, new FileBody(parts.get(partName)));
-		}
-		httppost.setEntity(reqEntity);
-		
+		return execute("POST", url, httppost);
+	}
+	
+	/* An entity that is written directly to the connection with chunked transfer encoding */
+	private static HttpEntity streamingEntity(String contentType, MultipartBody.Content content) {
+		EntityTemplate entity = new EntityTemplate(os -> content.writeTo(os)) {
+			@Override
+			public boolean isRepeatable() {
+				// don't let the client regenerate the whole body when retrying
+				return false;
+			}
+		};
+		entity.setContentType(contentType);
+		entity.setChunked(true);
+		return entity;
+	}
+	
+	private WSResponse execute(String method, String url, HttpRequestBase http) throws Pipeline2Exception {
 		HttpResponse response = null;
 		try {
-			response = httpclient.execute(httppost);
+			response = httpclient.execute(http);
 		} catch (ClientProtocolException e) {
-			throw new Pipeline2Exception("Error while POSTing.", e);
+			http.abort();
+			throw new Pipeline2Exception("Error while "+method+"ing.", e);
 		} catch (IOException e) {
-			throw new Pipeline2Exception("Error while POSTing.", e);
+			http.abort();
+			throw new Pipeline2Exception("Error while "+method+"ing.", e);
 		}
 		HttpEntity resEntity = response.getEntity();
 		
 		InputStream bodyStream = null;
-		try {
-			bodyStream = resEntity.getContent();
-		} catch (IOException e) {
-			throw new Pipeline2Exception("Error while reading response body", e); 
+		if (resEntity != null) {
+			try {
+				bodyStream = resEntity.getContent();
+			} catch (IOException e) {
+				http.abort();
+				throw new Pipeline2Exception("Error while reading response body", e);
+			}
+		}
+		
+		int status = response.getStatusLine() != null ? response.getStatusLine().getStatusCode() : 204; // Not sure if it's ok to default to 204, but let's try!
+		String statusName = response.getStatusLine() != null ? response.getStatusLine().getReasonPhrase() : "";
+		String statusDescription = null;
+		String contentType = response.getFirstHeader("Content-Type") != null ? response.getFirstHeader("Content-Type").getValue() : "application/octet-stream";
+		Long size = (resEntity != null && resEntity.getContentLength() >= 0) ? resEntity.getContentLength() : null;
+		Map<String,String> headers = new HashMap<String,String>();
+		for (Header header : response.getAllHeaders()) {
+			if (!headers.containsKey(header.getName())) {
+				headers.put(header.getName(), header.getValue());
+			}
+		}
+		
+		WSResponse wsResponse = new WSResponse(url, status, statusName, statusDescription, contentType, size, bodyStream, headers);
+		// closing the content of an entity reads the rest of the body, which is not wanted when the caller gives up on it
+		wsResponse.setAbort(http::abort);
+		return wsResponse;
+	}
+	
+	/**
+	 * Shut down the connection pool. Open connections are closed and the
+	 * client can not be used anymore afterwards.
+	 */
+	@Override
+	public void close() {
+		evictor.shutdown();
+		connectionManager.shutdown();
+	}
+	
+	/** Periodically closes expired connections and connections that have been idle for too long. */
+	private static class IdleConnectionEvictor extends Thread {
+		
+		private final ClientConnectionManager connectionManager;
+		private final long idleTimeout;
+		private volatile boolean shutdown = false;
+		
+		IdleConnectionEvictor(ClientConnectionManager connectionManager, long idleTimeout) {
+			super("pipeline2-http-connection-evictor");
+			setDaemon(true);
+			this.connectionManager = connectionManager;
+			this.idleTimeout = idleTimeout;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (!shutdown) {
+					synchronized (this) {
+						wait(Math.max(1000, Math.min(idleTimeout, 5000)));
+					}
+					connectionManager.closeExpiredConnections();
+					connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				// terminate
+			}
 		}
 		
-		return new WSResponse(url, response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase(), null,
-				response.getFirstHeader("Content-Type").getValue(),
-				resEntity.getContentLength()>=0?resEntity.getContentLength():null,
-				bodyStream);
+		void shutdown() {
+			shutdown = true;
+			synchronized (this) {
+				notifyAll();
+			}
+		}
 	}
 	
 	/**
@@ -252,7 +342,10 @@ public class Pipeline2HttpClient {
 			// add parameters "authid", "time" and "nonce"
 			parameters = new HashMap<>();
 			parameters.put("authid", username);
-			String time = iso8601.format(new Date());
+			String time;
+			synchronized (iso8601) { // SimpleDateFormat is not thread-safe
+				time = iso8601.format(new Date());
+			}
 			parameters.put("time", time);
 			String nonce = "";
 			while (nonce.length() < 30)
@@ -0,0 +1,465 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.daisy.pipeline.client.Pipeline2Exception;
+import org.daisy.pipeline.client.Pipeline2Logger;
+
+/**
+ * Downloads job results with HTTP Range requests.
+ *
+ * When the engine answers range requests, a result is split into chunks that are downloaded
+ * in parallel, each over its own connection, straight into a partial file next to the target
+ * ("target.part"). Which parts of the file have been received is recorded in a state file
+ * ("target.part.state"), so an interrupted download continues where it left off when it is
+ * started again. When the engine does not support ranges, the result is downloaded with a
+ * single request, and an interrupted download starts over.
+ *
+ * When the engine sends an ETag or Last-Modified header, it is sent back in an If-Range header
+ * when resuming, so that a result that has changed in the meantime is downloaded from scratch.
+ *
+ * Instances are thread-safe, but a target file must only be downloaded by one thread at a time.
+ */
+public class ResultDownloader {
+
+	/** Default size in bytes of the chunks that are downloaded in parallel. */
+	public static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+	/** Default number of chunks that are downloaded at the same time. */
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	/** Default number of times a chunk is retried before the download is given up. */
+	public static final int DEFAULT_RETRIES = 3;
+
+	// how much is transferred between two updates of the state file
+	private static final long CHECKPOINT_SIZE = 1024 * 1024;
+
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+	private final WS ws;
+	private final long chunkSize;
+	private final int parallelism;
+	private final int retries;
+
+	/**
+	 * Create a downloader with the default chunk size, parallelism and number of retries.
+	 *
+	 * @param ws the WS instance that provides the endpoint, credentials and transport
+	 */
+	public ResultDownloader(WS ws) {
+		this(ws, DEFAULT_CHUNK_SIZE, DEFAULT_PARALLELISM, DEFAULT_RETRIES);
+	}
+
+	/**
+	 * Create a downloader.
+	 *
+	 * @param ws the WS instance that provides the endpoint, credentials and transport
+	 * @param chunkSize the size in bytes of the chunks that are downloaded in parallel
+	 * @param parallelism the number of chunks that are downloaded at the same time
+	 * @param retries the number of times a chunk is retried before the download is given up
+	 */
+	public ResultDownloader(WS ws, long chunkSize, int parallelism, int retries) {
+		if (chunkSize <= 0 || parallelism <= 0 || retries < 0) {
+			throw new IllegalArgumentException("chunkSize and parallelism must be positive, retries must not be negative");
+		}
+		this.ws = ws;
+		this.chunkSize = chunkSize;
+		this.parallelism = parallelism;
+		this.retries = retries;
+	}
+
+	/**
+	 * Download a job result, continuing a previous download of the same result to the same target if there is one.
+	 *
+	 * The target is only replaced once the download is complete. If the download fails, the
+	 * partial file is kept so that the download can be resumed by calling this method again.
+	 *
+	 * @param jobId the job ID
+	 * @param href the relative path to the result, or null or "" for all results
+	 * @param target the file to download to
+	 * @return the target file
+	 * @throws Pipeline2Exception thrown if the result could not be downloaded
+	 */
+	public File download(String jobId, String href, File target) throws Pipeline2Exception {
+		String path = "/jobs/"+jobId+"/result"+(href == null || "".equals(href) ? "" : "/"+href.replace(" ", "%20"));
+		Path part = new File(target.getPath() + ".part").toPath();
+		Path stateFile = new File(target.getPath() + ".part.state").toPath();
+
+		State state = State.load(part, stateFile);
+		if (state != null && state.firstIncompleteChunk() < 0) {
+			return complete(part, stateFile, target);
+		}
+		long firstStart, firstEnd;
+		if (state == null) {
+			firstStart = 0;
+			firstEnd = chunkSize - 1;
+		} else {
+			int first = state.firstIncompleteChunk();
+			firstStart = state.start(first) + state.done.get(first);
+			firstEnd = state.end(first);
+		}
+
+		// request the first missing range; the response tells whether ranges are supported
+		Map<String,String> headers = new HashMap<String,String>();
+		headers.put("Range", "bytes="+firstStart+"-"+firstEnd);
+		if (state != null && state.validator() != null) {
+			headers.put("If-Range", state.validator());
+		}
+		WSResponse response = get(path, headers);
+		try {
+			if (response.status == 416) {
+				// probably an empty result; ranges don't apply
+				response.abort();
+				discard(part, stateFile);
+				response = get(path, null);
+			}
+			if (response.status < 200 || response.status >= 300) {
+				throw new Pipeline2Exception("Unable to download "+path+": "+WS.error(response));
+			}
+
+			if (response.status != 206) {
+				// ranges not supported, or the result has changed since the previous attempt
+				Pipeline2Logger.logger().debug("Downloading "+path+" in a single request");
+				discard(part, stateFile);
+				try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				     ReadableByteChannel body = Channels.newChannel(response.asStream())) {
+					long transferred = transfer(body, channel, 0, Long.MAX_VALUE);
+					if (response.size != null && transferred != response.size) {
+						throw new IOException("Connection closed after "+transferred+" of "+response.size+" bytes");
+					}
+				} catch (IOException e) {
+					throw new Pipeline2Exception("Unable to download "+path, e);
+				}
+				return complete(part, stateFile, target);
+			}
+
+			long[] range = parseContentRange(response.getHeader("Content-Range"));
+			if (range == null || range[0] != firstStart) {
+				response.abort();
+				throw new Pipeline2Exception("Unexpected Content-Range in response to "+path+": "+response.getHeader("Content-Range"));
+			}
+			boolean resume = state != null && state.size == range[2];
+			if (!resume) {
+				discard(part, stateFile);
+				state = new State(stateFile, range[2], chunkSize, response.getHeader("ETag"), response.getHeader("Last-Modified"));
+			}
+			state.save();
+
+			try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				if (channel.size() < state.size) {
+					// FileChannel.transferFrom doesn't write beyond the end of the file, so give it its full (sparse) size
+					channel.write(ByteBuffer.allocate(1), state.size - 1);
+				}
+				// the first range is read from the response we already have, unless it belongs to an outdated download
+				if (resume || firstStart == 0) {
+					int first = state.chunkAt(firstStart);
+					try (ReadableByteChannel body = Channels.newChannel(response.asStream())) {
+						state.receive(first, body, channel);
+					} catch (IOException e) {
+						Pipeline2Logger.logger().debug("Download of chunk "+first+" of "+path+" interrupted, will retry", e);
+					}
+				}
+				response.close();
+				downloadChunks(path, state, channel);
+				channel.force(false);
+			} catch (IOException e) {
+				throw new Pipeline2Exception("Unable to write "+part, e);
+			}
+			return complete(part, stateFile, target);
+
+		} finally {
+			response.close();
+		}
+	}
+
+	// download all remaining chunks in parallel
+	private void downloadChunks(String path, State state, FileChannel channel) throws Pipeline2Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, state.chunks()), runnable -> {
+			Thread thread = new Thread(runnable, "pipeline2-result-download");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<Void>> chunks = new ArrayList<Future<Void>>();
+			for (int i = 0; i < state.chunks(); i++) {
+				if (!state.isComplete(i)) {
+					int chunk = i;
+					chunks.add(executor.submit(() -> {
+						downloadChunk(path, state, chunk, channel);
+						return null;
+					}));
+				}
+			}
+			for (Future<Void> chunk : chunks) {
+				try {
+					chunk.get();
+				} catch (ExecutionException e) {
+					executor.shutdownNow();
+					if (e.getCause() instanceof Pipeline2Exception) {
+						throw (Pipeline2Exception)e.getCause();
+					}
+					throw new Pipeline2Exception("Unable to download "+path, e.getCause());
+				} catch (InterruptedException e) {
+					executor.shutdownNow();
+					Thread.currentThread().interrupt();
+					throw new Pipeline2Exception("Interrupted while downloading "+path, e);
+				}
+			}
+
+		} finally {
+			executor.shutdownNow();
+			state.saveQuietly();
+		}
+	}
+
+	private void downloadChunk(String path, State state, int chunk, FileChannel channel) throws Pipeline2Exception {
+		for (int attempt = 0; !state.isComplete(chunk); attempt++) {
+			long start = state.start(chunk) + state.done.get(chunk);
+			Map<String,String> headers = new HashMap<String,String>();
+			headers.put("Range", "bytes="+start+"-"+state.end(chunk));
+			if (state.validator() != null) {
+				headers.put("If-Range", state.validator());
+			}
+			Exception error;
+			try (WSResponse response = get(path, headers)) {
+				long[] range = parseContentRange(response.getHeader("Content-Range"));
+				if (response.status != 206 || range == null || range[0] != start || range[2] != state.size) {
+					// the result has changed, or the engine stopped honouring ranges; retrying won't help,
+					// and the body may be the whole result, so don't read it
+					response.abort();
+					throw new IllegalStateException("Unexpected response to range request for "+path+": "+response.status+" "+response.getHeader("Content-Range"));
+				}
+				try (ReadableByteChannel body = Channels.newChannel(response.asStream())) {
+					state.receive(chunk, body, channel);
+				}
+				if (state.isComplete(chunk)) {
+					return;
+				}
+				error = new IOException("Connection closed before the end of the range");
+
+			} catch (IllegalStateException e) {
+				throw new Pipeline2Exception(e.getMessage());
+
+			} catch (IOException | Pipeline2Exception e) {
+				error = e;
+			}
+			if (attempt >= retries) {
+				throw new Pipeline2Exception("Unable to download chunk "+chunk+" of "+path, error);
+			}
+			Pipeline2Logger.logger().debug("Download of chunk "+chunk+" of "+path+" interrupted, retrying", error);
+		}
+	}
+
+	private WSResponse get(String path, Map<String,String> headers) throws Pipeline2Exception {
+		return ws.getTransport().get(ws.getEndpoint(), path, ws.getUsername(), ws.getSecret(), null, headers);
+	}
+
+	// move the complete download into place
+	private static File complete(Path part, Path stateFile, File target) throws Pipeline2Exception {
+		try {
+			moveIntoPlace(part, target.toPath());
+			Files.deleteIfExists(stateFile);
+			return target;
+
+		} catch (IOException e) {
+			throw new Pipeline2Exception("Unable to move "+part+" to "+target, e);
+		}
+	}
+
+	// replace the target atomically if the file system supports it
+	static void moveIntoPlace(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void discard(Path part, Path stateFile) throws Pipeline2Exception {
+		try {
+			Files.deleteIfExists(stateFile);
+			Files.deleteIfExists(part);
+		} catch (IOException e) {
+			throw new Pipeline2Exception("Unable to delete partial download "+part, e);
+		}
+	}
+
+	// copy from the channel to the file at the given position, returns the number of bytes copied
+	static long transfer(ReadableByteChannel from, FileChannel to, long position, long count) throws IOException {
+		long transferred = 0;
+		while (transferred < count) {
+			long n = to.transferFrom(from, position + transferred, Math.min(count - transferred, CHECKPOINT_SIZE));
+			if (n <= 0) {
+				break;
+			}
+			transferred += n;
+		}
+		return transferred;
+	}
+
+	// "bytes 0-99/1000" -> {0, 99, 1000}
+	static long[] parseContentRange(String contentRange) {
+		if (contentRange == null) {
+			return null;
+		}
+		Matcher matcher = CONTENT_RANGE.matcher(contentRange.trim());
+		if (!matcher.matches() || "*".equals(matcher.group(3))) {
+			return null;
+		}
+		return new long[]{ Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)), Long.parseLong(matcher.group(3)) };
+	}
+
+	/* Which parts of the partial file have been received */
+	private static class State {
+
+		final Path file;
+		final long size;
+		final long chunkSize;
+		final String etag;
+		final String lastModified;
+		final AtomicLongArray done; // bytes received at the start of each chunk
+
+		State(Path file, long size, long chunkSize, String etag, String lastModified) {
+			this.file = file;
+			this.size = size;
+			this.chunkSize = chunkSize;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.done = new AtomicLongArray((int)Math.max(1, (size + chunkSize - 1) / chunkSize));
+		}
+
+		static State load(Path part, Path file) {
+			if (!Files.isRegularFile(part) || !Files.isRegularFile(file)) {
+				return null;
+			}
+			Properties properties = new Properties();
+			try (InputStream is = Files.newInputStream(file)) {
+				properties.load(is);
+				State state = new State(file,
+				                  Long.parseLong(properties.getProperty("size")),
+				                  Long.parseLong(properties.getProperty("chunk-size")),
+				                  properties.getProperty("etag"),
+				                  properties.getProperty("last-modified"));
+				for (int i = 0; i < state.chunks(); i++) {
+					state.done.set(i, Long.parseLong(properties.getProperty("chunk."+i, "0")));
+				}
+				return state;
+
+			} catch (IOException | RuntimeException e) {
+				Pipeline2Logger.logger().debug("Unable to read download state "+file+", starting over", e);
+				return null;
+			}
+		}
+
+		synchronized void save() throws Pipeline2Exception {
+			Properties properties = new Properties();
+			properties.setProperty("size", ""+size);
+			properties.setProperty("chunk-size", ""+chunkSize);
+			if (etag != null) {
+				properties.setProperty("etag", etag);
+			}
+			if (lastModified != null) {
+				properties.setProperty("last-modified", lastModified);
+			}
+			for (int i = 0; i < chunks(); i++) {
+				properties.setProperty("chunk."+i, ""+done.get(i));
+			}
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try {
+				try (OutputStream os = Files.newOutputStream(tmp)) {
+					properties.store(os, null);
+				}
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				throw new Pipeline2Exception("Unable to store download state "+file, e);
+			}
+		}
+
+		void saveQuietly() {
+			try {
+				save();
+			} catch (Pipeline2Exception e) {
+				Pipeline2Logger.logger().error("Unable to store download state", e);
+			}
+		}
+
+		// copy a response body into a chunk, checkpointing the state as it goes
+		void receive(int chunk, ReadableByteChannel body, FileChannel channel) throws IOException {
+			while (!isComplete(chunk)) {
+				long position = start(chunk) + done.get(chunk);
+				long n = transfer(body, channel, position, Math.min(CHECKPOINT_SIZE, end(chunk) + 1 - position));
+				if (n <= 0) {
+					break;
+				}
+				done.addAndGet(chunk, n);
+				try {
+					save();
+				} catch (Pipeline2Exception e) {
+					throw new IOException(e);
+				}
+			}
+		}
+
+		// a strong ETag, or else the Last-Modified date, as specified for If-Range
+		String validator() {
+			if (etag != null && !etag.startsWith("W/")) {
+				return etag;
+			}
+			return lastModified;
+		}
+
+		int chunks() {
+			return done.length();
+		}
+
+		long start(int chunk) {
+			return chunk * chunkSize;
+		}
+
+		long end(int chunk) {
+			return Math.min(size, (chunk + 1) * chunkSize) - 1;
+		}
+
+		int chunkAt(long position) {
+			return (int)(position / chunkSize);
+		}
+
+		boolean isComplete(int chunk) {
+			return start(chunk) + done.get(chunk) > end(chunk);
+		}
+
+		int firstIncompleteChunk() {
+			for (int i = 0; i < chunks(); i++) {
+				if (!isComplete(i)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,18 @@
+package org.daisy.pipeline.client.http;
+
+/**
+ * Receives progress notifications while a request body is being uploaded.
+ */
+public interface UploadProgressListener {
+
+	/**
+	 * Called every time a chunk of the request body has been written.
+	 *
+	 * Notifications happen on the thread that writes the body, which
+	 * is not necessarily the thread that started the request.
+	 *
+	 * @param bytesWritten the total number of bytes written so far
+	 */
+	public void progress(long bytesWritten);
+
+}
@@ -1,33 +1,31 @@
 package org.daisy.pipeline.client.http;
 
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
 import org.daisy.pipeline.client.Pipeline2Exception;
 import org.daisy.pipeline.client.Pipeline2Logger;
+import org.daisy.pipeline.client.filestorage.JobStorage;
 import org.daisy.pipeline.client.models.*;
+import org.daisy.pipeline.client.utils.XML;
 import org.daisy.pipeline.client.utils.XPath;
 import org.w3c.dom.Document;
 
@@ -36,8 +34,13 @@ import org.w3c.dom.Document;
  * 
  * @see <a href="http://code.google.com/p/daisy-pipeline/wiki/WebServiceAPI">http://code.google.com/p/daisy-pipeline/wiki/WebServiceAPI</a>
  */
-public class WS implements WSInterface {
+public class WS implements WSInterface, Closeable {
 
+	private HttpTransport transport;
+	private WSResponseCache cache;
+	private WSRequestCoalescer coalescer;
+	private int parallelismThreshold = 1000;
+	
 	private String endpoint;
 	private String username;
 	private String secret;
@@ -46,6 +49,18 @@ public class WS implements WSInterface {
 	private boolean isLocal;
 
 	public WS() {
+		this(new Pipeline2HttpClient());
+	}
+
+	/**
+	 * Create a WS instance that uses the given HTTP transport.
+	 * 
+	 * The transport (and its connections) can be shared between several WS instances.
+	 * 
+	 * @param transport the HTTP transport to use, for instance a {@link Pipeline2HttpClient} or a {@link JavaHttpTransport}
+	 */
+	public WS(HttpTransport transport) {
+		this.transport = transport;
 		endpoint = "http://localhost:8181/ws";
 		username = "clientid";
 		secret = "supersecret";
@@ -57,6 +72,65 @@ public class WS implements WSInterface {
 		checkIfLocal();
 	}
 
+	/** Set which HTTP transport to use. Defaults to a {@link Pipeline2HttpClient}. The previous transport is not closed. */
+	public void setTransport(HttpTransport transport) {
+		this.transport = transport;
+	}
+
+	/** Get the HTTP transport in use. */
+	public HttpTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Set the cache used for scripts, data types and properties.
+	 * 
+	 * Caching is disabled by default. The cache, for instance an in-memory {@link WSResponseCache},
+	 * can be shared between several WS instances. Set to null to disable caching again.
+	 */
+	public void setCache(WSResponseCache cache) {
+		this.cache = cache;
+	}
+
+	/** Get the cache used for scripts, data types and properties, or null if caching is disabled. */
+	public WSResponseCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Let identical concurrent GET requests share a single HTTP request.
+	 * 
+	 * Applies to alive, the job list, individual jobs, the queue, the sizes and the cacheable
+	 * resources (scripts, data types and properties). Jobs and other models returned while
+	 * coalescing is enabled may be shared with other callers and must be treated as read-only.
+	 * Disabled (null) by default. The coalescer can be shared between several WS instances.
+	 */
+	public void setCoalescer(WSRequestCoalescer coalescer) {
+		this.coalescer = coalescer;
+	}
+
+	/** Get the request coalescer, or null if coalescing is disabled. */
+	public WSRequestCoalescer getCoalescer() {
+		return coalescer;
+	}
+
+	/**
+	 * Set the number of jobs in a job list (/jobs or /batch/{id}) from which on the jobs are
+	 * fully parsed in parallel, in the common fork-join pool, before they are returned.
+	 * Shorter lists are returned as before, with every job parsed lazily when it is first
+	 * accessed. See {@link StaxParser#parseJobs(InputStream, int)}.
+	 * 
+	 * Defaults to 1000. Use Integer.MAX_VALUE to never parse in parallel.
+	 */
+	public void setParallelismThreshold(int parallelismThreshold) {
+		this.parallelismThreshold = parallelismThreshold;
+	}
+
+	/** Get the number of jobs from which on a job list is parsed in parallel. */
+	public int getParallelismThreshold() {
+		return parallelismThreshold;
+	}
+
 	/** Set which Pipeline 2 Web API endpoint to use. Defaults to: "http://localhost:8181/ws" */
 	@Override
 	public void setEndpoint(String endpoint) {
@@ -96,9 +170,14 @@ public class WS implements WSInterface {
 
 	@Override
 	public Alive alive() {
-		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/alive", null, null, null);
+		if (coalescer != null) {
+			return coalescer.execute(coalescingKey("/alive"), () -> fetchAlive());
+		}
+		return fetchAlive();
+	}
 
+	private Alive fetchAlive() {
+		try (WSResponse response = transport.get(endpoint, "/alive", null, null, null)) {
 			if (response.status >= 200 && response.status < 300) {
 				return new Alive(response.asXml());
 
@@ -115,9 +194,7 @@ public class WS implements WSInterface {
 
 	@Override
 	public boolean halt() {
-		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/admin/halt/"+shutDownKey, username, secret, null);
-
+		try (WSResponse response = transport.get(endpoint, "/admin/halt/"+shutDownKey, username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
 				return true;
 
@@ -135,15 +212,8 @@ public class WS implements WSInterface {
 	@Override
 	public List<Property> getProperties() {
 		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/admin/properties", username, secret, null);
-
-			if (response.status >= 200 && response.status < 300) {
-				return Property.parsePropertiesXml(response.asXml());
-
-			} else {
-				error(response);
-				return null;
-			}
+			Document xml = getCacheable("/admin/properties");
+			return xml == null ? null : Property.parsePropertiesXml(xml);
 
 		} catch (Pipeline2Exception e) {
 			Pipeline2Logger.logger().error("failed to parse /admin/properties response", e);
@@ -154,15 +224,8 @@ public class WS implements WSInterface {
 	@Override
 	public List<Script> getScripts() {
 		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/scripts", username, secret, null);
-
-			if (response.status >= 200 && response.status < 300) {
-				return Script.parseScriptsXml(response.asXml());
-
-			} else {
-				error(response);
-				return null;
-			}
+			Document xml = getCacheable("/scripts");
+			return xml == null ? null : Script.parseScriptsXml(xml);
 
 		} catch (Pipeline2Exception e) {
 			Pipeline2Logger.logger().error("failed to parse /scripts response", e);
@@ -173,15 +236,8 @@ public class WS implements WSInterface {
 	@Override
 	public Script getScript(String scriptId) {
 		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/scripts/"+scriptId, username, secret, null);
-
-			if (response.status >= 200 && response.status < 300) {
-				return new Script(response.asXml());
-
-			} else {
-				error(response);
-				return null;
-			}
+			Document xml = getCacheable("/scripts/"+scriptId);
+			return xml == null ? null : new Script(xml);
 
 		} catch (Pipeline2Exception e) {
 			Pipeline2Logger.logger().error("failed to parse /scripts/"+scriptId+" response", e);
@@ -192,15 +248,8 @@ public class WS implements WSInterface {
 	@Override
 	public Map<String,String> getDataTypes() {
 		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/datatypes", username, secret, null);
-
-			if (response.status >= 200 && response.status < 300) {
-				return DataType.getDataTypes(response.asXml());
-
-			} else {
-				error(response);
-				return null;
-			}
+			Document xml = getCacheable("/datatypes");
+			return xml == null ? null : DataType.getDataTypes(xml);
 
 		} catch (Pipeline2Exception e) {
 			Pipeline2Logger.logger().error("failed to parse /datatypes response", e);
@@ -211,15 +260,8 @@ public class WS implements WSInterface {
 	@Override
 	public DataType getDataType(String dataTypeId) {
 		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/datatypes/"+dataTypeId, username, secret, null);
-
-			if (response.status >= 200 && response.status < 300) {
-				return DataType.getDataType(response.asXml());
-
-			} else {
-				error(response);
-				return null;
-			}
+			Document xml = getCacheable("/datatypes/"+dataTypeId);
+			return xml == null ? null : DataType.getDataType(xml);
 
 		} catch (Pipeline2Exception e) {
 			Pipeline2Logger.logger().error("failed to parse /datatypes/"+dataTypeId+" response", e);
@@ -229,11 +271,16 @@ public class WS implements WSInterface {
 
 	@Override
 	public List<Job> getJobs() {
-		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/jobs", username, secret, null);
+		if (coalescer != null) {
+			return coalescer.execute(coalescingKey("/jobs"), () -> materialize(fetchJobs()));
+		}
+		return fetchJobs();
+	}
 
+	private List<Job> fetchJobs() {
+		try (WSResponse response = transport.get(endpoint, "/jobs", username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
-				return Job.parseJobsXml(response.asXml());
+				return StaxParser.parseJobs(response.asStream(), parallelismThreshold);
 
 			} else {
 				error(response);
@@ -248,20 +295,22 @@ public class WS implements WSInterface {
 
 	@Override
 	public Job getJob(String jobId, long msgSeq) {
-		try {
-			WSResponse response;
-
-			if (msgSeq <= 0) {
-				response = Pipeline2HttpClient.get(endpoint, "/jobs/"+jobId, username, secret, null);
-
-			} else {
-				Map<String,String> parameters = new HashMap<String,String>();
-				parameters.put("msgSeq", msgSeq+"");
-				response = Pipeline2HttpClient.get(endpoint, "/jobs/"+jobId, username, secret, parameters);
-			}
+		if (coalescer != null) {
+			return coalescer.execute(coalescingKey("/jobs/"+jobId+"?msgSeq="+msgSeq), () -> materialize(fetchJob(jobId, msgSeq)));
+		}
+		return fetchJob(jobId, msgSeq);
+	}
 
+	private Job fetchJob(String jobId, long msgSeq) {
+		Map<String,String> parameters = null;
+		if (msgSeq > 0) {
+			parameters = new HashMap<String,String>();
+			parameters.put("msgSeq", msgSeq+"");
+		}
+		
+		try (WSResponse response = transport.get(endpoint, "/jobs/"+jobId, username, secret, parameters)) {
 			if (response.status >= 200 && response.status < 300) {
-				return new Job(response.asXml());
+				return StaxParser.parseJob(response.asStream());
 
 			} else {
 				error(response);
@@ -276,53 +325,31 @@ public class WS implements WSInterface {
 
 	@Override
 	public Job postJob(Job job) {
-		try {
-			WSResponse response = null;
+		return postJob(job, null);
+	}
 
-			Document jobRequestDocument;
-			
+	/**
+	 * Submit a job to the engine, and get notified of the upload progress
+	 * 
+	 * If the engine is not running on the same system, the job request and the ZIP archive
+	 * of the job context are generated while they are being uploaded.
+	 * 
+	 * @param job the job to post
+	 * @param progressListener notified while the job is being uploaded, can be null
+	 * @return the posted job
+	 */
+	public Job postJob(Job job, UploadProgressListener progressListener) {
+		WSResponse response = null;
+		try {
 			if (isLocal) {
-				jobRequestDocument = job.toJobRequestXml(true);
-				
-				response = Pipeline2HttpClient.postXml(endpoint, "/jobs", username, secret, jobRequestDocument);
+				response = transport.postXml(endpoint, "/jobs", username, secret, job.toJobRequestXml(true));
 
 			} else {
-				File contextZipFile = job.getJobStorage().makeContextZip();
-				jobRequestDocument = job.toJobRequestXml(false);
-				
-				try {
-					File jobRequestFile = null;
-
-					jobRequestFile = File.createTempFile("jobRequest", ".xml");
-					BufferedWriter bw = new BufferedWriter(new FileWriter(jobRequestFile));
-					StringWriter writer = new StringWriter();
-					Transformer transformer = TransformerFactory.newInstance().newTransformer();
-					transformer.transform(new DOMSource(jobRequestDocument), new StreamResult(writer));
-					bw.write(writer.toString());
-					bw.close();
-
-					Map<String,File> parts = new HashMap<String,File>();
-					parts.put("job-request", jobRequestFile);
-					parts.put("job-data", contextZipFile);
-
-					response = Pipeline2HttpClient.postMultipart(endpoint, "/jobs", username, secret, parts);
-
-				} catch (IOException e) {
-					Pipeline2Logger.logger().error("Could not create and/or write to temporary jobRequest file", e);
-
-				} catch (TransformerConfigurationException e) {
-					Pipeline2Logger.logger().error("Could not serialize jobRequest XML", e);
-
-				} catch (TransformerFactoryConfigurationError e) {
-					Pipeline2Logger.logger().error("Could not serialize jobRequest XML", new Exception(e));
-
-				} catch (TransformerException e) {
-					Pipeline2Logger.logger().error("Could not serialize jobRequest XML", e);
-				}
+				response = transport.postMultipart(endpoint, "/jobs", username, secret, jobRequestBody(job, progressListener));
 			}
 
-			if (response != null && response.status >= 200 && response.status < 300) {
-				return new Job(response.asXml());
+			if (response.status >= 200 && response.status < 300) {
+				return StaxParser.parseJob(response.asStream());
 
 			} else {
 				error(response);
@@ -332,14 +359,17 @@ public class WS implements WSInterface {
 		} catch (Pipeline2Exception e) {
 			Pipeline2Logger.logger().error("failed to parse /jobs response", e);
 			return null;
+
+		} finally {
+			if (response != null) {
+				response.close();
+			}
 		}
 	}
 
 	@Override
 	public boolean deleteJob(String jobId) {
-		try {
-			WSResponse response = Pipeline2HttpClient.delete(endpoint, "/jobs/"+jobId, username, secret, null);
-
+		try (WSResponse response = transport.delete(endpoint, "/jobs/"+jobId, username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
 				return true;
 
@@ -356,11 +386,16 @@ public class WS implements WSInterface {
 
 	@Override
 	public JobSizes getSizes() {
-		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/admin/sizes", username, secret, null);
+		if (coalescer != null) {
+			return coalescer.execute(coalescingKey("/admin/sizes"), () -> fetchSizes());
+		}
+		return fetchSizes();
+	}
 
+	private JobSizes fetchSizes() {
+		try (WSResponse response = transport.get(endpoint, "/admin/sizes", username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
-				return new JobSizes(response.asXml());
+				return StaxParser.parseSizes(response.asStream());
 
 			} else {
 				error(response);
@@ -375,11 +410,9 @@ public class WS implements WSInterface {
 
 	@Override
 	public List<Job> getBatch(String batchId) {
-		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/batch/"+batchId, username, secret, null);
-
+		try (WSResponse response = transport.get(endpoint, "/batch/"+batchId, username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
-				return Job.parseJobsXml(response.asXml());
+				return StaxParser.parseJobs(response.asStream(), parallelismThreshold);
 
 			} else {
 				error(response);
@@ -394,9 +427,7 @@ public class WS implements WSInterface {
 
 	@Override
 	public boolean deleteBatch(String batchId) {
-		try {
-			WSResponse response = Pipeline2HttpClient.delete(endpoint, "/batch/"+batchId, username, secret, null);
-
+		try (WSResponse response = transport.delete(endpoint, "/batch/"+batchId, username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
 				return true;
 
@@ -415,9 +446,11 @@ public class WS implements WSInterface {
 	public String getJobLog(String jobId) {
 		try {
 			Pipeline2Logger.logger().debug("getting log...");
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/jobs/"+jobId+"/log", username, secret, null);
-			String responseText = response.asText();
-			return responseText;
+			try (WSResponse response = transport.get(endpoint, "/jobs/"+jobId+"/log", username, secret, null)) {
+				// truncated if it is larger than the text limit
+				String responseText = response.asText();
+				return responseText;
+			}
 
 		} catch (Pipeline2Exception e) {
 			Pipeline2Logger.logger().error("failed to parse /jobs/"+jobId+"/log response as text", e);
@@ -425,6 +458,47 @@ public class WS implements WSInterface {
 		}
 	}
 
+	/**
+	 * Get the job log as a stream, for logs that are too large to hold in memory as a String.
+	 *
+	 * The log is downloaded right away, into a temporary file if it is larger than the
+	 * memory threshold of WSResponse, so that the connection is released immediately.
+	 * The temporary file is removed when the stream is closed.
+	 *
+	 * @param jobId the job ID
+	 * @return the log, or null if it could not be downloaded
+	 */
+	public InputStream getJobLogAsStream(String jobId) {
+		WSResponse response = null;
+		try {
+			response = transport.get(endpoint, "/jobs/"+jobId+"/log", username, secret, null);
+			if (response.status >= 200 && response.status < 300) {
+				final WSResponse log = response.buffer();
+				response = null;
+				return new FilterInputStream(log.asStream()) {
+					@Override
+					public void close() throws IOException {
+						super.close();
+						log.close();
+					}
+				};
+
+			} else {
+				error(response);
+				return null;
+			}
+
+		} catch (Pipeline2Exception e) {
+			Pipeline2Logger.logger().error("failed to get /jobs/"+jobId+"/log response as InputStream", e);
+			return null;
+
+		} finally {
+			if (response != null) {
+				response.close();
+			}
+		}
+	}
+
 	@Override
 	public InputStream getJobResultAsStream(String jobId, String href) {
 		try {
@@ -432,7 +506,8 @@ public class WS implements WSInterface {
 				href = "";
 			else
 				href = "/"+href.replace(" ", "%20");
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/jobs/"+jobId+"/result"+href, username, secret, null);
+			// the connection is released when the caller closes the stream
+			WSResponse response = transport.get(endpoint, "/jobs/"+jobId+"/result"+href, username, secret, null);
 			return response.asStream();
 
 		} catch (Pipeline2Exception e) {
@@ -516,8 +591,9 @@ public class WS implements WSInterface {
 		} else {
 			// download the file through the Web API
 			try {
-				WSResponse response = Pipeline2HttpClient.get(endpoint, "/jobs/"+jobId+"/result"+("".equals(result.relativeHref) ? "" : "/"+result.relativeHref), username, secret, null);
-				return response.asFile();
+				try (WSResponse response = transport.get(endpoint, "/jobs/"+jobId+"/result"+("".equals(result.relativeHref) ? "" : "/"+result.relativeHref), username, secret, null)) {
+					return response.asFile();
+				}
 				
 			} catch (Pipeline2Exception e) {
 				Pipeline2Logger.logger().error("Unable to retrieve file from pipeline engine: '"+result.relativeHref+"'", e);
@@ -528,13 +604,68 @@ public class WS implements WSInterface {
 		return resultFile;
 	}
 
+	/**
+	 * Download results from a job directly to the given file.
+	 * 
+	 * The response body is written to a temporary file next to the target with
+	 * {@link FileChannel#transferFrom}, which is then renamed to the target (atomically
+	 * if the file system supports it). The result is always downloaded through the
+	 * Web API, also when the engine is running on the same system.
+	 * 
+	 * @param jobId the job ID
+	 * @param href the relative path to the desired job result file, or "" for all results
+	 * @param target the file to write the result to
+	 * @return the target, or null if the download failed
+	 */
+	@Override
+	public Path downloadJobResult(String jobId, String href, Path target) {
+		String path = "/jobs/"+jobId+"/result"+(href == null || "".equals(href) ? "" : "/"+href.replace(" ", "%20"));
+		Path part = null;
+		try (WSResponse response = transport.get(endpoint, path, username, secret, null)) {
+			if (response.status < 200 || response.status >= 300) {
+				error(response);
+				return null;
+			}
+			Path directory = target.toAbsolutePath().getParent();
+			part = Files.createTempFile(directory, "."+target.getFileName(), ".part");
+			try (ReadableByteChannel body = Channels.newChannel(response.asStream());
+			     FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+				long transferred = ResultDownloader.transfer(body, channel, 0, Long.MAX_VALUE);
+				if (response.size != null && transferred != response.size) {
+					throw new IOException("Connection closed after "+transferred+" of "+response.size+" bytes");
+				}
+			}
+			ResultDownloader.moveIntoPlace(part, target);
+			part = null;
+			return target;
+
+		} catch (Pipeline2Exception | IOException e) {
+			Pipeline2Logger.logger().error("Unable to download "+path+" to "+target, e);
+			return null;
+
+		} finally {
+			if (part != null) {
+				try {
+					Files.deleteIfExists(part);
+				} catch (IOException e) {
+					Pipeline2Logger.logger().debug("Unable to delete "+part, e);
+				}
+			}
+		}
+	}
+
 	@Override
 	public JobQueue getQueue() {
-		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/queue", username, secret, null);
+		if (coalescer != null) {
+			return coalescer.execute(coalescingKey("/queue"), () -> fetchQueue());
+		}
+		return fetchQueue();
+	}
 
+	private JobQueue fetchQueue() {
+		try (WSResponse response = transport.get(endpoint, "/queue", username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
-				return new JobQueue(response.asXml());
+				return StaxParser.parseQueue(response.asStream());
 
 			} else {
 				error(response);
@@ -549,11 +680,9 @@ public class WS implements WSInterface {
 
 	@Override
 	public JobQueue moveUpQueue(String jobId) {
-		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/queue/up/"+jobId, username, secret, null);
-
+		try (WSResponse response = transport.get(endpoint, "/queue/up/"+jobId, username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
-				return new JobQueue(response.asXml());
+				return StaxParser.parseQueue(response.asStream());
 
 			} else {
 				error(response);
@@ -568,11 +697,9 @@ public class WS implements WSInterface {
 
 	@Override
 	public JobQueue moveDownQueue(String jobId) {
-		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/queue/down/"+jobId, username, secret, null);
-
+		try (WSResponse response = transport.get(endpoint, "/queue/down/"+jobId, username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
-				return new JobQueue(response.asXml());
+				return StaxParser.parseQueue(response.asStream());
 
 			} else {
 				error(response);
@@ -587,9 +714,7 @@ public class WS implements WSInterface {
 
 	@Override
 	public List<Client> getClients() {
-		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/admin/clients", username, secret, null);
-
+		try (WSResponse response = transport.get(endpoint, "/admin/clients", username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
 				return Client.parseClientsXml(response.asXml());
 
@@ -606,9 +731,7 @@ public class WS implements WSInterface {
 
 	@Override
 	public Client getClient(String clientId) {
-		try {
-			WSResponse response = Pipeline2HttpClient.get(endpoint, "/admin/clients/"+clientId, username, secret, null);
-
+		try (WSResponse response = transport.get(endpoint, "/admin/clients/"+clientId, username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
 				return new Client(response.asXml());
 
@@ -625,9 +748,7 @@ public class WS implements WSInterface {
 
 	@Override
 	public boolean deleteClient(String clientId) {
-		try {
-			WSResponse response = Pipeline2HttpClient.delete(endpoint, "/admin/clients/"+clientId, username, secret, null);
-
+		try (WSResponse response = transport.delete(endpoint, "/admin/clients/"+clientId, username, secret, null)) {
 			if (response.status >= 200 && response.status < 300) {
 				return true;
 
@@ -642,8 +763,107 @@ public class WS implements WSInterface {
 		}
 	}
 
+	/**
+	 * Shut down the HTTP transport and close all pooled connections.
+	 * 
+	 * The WS instance can not be used anymore afterwards.
+	 */
+	@Override
+	public void close() {
+		transport.close();
+	}
+
+	// GET a resource that rarely changes, through the cache if there is one
+	private Document getCacheable(String path) throws Pipeline2Exception {
+		if (coalescer != null) {
+			// the document is shared, so each caller gets its own copy to build models from
+			Document shared;
+			try {
+				shared = coalescer.execute(coalescingKey(path), () -> {
+					try {
+						return fetchCacheable(path);
+					} catch (Pipeline2Exception e) {
+						throw new CoalescedException(e);
+					}
+				});
+			} catch (CoalescedException e) {
+				throw (Pipeline2Exception)e.getCause();
+			}
+			if (shared == null) {
+				return null;
+			}
+			synchronized (shared) {
+				return (Document)shared.cloneNode(true);
+			}
+		}
+		return fetchCacheable(path);
+	}
+
+	private Document fetchCacheable(String path) throws Pipeline2Exception {
+		if (cache != null) {
+			return cache.get(transport, endpoint, path, username, secret);
+		}
+		try (WSResponse response = transport.get(endpoint, path, username, secret, null)) {
+			if (response.status >= 200 && response.status < 300) {
+				return response.asXml();
+
+			} else {
+				error(response);
+				return null;
+			}
+		}
+	}
+
+	// identifies a GET request for coalescing
+	private String coalescingKey(String path) {
+		return endpoint + " " + username + " " + path;
+	}
+
+	// parse everything up front, so that a job can be shared between threads
+	private static Job materialize(Job job) {
+		if (job != null) {
+			job.materialize();
+		}
+		return job;
+	}
+
+	private static List<Job> materialize(List<Job> jobs) {
+		if (jobs != null) {
+			for (Job job : jobs) {
+				materialize(job);
+			}
+		}
+		return jobs;
+	}
+
+	// carries a checked exception out of a coalesced request
+	private static class CoalescedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		CoalescedException(Pipeline2Exception cause) {
+			super(cause);
+		}
+	}
+
+	// the job request and the job context, generated while the request is being sent
+	static MultipartBody jobRequestBody(Job job, UploadProgressListener progressListener) {
+		Document jobRequestDocument = job.toJobRequestXml(false);
+		JobStorage jobStorage = job.getJobStorage();
+		return new MultipartBody()
+		       .addPart("job-request", "jobRequest.xml", "application/octet-stream", os -> XML.write(jobRequestDocument, os))
+		       .addPart("job-data", "context.zip", "application/octet-stream", jobStorage::writeContextZip)
+		       .setProgressListener(progressListener);
+	}
+
+	String getSecret() {
+		return secret;
+	}
+
+	boolean isLocal() {
+		return isLocal;
+	}
+
 	// for parsing errors when they occur
-	private String error(WSResponse response) {
+	static String error(WSResponse response) {
 		if (response == null) {
 			return "An error occured while parsing the error recieved from the Pipeline 2 Web API.";
 		}
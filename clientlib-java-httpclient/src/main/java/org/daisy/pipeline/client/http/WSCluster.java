@@ -0,0 +1,605 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.daisy.pipeline.client.Pipeline2Logger;
+import org.daisy.pipeline.client.models.*;
+
+/**
+ * Methods for communicating with several Pipeline 2 engines as if they were one.
+ *
+ * New jobs are submitted to the healthy engine with the shortest queue. Calls for an
+ * existing job (getJob, deleteJob, results, log, queue moves) are sent to the engine
+ * that owns the job. Calls that concern all jobs (getJobs, getQueue, getSizes, batches)
+ * are sent to every engine and the results are merged. Scripts, data types, properties
+ * and clients are expected to be the same on every engine, and are taken from the
+ * first engine that answers.
+ *
+ * Each engine is a {@link WS} instance with its own endpoint and credentials. The engines
+ * can share a single {@link HttpTransport}.
+ */
+public class WSCluster implements WSInterface, Closeable {
+
+	/** Default time in milliseconds during which the job lists are not fetched again to look up an unknown job. */
+	public static final long DEFAULT_OWNER_REFRESH_INTERVAL = 5000;
+
+	private static class Engine {
+		final WS ws;
+		final AtomicInteger submitting = new AtomicInteger(); // jobs being posted right now
+		Engine(WS ws) {
+			this.ws = ws;
+		}
+	}
+
+	private final List<Engine> engines = new CopyOnWriteArrayList<Engine>();
+	private final Map<String,Engine> owners = new ConcurrentHashMap<String,Engine>();
+	private final AtomicInteger next = new AtomicInteger();
+	private final Object ownersLock = new Object();
+	private volatile long ownersRefreshed = 0; // when the job lists of all engines were last fetched
+	private volatile long ownersRefreshAttempted = 0; // when refreshOwners last tried, whether or not all engines answered
+	private volatile long ownerRefreshInterval = DEFAULT_OWNER_REFRESH_INTERVAL;
+	private final ExecutorService probes = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "pipeline2-cluster-probe");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Create a cluster of engines.
+	 *
+	 * @param engines the engines, each configured with its own endpoint and credentials
+	 */
+	public WSCluster(WS... engines) {
+		for (WS ws : engines) {
+			addEngine(ws);
+		}
+	}
+
+	/**
+	 * Add an engine to the cluster.
+	 *
+	 * @param ws the engine, configured with its own endpoint and credentials
+	 */
+	public void addEngine(WS ws) {
+		engines.add(new Engine(ws));
+		// the new engine may own jobs that were looked up before
+		ownersRefreshed = 0;
+		ownersRefreshAttempted = 0;
+	}
+
+	/**
+	 * Remove an engine from the cluster. Jobs owned by the engine are no longer accessible through the cluster.
+	 *
+	 * @param ws the engine
+	 * @return whether or not the engine was part of the cluster
+	 */
+	public boolean removeEngine(WS ws) {
+		for (Engine engine : engines) {
+			if (engine.ws == ws) {
+				engines.remove(engine);
+				owners.values().removeIf(owner -> owner == engine);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Get the engines in the cluster. */
+	public List<WS> getEngines() {
+		List<WS> list = new ArrayList<WS>();
+		for (Engine engine : engines) {
+			list.add(engine.ws);
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Get the engine that owns a job.
+	 *
+	 * If the owner is not known yet, the job lists of all engines are fetched to find it,
+	 * unless they were fetched less than the owner refresh interval ago.
+	 *
+	 * @param jobId the job ID
+	 * @return the engine, or null if no engine has the job
+	 */
+	public WS getEngine(String jobId) {
+		Engine engine = owner(jobId);
+		return engine == null ? null : engine.ws;
+	}
+
+
+	// ---------- Configuration ----------
+
+	/**
+	 * Set how often the job lists of all engines may be fetched to look up the owner of an unknown job.
+	 *
+	 * Looking up jobs that no engine has, for instance jobs that were deleted, would otherwise
+	 * fetch all job lists every time. Jobs that are submitted through another client during the
+	 * interval are found once it has passed.
+	 *
+	 * @param interval the interval in milliseconds, defaults to {@link #DEFAULT_OWNER_REFRESH_INTERVAL}
+	 */
+	public void setOwnerRefreshInterval(long interval) {
+		this.ownerRefreshInterval = interval;
+	}
+
+	/**
+	 * Add an engine for the given endpoint, unless the cluster already has an engine with that endpoint.
+	 *
+	 * The new engine uses the transport, credentials and shutdown key of the first engine in
+	 * the cluster, or the defaults of {@link WS} if the cluster is empty. To give an engine its
+	 * own settings, use {@link #addEngine(WS)} instead.
+	 *
+	 * @param endpoint the endpoint, or null to do nothing
+	 */
+	@Override
+	public void setEndpoint(String endpoint) {
+		if (endpoint == null) {
+			return;
+		}
+		Engine first = null;
+		for (Engine engine : engines) {
+			if (endpoint.equals(engine.ws.getEndpoint())) {
+				return;
+			}
+			if (first == null) {
+				first = engine;
+			}
+		}
+		WS ws;
+		if (first == null) {
+			ws = new WS();
+		} else {
+			ws = new WS(first.ws.getTransport());
+			ws.setCredentials(first.ws.getUsername(), first.ws.getSecret());
+			ws.setShutDownKey(first.ws.getShutDownKey());
+		}
+		ws.setEndpoint(endpoint);
+		addEngine(ws);
+	}
+
+	/** Return the endpoint of the first engine, or null if the cluster is empty. */
+	@Override
+	public String getEndpoint() {
+		for (Engine engine : engines) {
+			return engine.ws.getEndpoint();
+		}
+		return null;
+	}
+
+	/** Set the same credentials on every engine. */
+	@Override
+	public void setCredentials(String username, String secret) {
+		for (Engine engine : engines) {
+			engine.ws.setCredentials(username, secret);
+		}
+	}
+
+	/** Return the username of the first engine, or null if the cluster is empty. */
+	@Override
+	public String getUsername() {
+		for (Engine engine : engines) {
+			return engine.ws.getUsername();
+		}
+		return null;
+	}
+
+	/** Set the same shutdown key on every engine. */
+	@Override
+	public void setShutDownKey(String key) {
+		for (Engine engine : engines) {
+			engine.ws.setShutDownKey(key);
+		}
+	}
+
+	/** Return the shutdown key of the first engine, or null if the cluster is empty. */
+	@Override
+	public String getShutDownKey() {
+		for (Engine engine : engines) {
+			return engine.ws.getShutDownKey();
+		}
+		return null;
+	}
+
+
+	// ---------- Engine ----------
+
+	/** Get information about the first healthy engine. */
+	@Override
+	public Alive alive() {
+		for (Engine engine : engines) {
+			Alive alive = engine.ws.alive();
+			if (isHealthy(alive)) {
+				return alive;
+			}
+		}
+		return null;
+	}
+
+	/** Stop all engines. */
+	@Override
+	public boolean halt() {
+		boolean success = true;
+		for (Engine engine : engines) {
+			success &= engine.ws.halt();
+		}
+		return success;
+	}
+
+	@Override
+	public List<Property> getProperties() {
+		for (Engine engine : engines) {
+			List<Property> properties = engine.ws.getProperties();
+			if (properties != null) {
+				return properties;
+			}
+		}
+		return null;
+	}
+
+
+	// ---------- Scripts ----------
+
+	@Override
+	public Script getScript(String scriptId) {
+		for (Engine engine : engines) {
+			Script script = engine.ws.getScript(scriptId);
+			if (script != null) {
+				return script;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public List<Script> getScripts() {
+		for (Engine engine : engines) {
+			List<Script> scripts = engine.ws.getScripts();
+			if (scripts != null) {
+				return scripts;
+			}
+		}
+		return null;
+	}
+
+
+	// ---------- Data Types ----------
+
+	@Override
+	public DataType getDataType(String dataTypeId) {
+		for (Engine engine : engines) {
+			DataType dataType = engine.ws.getDataType(dataTypeId);
+			if (dataType != null) {
+				return dataType;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Map<String,String> getDataTypes() {
+		for (Engine engine : engines) {
+			Map<String,String> dataTypes = engine.ws.getDataTypes();
+			if (dataTypes != null) {
+				return dataTypes;
+			}
+		}
+		return null;
+	}
+
+
+	// ---------- Jobs ----------
+
+	/** Get the jobs of all engines. Engines that can not be reached are left out. */
+	@Override
+	public List<Job> getJobs() {
+		List<Job> jobs = null;
+		Set<String> known = new HashSet<String>(owners.keySet());
+		Set<String> seen = new HashSet<String>();
+		boolean complete = true;
+		for (Engine engine : engines) {
+			List<Job> engineJobs = engine.ws.getJobs();
+			if (engineJobs != null) {
+				if (jobs == null) {
+					jobs = new ArrayList<Job>();
+				}
+				for (Job job : engineJobs) {
+					owners.put(job.getId(), engine);
+					seen.add(job.getId());
+				}
+				jobs.addAll(engineJobs);
+			} else {
+				complete = false;
+			}
+		}
+		if (complete) {
+			// forget the jobs that no engine has anymore, but not the ones that were posted in the meantime
+			known.removeAll(seen);
+			owners.keySet().removeAll(known);
+			ownersRefreshed = System.currentTimeMillis();
+		}
+		return jobs;
+	}
+
+	@Override
+	public Job getJob(String jobId, long msgSeq) {
+		Engine engine = owner(jobId);
+		return engine == null ? null : engine.ws.getJob(jobId, msgSeq);
+	}
+
+	@Override
+	public Job postJob(Job job) {
+		return postJob(job, null);
+	}
+
+	/**
+	 * Submit a job to the healthy engine with the shortest queue.
+	 *
+	 * The job is not resubmitted to another engine if the submission fails, because
+	 * the engine may have accepted it anyway.
+	 *
+	 * @param job the job to post
+	 * @param progressListener notified while the job is being uploaded, can be null
+	 * @return the posted job, or null if no engine is available or the submission failed
+	 */
+	public Job postJob(Job job, UploadProgressListener progressListener) {
+		Engine engine = selectEngine();
+		if (engine == null) {
+			Pipeline2Logger.logger().error("No healthy engine available to submit the job to");
+			return null;
+		}
+		engine.submitting.incrementAndGet();
+		try {
+			Job posted = engine.ws.postJob(job, progressListener);
+			if (posted != null && posted.getId() != null) {
+				owners.put(posted.getId(), engine);
+			}
+			return posted;
+
+		} finally {
+			engine.submitting.decrementAndGet();
+		}
+	}
+
+	@Override
+	public boolean deleteJob(String jobId) {
+		Engine engine = owner(jobId);
+		if (engine != null && engine.ws.deleteJob(jobId)) {
+			owners.remove(jobId);
+			return true;
+		}
+		return false;
+	}
+
+	/** Get the job sizes of all engines. Engines that can not be reached are left out. */
+	@Override
+	public JobSizes getSizes() {
+		JobSizes sizes = null;
+		for (Engine engine : engines) {
+			JobSizes engineSizes = engine.ws.getSizes();
+			if (engineSizes != null) {
+				if (sizes == null) {
+					sizes = new JobSizes();
+				}
+				if (engineSizes.total != null) {
+					sizes.total += engineSizes.total;
+				}
+				sizes.jobSizes.putAll(engineSizes.jobSizes);
+			}
+		}
+		return sizes;
+	}
+
+	/** Get the jobs with the given batchId from all engines. */
+	@Override
+	public List<Job> getBatch(String batchId) {
+		List<Job> jobs = null;
+		for (Engine engine : engines) {
+			List<Job> engineJobs = engine.ws.getBatch(batchId);
+			if (engineJobs != null) {
+				if (jobs == null) {
+					jobs = new ArrayList<Job>();
+				}
+				for (Job job : engineJobs) {
+					owners.put(job.getId(), engine);
+				}
+				jobs.addAll(engineJobs);
+			}
+		}
+		return jobs;
+	}
+
+	/** Delete the jobs with the given batchId on all engines. */
+	@Override
+	public boolean deleteBatch(String batchId) {
+		boolean success = true;
+		for (Engine engine : engines) {
+			success &= engine.ws.deleteBatch(batchId);
+		}
+		return success;
+	}
+
+	@Override
+	public String getJobLog(String jobId) {
+		Engine engine = owner(jobId);
+		return engine == null ? null : engine.ws.getJobLog(jobId);
+	}
+
+	@Override
+	public InputStream getJobResultAsStream(String jobId, String href) {
+		Engine engine = owner(jobId);
+		return engine == null ? null : engine.ws.getJobResultAsStream(jobId, href);
+	}
+
+	@Override
+	public File getJobResultAsFile(String jobId, String href) {
+		Engine engine = owner(jobId);
+		return engine == null ? null : engine.ws.getJobResultAsFile(jobId, href);
+	}
+
+	@Override
+	public Path downloadJobResult(String jobId, String href, Path target) {
+		Engine engine = owner(jobId);
+		return engine == null ? null : engine.ws.downloadJobResult(jobId, href, target);
+	}
+
+	/** Get the queues of all engines as one list. Engines that can not be reached are left out. */
+	@Override
+	public JobQueue getQueue() {
+		JobQueue queue = null;
+		for (Engine engine : engines) {
+			JobQueue engineQueue = engine.ws.getQueue();
+			if (engineQueue != null) {
+				if (queue == null) {
+					queue = new JobQueue();
+				}
+				queue.queue.addAll(engineQueue.queue);
+			}
+		}
+		return queue;
+	}
+
+	/** Move a job up the queue of the engine that owns it. */
+	@Override
+	public JobQueue moveUpQueue(String jobId) {
+		Engine engine = owner(jobId);
+		return engine == null ? null : engine.ws.moveUpQueue(jobId);
+	}
+
+	/** Move a job down the queue of the engine that owns it. */
+	@Override
+	public JobQueue moveDownQueue(String jobId) {
+		Engine engine = owner(jobId);
+		return engine == null ? null : engine.ws.moveDownQueue(jobId);
+	}
+
+
+	// ---------- Clients ----------
+
+	@Override
+	public List<Client> getClients() {
+		for (Engine engine : engines) {
+			List<Client> clients = engine.ws.getClients();
+			if (clients != null) {
+				return clients;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Client getClient(String clientId) {
+		for (Engine engine : engines) {
+			Client client = engine.ws.getClient(clientId);
+			if (client != null) {
+				return client;
+			}
+		}
+		return null;
+	}
+
+	/** Delete a client on all engines. */
+	@Override
+	public boolean deleteClient(String clientId) {
+		boolean success = true;
+		for (Engine engine : engines) {
+			success &= engine.ws.deleteClient(clientId);
+		}
+		return success;
+	}
+
+	/**
+	 * Stop the threads used to probe the engines. The engines themselves are not closed,
+	 * because their transports may be shared with other WS instances.
+	 */
+	@Override
+	public void close() {
+		probes.shutdownNow();
+	}
+
+	// the engine that owns a job, looking through all job lists if it is not known yet
+	private Engine owner(String jobId) {
+		Engine engine = owners.get(jobId);
+		if (engine == null) {
+			refreshOwners();
+			engine = owners.get(jobId);
+			if (engine == null) {
+				Pipeline2Logger.logger().error("No engine in the cluster has a job with ID "+jobId);
+			}
+		}
+		return engine;
+	}
+
+	// fetch the job lists of all engines, unless another thread just did; when an engine did
+	// not answer, don't try again before the interval has passed either
+	private void refreshOwners() {
+		synchronized (ownersLock) {
+			long now = System.currentTimeMillis();
+			if (now - Math.max(ownersRefreshed, ownersRefreshAttempted) < ownerRefreshInterval) {
+				return;
+			}
+			ownersRefreshAttempted = now;
+			getJobs();
+		}
+	}
+
+	// probe all engines at the same time, and pick the healthy one with the fewest jobs waiting
+	private Engine selectEngine() {
+		List<Engine> candidates = new ArrayList<Engine>(engines);
+		if (candidates.isEmpty()) {
+			return null;
+		}
+		List<CompletableFuture<Integer>> load = new ArrayList<CompletableFuture<Integer>>();
+		for (Engine engine : candidates) {
+			load.add(CompletableFuture.supplyAsync(() -> {
+				if (!isHealthy(engine.ws.alive())) {
+					return null;
+				}
+				JobQueue queue = engine.ws.getQueue();
+				return queue == null ? null : queue.queue.size();
+			}, probes));
+		}
+
+		// start at a different engine every time, so that ties are spread out
+		int start = Math.floorMod(next.getAndIncrement(), candidates.size());
+		Engine best = null;
+		int bestLoad = Integer.MAX_VALUE;
+		for (int i = 0; i < candidates.size(); i++) {
+			int index = (start + i) % candidates.size();
+			Integer queued = load.get(index).exceptionally(e -> {
+				Pipeline2Logger.logger().error("Unable to probe engine "+candidates.get(index).ws.getEndpoint()+": "+e.getMessage());
+				return null;
+			}).join();
+			if (queued == null) {
+				continue;
+			}
+			Engine engine = candidates.get(index);
+			int engineLoad = queued + engine.submitting.get();
+			if (engineLoad < bestLoad) {
+				best = engine;
+				bestLoad = engineLoad;
+			}
+		}
+		return best;
+	}
+
+	private static boolean isHealthy(Alive alive) {
+		return alive != null && !Boolean.TRUE.equals(alive.error);
+	}
+
+}
@@ -2,6 +2,7 @@ package org.daisy.pipeline.client.http;
 
 import java.io.File;
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 
@@ -180,6 +181,10 @@ public interface WSInterface {
 	/**
 	 * Get the log file for a job
 	 * 
+	 * The log is held in memory as a String, so a log that is larger than the text limit of
+	 * {@link WSResponse} is truncated (see {@link WSResponse#setDefaultTextLimit(long)}). Use
+	 * {@link WS#getJobLogAsStream(String)} to get a large log completely.
+	 * 
 	 * @param jobId the job ID
 	 * @return the log
 	 */
@@ -202,6 +207,18 @@ public interface WSInterface {
 	 * @return the file as a File
 	 */
 	public File getJobResultAsFile(String jobId, String href);
+	
+	/**
+	 * Download results from a job directly to the given file
+	 * 
+	 * The file is only replaced once the download is complete.
+	 * 
+	 * @param jobId the job ID
+	 * @param href the relative path to the desired job result file
+	 * @param target the file to write the result to
+	 * @return the target, or null if the download failed
+	 */
+	public Path downloadJobResult(String jobId, String href, Path target);
 
 	/**
 	 * Get the job queue
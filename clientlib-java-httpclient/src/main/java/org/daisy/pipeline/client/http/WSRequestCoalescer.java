@@ -0,0 +1,137 @@
+package org.daisy.pipeline.client.http;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Lets identical concurrent requests share a single HTTP round-trip and a single parsed result.
+ *
+ * The first caller for a given request (the "leader") performs it; callers that ask for the
+ * same request while it is in flight wait for the leader and get the same result. Optionally,
+ * a completed result is also reused by callers that arrive within a short time window.
+ *
+ * Results are shared between callers, so they must be treated as read-only.
+ *
+ * Instances are thread-safe and can be shared between several WS instances.
+ */
+public class WSRequestCoalescer {
+
+	/** Default time in milliseconds that a completed result is reused. */
+	public static final long DEFAULT_REUSE_WINDOW = 0;
+
+	private static final int PURGE_THRESHOLD = 1024;
+
+	private final long reuseWindow;
+	private final ConcurrentMap<String,Flight> flights = new ConcurrentHashMap<String,Flight>();
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+
+	/** Create a coalescer that only shares requests that are in flight. */
+	public WSRequestCoalescer() {
+		this(DEFAULT_REUSE_WINDOW);
+	}
+
+	/**
+	 * Create a coalescer.
+	 *
+	 * @param reuseWindow time in milliseconds that a completed result is reused, or 0 to only share requests that are in flight
+	 */
+	public WSRequestCoalescer(long reuseWindow) {
+		this.reuseWindow = reuseWindow;
+	}
+
+	/**
+	 * Perform a request, or join an identical request that is in flight.
+	 *
+	 * Null results are never reused after the request has completed, so that errors are not cached.
+	 *
+	 * @param key identifies the request; identical requests must have identical keys
+	 * @param request performs the request and parses the result
+	 * @param <T> the type of the result
+	 * @return the result
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T execute(String key, Supplier<T> request) {
+		while (true) {
+			Flight flight = flights.get(key);
+			if (flight != null) {
+				if (!flight.future.isDone() || System.currentTimeMillis() < flight.reusableUntil) {
+					shared.incrementAndGet();
+					try {
+						return (T)flight.future.join();
+					} catch (CompletionException e) {
+						if (e.getCause() instanceof Error) {
+							throw (Error)e.getCause();
+						}
+						throw (RuntimeException)e.getCause();
+					}
+				}
+				flights.remove(key, flight);
+			}
+
+			Flight mine = new Flight();
+			if (flights.putIfAbsent(key, mine) != null) {
+				continue; // somebody else became the leader in the meantime
+			}
+			requests.incrementAndGet();
+			purge();
+			T result;
+			try {
+				result = request.get();
+			} catch (Throwable e) {
+				// also for errors, or the callers that are waiting would wait forever
+				flights.remove(key, mine);
+				mine.future.completeExceptionally(e);
+				throw e;
+			}
+			if (result == null || reuseWindow <= 0) {
+				flights.remove(key, mine);
+			} else {
+				mine.reusableUntil = System.currentTimeMillis() + reuseWindow;
+			}
+			mine.future.complete(result);
+			return result;
+		}
+	}
+
+	/** @return the number of requests that were actually performed */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/** @return the number of calls that were answered with the result of another call */
+	public long getSharedCount() {
+		return shared.get();
+	}
+
+	@Override
+	public String toString() {
+		return "WSRequestCoalescer[requests=" + requests + ", shared=" + shared + "]";
+	}
+
+	/* Forget completed results whose reuse window has passed */
+	private void purge() {
+		if (flights.size() < PURGE_THRESHOLD) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Iterator<Flight> i = flights.values().iterator(); i.hasNext();) {
+			Flight flight = i.next();
+			if (flight.future.isDone() && now >= flight.reusableUntil) {
+				i.remove();
+			}
+		}
+	}
+
+	private static class Flight {
+		final CompletableFuture<Object> future = new CompletableFuture<Object>();
+		volatile long reusableUntil = 0;
+	}
+
+}
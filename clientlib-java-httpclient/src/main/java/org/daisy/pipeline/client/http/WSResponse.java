@@ -1,31 +1,48 @@
 package org.daisy.pipeline.client.http;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.InputStream;
-import java.io.Reader;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
-
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.daisy.pipeline.client.Pipeline2Exception;
 import org.daisy.pipeline.client.Pipeline2Logger;
 import org.daisy.pipeline.client.utils.XML;
 import org.w3c.dom.Document;
 
-public class WSResponse {
+/**
+ * A response from the Pipeline 2 Web API.
+ * 
+ * The body is read lazily from the underlying connection. Until the body has been
+ * read completely (by calling asText(), asXml() or asFile(), or by closing the stream
+ * returned by asStream()), the connection can not be reused for other requests. Use
+ * {@link #close()} to release the connection when the body is not needed. When the body
+ * is closed before it has been read completely, the request is aborted instead of reading
+ * the rest of the body, so that a large body is not downloaded for nothing (the connection
+ * is then not reused).
+ * 
+ * asText() and asXml() buffer the body so that it can be read more than once. Bodies
+ * larger than the memory threshold (see {@link #setMemoryThreshold(long)}) are buffered in
+ * a temporary file instead of in memory, which is memory-mapped for reading and removed
+ * again by {@link #close()}. asText() returns at most the first part of a body that is larger
+ * than the text limit (see {@link #setTextLimit(long)}), so use asStream() to read a large
+ * body completely.
+ */
+public class WSResponse implements Closeable {
 	
 	public String url;
 	public int status;
@@ -33,9 +50,19 @@ public class WSResponse {
 	public String statusDescription;
 	public String contentType;
 	public Long size;
+	private final Map<String,String> headers;
 	private InputStream bodyStream;
 	private String bodyText;
 	private Document bodyXml;
+	private byte[] bodyBytes; // the buffered body, if it was small enough to be kept in memory
+	private File bodyFile; // the buffered body, if it was spilled to disk
+	private MappedByteBuffer bodyMap; // bodyFile mapped into memory, unless it is too large to be mapped
+	
+	private static volatile long defaultMemoryThreshold = 1024 * 1024;
+	private long memoryThreshold = defaultMemoryThreshold;
+	
+	private static volatile long defaultTextLimit = 16 * 1024 * 1024;
+	private long textLimit = defaultTextLimit;
 	
 	/**
 	 * Creates a new Pipeline2WSResponse with the given HTTP status code, status name, status description and content body.
@@ -49,17 +76,198 @@ public class WSResponse {
 	 * @param bodyStream the body as a InputStream
 	 */
 	public WSResponse(String url, int status, String statusName, String statusDescription, String contentType, Long size, InputStream bodyStream) {
+		this(url, status, statusName, statusDescription, contentType, size, bodyStream, null);
+	}
+	
+	/**
+	 * Creates a new Pipeline2WSResponse with the given HTTP status code, status name, status description, headers and content body.
+	 * 
+	 * @param url the URL
+	 * @param status the HTTP status
+	 * @param statusName the HTTP status name
+	 * @param statusDescription the HTTP status description
+	 * @param contentType the content type
+	 * @param size the size of the body
+	 * @param bodyStream the body as a InputStream
+	 * @param headers the response headers, can be null
+	 */
+	public WSResponse(String url, int status, String statusName, String statusDescription, String contentType, Long size, InputStream bodyStream, Map<String,String> headers) {
+		this.url = url;
 		this.status = status;
 		this.statusName = statusName;
 		this.statusDescription = statusDescription;
 		this.contentType = contentType;
+		this.size = size;
 		this.bodyStream = bodyStream;
 		this.bodyXml = null;
+		this.headers = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+		if (headers != null) {
+			this.headers.putAll(headers);
+		}
+	}
+	
+	/**
+	 * Returns the value of a response header.
+	 * 
+	 * Header names are case-insensitive. If the header occurs multiple times, the first value is returned.
+	 * 
+	 * @param name the header name
+	 * @return the header value, or null if the response does not have the header
+	 */
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+	
+	/**
+	 * Set the memory threshold for responses created from now on.
+	 * 
+	 * @param threshold the maximum number of bytes of a body to buffer in memory, defaults to 1 MB
+	 */
+	public static void setDefaultMemoryThreshold(long threshold) {
+		defaultMemoryThreshold = threshold;
+	}
+	
+	/**
+	 * Set the maximum number of bytes of the body to buffer in memory. Larger bodies are buffered in a temporary file.
+	 * 
+	 * Has no effect if the body has already been buffered.
+	 * 
+	 * @param threshold the threshold in bytes
+	 */
+	public void setMemoryThreshold(long threshold) {
+		this.memoryThreshold = threshold;
+	}
+	
+	/**
+	 * Set the text limit for responses created from now on.
+	 * 
+	 * @param limit the maximum number of bytes of a body that asText() returns, defaults to 16 MB
+	 */
+	public static void setDefaultTextLimit(long limit) {
+		defaultTextLimit = limit;
+	}
+	
+	/**
+	 * Set the maximum number of bytes of the body that asText() returns.
+	 * 
+	 * A larger body is truncated, and a line saying how much of it was left out is appended
+	 * to the text.
+	 * 
+	 * @param limit the limit in bytes
+	 */
+	public void setTextLimit(long limit) {
+		this.textLimit = limit;
+	}
+	
+	/**
+	 * Read the body from the connection into memory, or into a temporary file if it is larger
+	 * than the memory threshold, and release the connection.
+	 * 
+	 * Has no effect if the body has already been read.
+	 * 
+	 * @return this response
+	 * @throws Pipeline2Exception thrown if the body could not be read
+	 */
+	public WSResponse buffer() throws Pipeline2Exception {
+		if (bodyStream == null)
+			return this;
+		
+		try {
+			int initialSize = size != null && size >= 0 && size <= memoryThreshold ? (int)(long)size : 8 * 1024;
+			ByteArrayOutputStream memory = new ByteArrayOutputStream(initialSize);
+			byte[] buffer = new byte[8 * 1024];
+			int bytesRead;
+			while ((bytesRead = bodyStream.read(buffer)) != -1) {
+				memory.write(buffer, 0, bytesRead);
+				if (memory.size() > memoryThreshold) {
+					spill(memory);
+					return this;
+				}
+			}
+			bodyBytes = memory.toByteArray();
+			return this;
+			
+		} catch (IOException e) {
+			throw new Pipeline2Exception("Unable to read response body", e);
+			
+		} finally {
+			closeStream();
+		}
+	}
+	
+	/** @return whether the body has been spilled to a temporary file */
+	public boolean isSpilled() {
+		return bodyFile != null;
+	}
+	
+	// write what has been read so far and the rest of the body to a temporary file
+	private void spill(ByteArrayOutputStream memory) throws IOException {
+		File file = File.createTempFile("pipeline2-response", ".tmp");
+		Pipeline2Logger.logger().debug("buffering response from "+url+" as: "+file.getAbsolutePath());
+		try {
+			try (OutputStream out = new FileOutputStream(file)) {
+				memory.writeTo(out);
+				memory.reset();
+				byte[] buffer = new byte[64 * 1024];
+				int bytesRead;
+				while ((bytesRead = bodyStream.read(buffer)) != -1) {
+					out.write(buffer, 0, bytesRead);
+				}
+			}
+			setBody(file);
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+	}
+	
+	/* Use a body that was already received into memory, for instance by a non-blocking HTTP client */
+	void setBody(byte[] bytes) {
+		closeStream();
+		bodyBytes = bytes;
+	}
+	
+	/* Use a body that was already received into a temporary file, which is removed again by close() */
+	void setBody(File file) throws IOException {
+		closeStream();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() <= Integer.MAX_VALUE) {
+				bodyMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+		}
+		bodyFile = file;
+	}
+	
+	/* The memory threshold of responses created from now on */
+	static long getDefaultMemoryThreshold() {
+		return defaultMemoryThreshold;
+	}
+	
+	// a stream over the buffered body
+	private InputStream bufferedStream() throws Pipeline2Exception {
+		if (bodyBytes != null)
+			return new ByteArrayInputStream(bodyBytes);
+		
+		if (bodyMap != null)
+			return new ByteBufferInputStream(bodyMap.duplicate());
+		
+		if (bodyFile != null) {
+			try {
+				return new FileInputStream(bodyFile);
+			} catch (IOException e) {
+				throw new Pipeline2Exception("Unable to read buffered response body", e);
+			}
+		}
+		
+		return null;
 	}
 	
 	/**
 	 * Returns the response body as a String.
 	 * 
+	 * If the body is larger than the text limit, only the first part of it is returned,
+	 * followed by a line that starts with "[truncated:".
+	 * 
 	 * @return the response body as a String.
 	 * @throws Pipeline2Exception thrown if an error occurs
 	 */
@@ -67,50 +275,59 @@ public class WSResponse {
 		if (bodyText != null)
 			return bodyText;
 		
-		if (bodyStream != null) {
-            Writer writer = new StringWriter();
- 
-            char[] buffer = new char[1024];
-            try {
-                Reader reader = new BufferedReader(new InputStreamReader(bodyStream, "UTF-8"));
-                int n;
-                while ((n = reader.read(buffer)) != -1) {
-                    writer.write(buffer, 0, n);
-                }
-            } catch (UnsupportedEncodingException e) {
-				// unable to open stream
-				e.printStackTrace();
-			} catch (IOException e) {
-				// unable to read buffer
-				e.printStackTrace();
-			} finally {
-            	try {
-					bodyStream.close();
-					bodyStream = null;
-				} catch (IOException e) {
-					throw new Pipeline2Exception("Unable to close stream while reading response body", e);
+		if (bodyStream != null)
+			buffer();
+		
+		if (bodyBytes != null) {
+			if (bodyBytes.length > textLimit)
+				return truncatedText(ByteBuffer.wrap(bodyBytes), bodyBytes.length);
+			bodyText = new String(bodyBytes, StandardCharsets.UTF_8);
+		}
+		
+		else if (bodyMap != null) {
+			if (bodyMap.capacity() > textLimit)
+				return truncatedText(bodyMap.duplicate(), bodyMap.capacity());
+			// not kept, so that a large body is only held in memory for as long as the caller needs it
+			return StandardCharsets.UTF_8.decode(bodyMap.duplicate()).toString();
+		}
+		
+		else if (bodyFile != null) {
+			// too large to be mapped, so only the first part is read
+			try (FileChannel channel = FileChannel.open(bodyFile.toPath(), StandardOpenOption.READ)) {
+				ByteBuffer head = ByteBuffer.allocate((int)Math.min(textLimit + 1, Integer.MAX_VALUE - 8));
+				while (head.hasRemaining()) {
+					if (channel.read(head) == -1)
+						break;
 				}
-            }
-            bodyText = writer.toString();
-        }
+				head.flip();
+				return truncatedText(head, channel.size());
+			} catch (IOException e) {
+				throw new Pipeline2Exception("Unable to read buffered response body", e);
+			}
+		}
 		
 		else if (bodyXml != null) {
-	    	try {
-				Transformer transformer = TransformerFactory.newInstance().newTransformer();
-				transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-				StreamResult result = new StreamResult(new StringWriter());
-				DOMSource source = new DOMSource(bodyXml);
-				transformer.transform(source, result);
-				bodyText = result.getWriter().toString();
-				
-			} catch (TransformerException e) {
-				throw new Pipeline2Exception("Unable to serialize body XML Document as string", e);
-			}
+			bodyText = XML.toString(bodyXml, XML.INDENT);
+			if (bodyText == null)
+				throw new Pipeline2Exception("Unable to serialize body XML Document as string");
 		}
 		
 		return bodyText;
 	}
 	
+	// the body up to the text limit, and a line that says that the rest was left out
+	private String truncatedText(ByteBuffer body, long size) {
+		int end = (int)Math.min(textLimit, body.remaining());
+		// don't cut a multi-byte character in two
+		while (end > 0 && end < body.remaining() && (body.get(body.position() + end) & 0xC0) == 0x80) {
+			end--;
+		}
+		body.limit(body.position() + end);
+		Pipeline2Logger.logger().debug("response from "+url+" is "+size+" bytes, returning the first "+end+" bytes as text");
+		return StandardCharsets.UTF_8.decode(body).toString()
+		       + "\n[truncated: showing the first " + end + " of " + size + " bytes, read the response as a stream to get all of it]";
+	}
+	
 	/**
 	 * Returns the response body as a InputStream.
 	 * 
@@ -121,6 +338,10 @@ public class WSResponse {
 		if (bodyStream != null)
 			return bodyStream;
 		
+		InputStream buffered = bufferedStream();
+		if (buffered != null)
+			return buffered;
+		
 		if (bodyText == null)
 			asText();
 		
@@ -144,13 +365,34 @@ public class WSResponse {
 	public Document asXml() throws Pipeline2Exception {
 		if (bodyXml != null)
 			return bodyXml;
-		
+
+		if (bodyText == null && bodyStream != null) {
+			// parse straight from the connection instead of buffering the body as a String first
+			try {
+				bodyXml = XML.getXml(bodyStream);
+			} catch (RuntimeException e) {
+				throw new Pipeline2Exception("Unable to parse response body as XML", e);
+			} finally {
+				close();
+			}
+			return bodyXml;
+		}
+
+		if (bodyText == null && (bodyBytes != null || bodyFile != null)) {
+			try {
+				bodyXml = XML.getXml(bufferedStream());
+			} catch (RuntimeException e) {
+				throw new Pipeline2Exception("Unable to parse response body as XML", e);
+			}
+			return bodyXml;
+		}
+
 		if (bodyText == null)
 			asText();
-		
+
 		if (bodyText != null)
 			bodyXml = XML.getXml(bodyText);
-		
+
 		return bodyXml;
 	}
 	
@@ -170,7 +412,6 @@ public class WSResponse {
 			try {
 				File tempFile = File.createTempFile("webui", null);
 				Pipeline2Logger.logger().debug("storing response as: "+tempFile.getAbsolutePath());
-				System.out.println("storing response as: "+tempFile.getAbsolutePath());
 				tempFile.delete();
 				
 			    OutputStream outStream = new FileOutputStream(tempFile);
@@ -199,4 +440,153 @@ public class WSResponse {
 		
 		return null;
 	}
+	
+	/**
+	 * Release the underlying connection, and the temporary file if the body was spilled to disk.
+	 * 
+	 * Any part of the body that has not been read yet is discarded.
+	 */
+	@Override
+	public void close() {
+		closeStream();
+		if (bodyFile != null) {
+			bodyMap = null;
+			if (!bodyFile.delete()) {
+				// the file may still be mapped, in which case some platforms do not allow deleting it yet
+				bodyFile.deleteOnExit();
+			}
+			bodyFile = null;
+		}
+	}
+	
+	/**
+	 * Release the connection without reading the rest of the body, for instance for a
+	 * response that is not going to be read. The connection is closed instead of being
+	 * reused for other requests. Buffered bodies are removed like by {@link #close()}.
+	 */
+	public void abort() {
+		if (bodyStream instanceof AbortableStream) {
+			((AbortableStream)bodyStream).abort();
+		}
+		close();
+	}
+	
+	/* Abort the request when the body is closed before it has been read completely */
+	void setAbort(Runnable abort) {
+		if (bodyStream != null) {
+			bodyStream = new AbortableStream(bodyStream, size, abort);
+		}
+	}
+	
+	private void closeStream() {
+		if (bodyStream != null) {
+			try {
+				bodyStream.close();
+			} catch (IOException e) {
+				Pipeline2Logger.logger().debug("Unable to close response body stream", e);
+			}
+			bodyStream = null;
+		}
+	}
+	
+	/*
+	 * A body stream that aborts the request when it is closed before the end of the body,
+	 * instead of letting the HTTP client read the rest of the body in order to reuse the
+	 * connection.
+	 */
+	private static class AbortableStream extends FilterInputStream {
+		
+		private final Long size;
+		private final Runnable abort;
+		private long read = 0;
+		private boolean done = false; // whether the end of the body was reached
+		private boolean aborted = false;
+		
+		AbortableStream(InputStream in, Long size, Runnable abort) {
+			super(in);
+			this.size = size;
+			this.abort = abort;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			return count(super.read(), 1);
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int bytesRead = super.read(b, off, len);
+			return count(bytesRead, bytesRead);
+		}
+		
+		private int count(int result, int bytesRead) {
+			if (result == -1) {
+				done = true;
+			} else {
+				read += bytesRead;
+				if (size != null && read >= size) {
+					done = true;
+				}
+			}
+			return result;
+		}
+		
+		void abort() {
+			if (!done && !aborted) {
+				aborted = true;
+				abort.run();
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			abort();
+			try {
+				super.close();
+			} catch (IOException e) {
+				if (!aborted) {
+					throw e;
+				}
+				// the connection is closed already
+			}
+		}
+	}
+	
+	/* An InputStream that reads from a ByteBuffer */
+	private static class ByteBufferInputStream extends InputStream {
+		
+		private final ByteBuffer buffer;
+		
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+		
+		@Override
+		public long skip(long n) {
+			int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+		
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
 }
@@ -0,0 +1,316 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.daisy.pipeline.client.Pipeline2Exception;
+import org.daisy.pipeline.client.Pipeline2Logger;
+import org.daisy.pipeline.client.utils.XML;
+import org.w3c.dom.Document;
+
+/**
+ * A cache for Web API resources that rarely change, like scripts and data types.
+ *
+ * Entries are kept in a bounded in-memory LRU map, and optionally also in a directory
+ * on disk so that they survive restarts. When the engine sends an ETag or Last-Modified
+ * header, a stale entry is revalidated with a conditional request (If-None-Match /
+ * If-Modified-Since), and a "304 Not Modified" response is answered from the cache.
+ * When the engine sends neither validators nor a Cache-Control max-age, entries are
+ * considered fresh for a fixed time to live.
+ *
+ * The cache stores the parsed XML. Because the models built from it are mutable (for
+ * instance, the arguments of a script are filled in by the caller), each caller gets
+ * its own copy of the document to build models from.
+ *
+ * Instances are thread-safe and can be shared between several WS instances.
+ */
+public class WSResponseCache {
+
+	/** Default maximum number of entries kept in memory. */
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+	/** Default time in milliseconds that a response without validators is considered fresh. */
+	public static final long DEFAULT_TTL = 60000;
+
+	private static final Pattern MAX_AGE = Pattern.compile("(?:^|[,\\s])max-age\\s*=\\s*(\\d+)", Pattern.CASE_INSENSITIVE);
+
+	private final long ttl;
+	private final File directory;
+	private final Map<String,CachedResponse> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+
+	/** Create an in-memory cache with the default size and time to live. */
+	public WSResponseCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL, null);
+	}
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param maxEntries maximum number of entries kept in memory
+	 * @param ttl time in milliseconds that a response without validators is considered fresh
+	 * @param directory directory where entries are also stored on disk, or null to only cache in memory
+	 */
+	public WSResponseCache(final int maxEntries, long ttl, File directory) {
+		this.ttl = ttl;
+		this.directory = directory;
+		if (directory != null) {
+			directory.mkdirs();
+		}
+		this.entries = new LinkedHashMap<String,CachedResponse>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,CachedResponse> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * GET a resource through the cache.
+	 *
+	 * @param transport the transport to use when the resource is not cached or is stale
+	 * @param endpoint WS endpoint, for instance "http://localhost:8182/ws".
+	 * @param path Path to resource, for instance "/scripts".
+	 * @param username Robot username. Can be null.
+	 * @param secret Robot secret. Can be null.
+	 * @return A copy of the resource, or null if the engine responded with an error.
+	 * @throws Pipeline2Exception thrown if an error occurs
+	 */
+	public Document get(HttpTransport transport, String endpoint, String path, String username, String secret) throws Pipeline2Exception {
+		// the URL is not used as key because signed URLs are different for every request
+		String key = endpoint + path + " " + username;
+		long now = System.currentTimeMillis();
+
+		CachedResponse entry = lookup(key);
+		if (entry != null && now < entry.expires) {
+			hits.incrementAndGet();
+			return entry.xml();
+		}
+
+		Map<String,String> headers = null;
+		if (entry != null && (entry.etag != null || entry.lastModified != null)) {
+			headers = new HashMap<String,String>();
+			if (entry.etag != null) {
+				headers.put("If-None-Match", entry.etag);
+			}
+			if (entry.lastModified != null) {
+				headers.put("If-Modified-Since", entry.lastModified);
+			}
+		}
+
+		try (WSResponse response = transport.get(endpoint, path, username, secret, null, headers)) {
+			if (response.status == 304 && entry != null) {
+				revalidations.incrementAndGet();
+				entry.expires = expires(response, entry.etag, entry.lastModified, now);
+				store(entry);
+				return entry.xml();
+
+			} else if (response.status >= 200 && response.status < 300) {
+				misses.incrementAndGet();
+				String cacheControl = response.getHeader("Cache-Control");
+				if (cacheControl != null && cacheControl.contains("no-store")) {
+					return response.asXml();
+				}
+				String etag = response.getHeader("ETag");
+				String lastModified = response.getHeader("Last-Modified");
+				entry = new CachedResponse(key, response.asText(), etag, lastModified, expires(response, etag, lastModified, now));
+				store(entry);
+				return entry.xml();
+
+			} else {
+				WS.error(response);
+				return null;
+			}
+		}
+	}
+
+	/** Remove all entries, both from memory and from disk. */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+		if (directory != null) {
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (file.getName().endsWith(".xml") || file.getName().endsWith(".properties")) {
+						file.delete();
+					}
+				}
+			}
+		}
+	}
+
+	/** @return the number of requests answered from the cache without contacting the engine */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/** @return the number of requests where the resource had to be downloaded */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/** @return the number of requests where the engine confirmed that the cached resource was still valid */
+	public long getRevalidationCount() {
+		return revalidations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "WSResponseCache[hits=" + hits + ", misses=" + misses + ", revalidations=" + revalidations + "]";
+	}
+
+	/* Time until which a response can be used without revalidating it */
+	long expires(WSResponse response, String etag, String lastModified, long now) {
+		String cacheControl = response.getHeader("Cache-Control");
+		if (cacheControl != null) {
+			if (cacheControl.contains("no-cache")) {
+				return now;
+			}
+			Matcher maxAge = MAX_AGE.matcher(cacheControl);
+			if (maxAge.find()) {
+				return now + Long.parseLong(maxAge.group(1)) * 1000;
+			}
+		}
+		if (etag != null || lastModified != null) {
+			// cheap to revalidate, so always do it
+			return now;
+		}
+		return now + ttl;
+	}
+
+	private CachedResponse lookup(String key) {
+		synchronized (entries) {
+			CachedResponse entry = entries.get(key);
+			if (entry != null) {
+				return entry;
+			}
+		}
+		CachedResponse entry = load(key);
+		if (entry != null) {
+			synchronized (entries) {
+				entries.put(key, entry);
+			}
+		}
+		return entry;
+	}
+
+	private void store(CachedResponse entry) {
+		synchronized (entries) {
+			entries.put(entry.key, entry);
+		}
+		if (directory == null) {
+			return;
+		}
+		String name = fileName(entry.key);
+		Properties properties = new Properties();
+		properties.setProperty("key", entry.key);
+		properties.setProperty("expires", entry.expires + "");
+		if (entry.etag != null) {
+			properties.setProperty("etag", entry.etag);
+		}
+		if (entry.lastModified != null) {
+			properties.setProperty("lastModified", entry.lastModified);
+		}
+		try {
+			Files.write(new File(directory, name + ".xml").toPath(), entry.body.getBytes(StandardCharsets.UTF_8));
+			try (OutputStream os = Files.newOutputStream(new File(directory, name + ".properties").toPath())) {
+				properties.store(os, null);
+			}
+		} catch (IOException e) {
+			Pipeline2Logger.logger().warn("Unable to store cached response for " + entry.key + " on disk", e);
+		}
+	}
+
+	private CachedResponse load(String key) {
+		if (directory == null) {
+			return null;
+		}
+		String name = fileName(key);
+		File bodyFile = new File(directory, name + ".xml");
+		File propertiesFile = new File(directory, name + ".properties");
+		if (!bodyFile.isFile() || !propertiesFile.isFile()) {
+			return null;
+		}
+		try {
+			Properties properties = new Properties();
+			try (InputStream is = Files.newInputStream(propertiesFile.toPath())) {
+				properties.load(is);
+			}
+			if (!key.equals(properties.getProperty("key"))) {
+				return null;
+			}
+			String body = new String(Files.readAllBytes(bodyFile.toPath()), StandardCharsets.UTF_8);
+			return new CachedResponse(key,
+			                 body,
+			                 properties.getProperty("etag"),
+			                 properties.getProperty("lastModified"),
+			                 Long.parseLong(properties.getProperty("expires", "0")));
+
+		} catch (IOException | NumberFormatException e) {
+			Pipeline2Logger.logger().warn("Unable to read cached response for " + key + " from disk", e);
+			return null;
+		}
+	}
+
+	private static String fileName(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest) {
+				name.append(String.format("%02x", b));
+			}
+			return name.toString();
+
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // SHA-1 is always available
+		}
+	}
+
+	private static class CachedResponse {
+
+		final String key;
+		final String body;
+		final String etag;
+		final String lastModified;
+		volatile long expires;
+		private Document xml;
+
+		CachedResponse(String key, String body, String etag, String lastModified, long expires) {
+			this.key = key;
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.expires = expires;
+		}
+
+		/* A private copy of the document, so that callers can not affect each other */
+		synchronized Document xml() {
+			if (xml == null) {
+				xml = XML.getXml(body);
+				if (xml == null) {
+					return null;
+				}
+			}
+			return (Document)xml.cloneNode(true);
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class JavaHttpTransportTest {
+
+	@Test
+	public void testRequestBodyNotRead() throws Exception {
+		// a server that answers before reading the request body
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/ws/jobs", exchange -> {
+			exchange.getResponseHeaders().set("Connection", "close");
+			exchange.sendResponseHeaders(413, -1);
+			exchange.close();
+		});
+		server.start();
+		JavaHttpTransport transport = new JavaHttpTransport();
+		try {
+			CountDownLatch writerDone = new CountDownLatch(1);
+			MultipartBody body = new MultipartBody().addPart("file", "big.bin", "application/octet-stream", os -> {
+				try {
+					byte[] buffer = new byte[64 * 1024];
+					for (int i = 0; i < 16 * 1024; i++) { // 1 GB
+						os.write(buffer);
+					}
+				} finally {
+					writerDone.countDown();
+				}
+			});
+			String endpoint = "http://localhost:" + server.getAddress().getPort() + "/ws";
+			try {
+				WSResponse response = transport.postMultipart(endpoint, "/jobs", null, null, body);
+				assertEquals(413, response.status);
+				response.close();
+			} catch (Exception e) {
+				// the connection may also be reset while the body is being sent
+			}
+			// the thread that generates the body stops instead of blocking on the full pipe
+			assertTrue(writerDone.await(10, TimeUnit.SECONDS));
+		} finally {
+			transport.close();
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testAsyncResponseIsStreamed() throws Exception {
+		// a server that sends the first part of the body and then waits
+		CountDownLatch firstPartRead = new CountDownLatch(1);
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/ws/jobs/job1/result", exchange -> {
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(new byte[]{1, 2, 3});
+				os.flush();
+				firstPartRead.await(10, TimeUnit.SECONDS);
+				os.write(new byte[]{4});
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		server.start();
+		JavaHttpTransport transport = new JavaHttpTransport();
+		try {
+			String endpoint = "http://localhost:" + server.getAddress().getPort() + "/ws";
+			// the response is available before the whole body has been sent
+			WSResponse response = transport.getAsStreamAsync(endpoint, "/jobs/job1/result", null, null, null).get(10, TimeUnit.SECONDS);
+			assertNotNull(response);
+			try (InputStream in = response.asStream()) {
+				assertEquals(1, in.read());
+				assertEquals(2, in.read());
+				assertEquals(3, in.read());
+				firstPartRead.countDown();
+				assertEquals(4, in.read());
+				assertEquals(-1, in.read());
+			}
+		} finally {
+			firstPartRead.countDown();
+			transport.close();
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testAsyncResponseIsBuffered() throws Exception {
+		byte[] body = new byte[100 * 1024];
+		for (int i = 0; i < body.length; i++) {
+			body[i] = (byte)i;
+		}
+		AtomicInteger sent = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/ws/jobs/job1/log", exchange -> {
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream os = exchange.getResponseBody()) {
+				for (int i = 0; i < body.length; i += 1024) {
+					os.write(body, i, 1024);
+					os.flush();
+				}
+				// before the end of the body, which is sent when the stream is closed
+				sent.incrementAndGet();
+			}
+		});
+		server.start();
+		JavaHttpTransport transport = new JavaHttpTransport();
+		try {
+			String endpoint = "http://localhost:" + server.getAddress().getPort() + "/ws";
+			int requests = 0;
+			for (long threshold : new long[]{1024 * 1024, 4096}) {
+				WSResponse.setDefaultMemoryThreshold(threshold);
+				WSResponse response = transport.getAsync(endpoint, "/jobs/job1/log", null, null, null).get(10, TimeUnit.SECONDS);
+				// the whole body has been received when the future completes
+				assertEquals(++requests, sent.get());
+				assertEquals(threshold < body.length, response.isSpilled());
+				try (InputStream in = response.asStream()) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					byte[] buffer = new byte[4096];
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						out.write(buffer, 0, read);
+					}
+					assertArrayEquals(body, out.toByteArray());
+				}
+				response.close();
+			}
+		} finally {
+			WSResponse.setDefaultMemoryThreshold(1024 * 1024);
+			transport.close();
+			server.stop(0);
+		}
+	}
+}
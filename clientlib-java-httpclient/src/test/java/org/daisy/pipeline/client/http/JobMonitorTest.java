@@ -0,0 +1,119 @@
+package org.daisy.pipeline.client.http;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.daisy.pipeline.client.models.Job;
+import org.daisy.pipeline.client.models.JobSnapshot;
+import org.daisy.pipeline.client.models.Message;
+import org.daisy.pipeline.client.test.MockEngine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JobMonitorTest {
+
+	private MockEngine engine;
+	private WS ws;
+
+	@Before
+	public void startEngine() throws Exception {
+		engine = new MockEngine();
+		ws = new WS();
+		ws.setEndpoint(engine.getEndpoint());
+	}
+
+	@After
+	public void stopEngine() {
+		ws.close();
+		engine.stop();
+	}
+
+	@Test
+	public void testPollingSequence() {
+		JobMonitor monitor = new JobMonitor(ws);
+		String jobId = ws.postJob(new Job()).getId(); // plays the recorded jobs/job7 sequence
+
+		Job job = monitor.update(jobId);
+		assertEquals(Job.Status.RUNNING, job.getStatus());
+		Message first = null;
+		long msgSeq = 0;
+		int polls = 1;
+		while (job.getStatus() == Job.Status.RUNNING) {
+			assertSame(job, monitor.update(jobId)); // the same live job is updated
+			polls++;
+			List<Message> messages = job.getMessages();
+			if (first == null && !messages.isEmpty()) {
+				first = messages.get(0);
+			}
+			for (int i = 1; i < messages.size(); i++) {
+				assertTrue(messages.get(i - 1).sequence < messages.get(i).sequence);
+			}
+			assertTrue(monitor.getMsgSeq(jobId) >= msgSeq);
+			msgSeq = monitor.getMsgSeq(jobId);
+			JobSnapshot snapshot = monitor.getSnapshot(jobId);
+			assertEquals(job.getStatus(), snapshot.getStatus());
+			assertEquals(messages.size(), snapshot.getMessages().size());
+			// taken once per poll, and shared until the next poll
+			assertSame(snapshot, monitor.getSnapshot(jobId));
+		}
+		assertEquals(Job.Status.SUCCESS, job.getStatus());
+		assertEquals(77, polls); // the post answered with step 1, the recorded job succeeds at step 78
+		assertEquals(100.0, job.getProgressFrom(), 0.0);
+		assertSame(first, job.getMessages().get(0)); // messages are updated in place
+		assertEquals((long)job.getMessages().get(job.getMessages().size() - 1).sequence, msgSeq);
+
+		assertSame(job, monitor.remove(jobId));
+		assertNull(monitor.getJob(jobId));
+		assertNull(monitor.getSnapshot(jobId));
+		assertFalse(monitor.getJobIds().contains(jobId));
+		assertNull(monitor.update("does-not-exist"));
+		assertTrue(monitor.getJobIds().isEmpty());
+	}
+
+	@Test
+	public void testConcurrentSnapshotReaders() throws Exception {
+		JobMonitor monitor = new JobMonitor(ws);
+		String jobId = ws.postJob(new Job()).getId();
+		monitor.update(jobId);
+		AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] readers = new Thread[4];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread(() -> {
+				try {
+					int size = 0;
+					JobSnapshot snapshot;
+					do {
+						snapshot = monitor.getSnapshot(jobId);
+						List<Message> messages = snapshot.getMessages();
+						// snapshots are replaced as a whole, and never change once published
+						assertTrue(messages.size() >= size);
+						size = messages.size();
+						for (int k = 1; k < messages.size(); k++) {
+							assertTrue(messages.get(k - 1).sequence < messages.get(k).sequence);
+						}
+						assertEquals(messages.size(), snapshot.getMessageCount(null));
+					} while (snapshot.getStatus() == Job.Status.RUNNING);
+				} catch (Throwable e) {
+					error.compareAndSet(null, e);
+				}
+			});
+			readers[i].start();
+		}
+		while (monitor.update(jobId).getStatus() == Job.Status.RUNNING);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		assertEquals(Job.Status.SUCCESS, monitor.getSnapshot(jobId).getStatus());
+	}
+}
@@ -0,0 +1,171 @@
+package org.daisy.pipeline.client.http;
+
+import org.daisy.pipeline.client.models.Job;
+import org.daisy.pipeline.client.test.MockEngine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MockEngineTest {
+
+	private MockEngine engine;
+
+	@Before
+	public void startEngine() throws Exception {
+		engine = new MockEngine();
+	}
+
+	@After
+	public void stopEngine() {
+		engine.stop();
+	}
+
+	@Test
+	public void testRecordedResponses() {
+		testRecordedResponses(new WS());
+	}
+
+	@Test
+	public void testRecordedResponsesJavaHttpTransport() {
+		testRecordedResponses(new WS(new JavaHttpTransport()));
+	}
+
+	private void testRecordedResponses(WS ws) {
+		try {
+			ws.setEndpoint(engine.getEndpoint());
+			assertNotNull(ws.alive());
+			assertEquals(5, ws.getScripts().size());
+			assertNotNull(ws.getScript("dtbook-to-zedai"));
+			Job job = ws.getJob("job1", 0);
+			assertNotNull(job);
+			assertEquals(Job.Status.SUCCESS, job.getStatus());
+			assertTrue(job.getHref().startsWith(engine.getEndpoint()));
+		} finally {
+			ws.close();
+		}
+	}
+
+	@Test
+	public void testRecordedResponsesAsync() throws Exception {
+		WS ws = new WS(new JavaHttpTransport());
+		try {
+			ws.setEndpoint(engine.getEndpoint());
+			AsyncWS async = new AsyncWS(ws);
+			assertNotNull(async.alive().get());
+			assertEquals(5, async.getScripts().get().size());
+			Job job = async.getJob("job1", 0).get();
+			assertNotNull(job);
+			assertEquals(Job.Status.SUCCESS, job.getStatus());
+			assertTrue(job.getHref().startsWith(engine.getEndpoint()));
+		} finally {
+			ws.close();
+		}
+	}
+
+	@Test
+	public void testClusterUnknownJob() throws Exception {
+		MockEngine other = new MockEngine();
+		WS ws1 = new WS(new JavaHttpTransport());
+		WS ws2 = new WS(new JavaHttpTransport());
+		ws1.setEndpoint(engine.getEndpoint());
+		ws2.setEndpoint(other.getEndpoint());
+		WSCluster cluster = new WSCluster(ws1, ws2);
+		try {
+			assertNull(cluster.getJob("unknown", 0));
+			long requests = engine.getRequestCount() + other.getRequestCount();
+			// the job lists were just fetched, so they are not fetched again for every unknown job
+			for (int i = 0; i < 10; i++) {
+				assertNull(cluster.getJob("unknown-" + i, 0));
+			}
+			assertEquals(requests, engine.getRequestCount() + other.getRequestCount());
+			cluster.setOwnerRefreshInterval(0);
+			assertNull(cluster.getJob("unknown", 0));
+			assertEquals(requests + 2, engine.getRequestCount() + other.getRequestCount());
+		} finally {
+			cluster.close();
+			ws1.close();
+			ws2.close();
+			other.stop();
+		}
+	}
+
+	@Test
+	public void testClusterSetEndpoint() throws Exception {
+		MockEngine other = new MockEngine();
+		WS ws = new WS(new JavaHttpTransport());
+		ws.setEndpoint(engine.getEndpoint());
+		ws.setCredentials("user", "secret");
+		WSCluster cluster = new WSCluster(ws);
+		try {
+			// configuring the cluster like a single WS adds an engine
+			cluster.setEndpoint(other.getEndpoint());
+			cluster.setEndpoint(other.getEndpoint());
+			assertEquals(2, cluster.getEngines().size());
+			WS added = cluster.getEngines().get(1);
+			assertEquals(other.getEndpoint(), added.getEndpoint());
+			assertSame(ws.getTransport(), added.getTransport());
+			assertEquals("user", added.getUsername());
+			assertNotNull(added.alive());
+
+			// jobs that are not listed by any engine anymore are forgotten after a full refresh
+			String jobId = cluster.postJob(new Job()).getId();
+			assertNotNull(cluster.getEngine(jobId));
+			assertNotNull(cluster.getJobs()); // the recorded job list does not have submitted jobs
+			assertNull(cluster.getEngine(jobId));
+		} finally {
+			cluster.close();
+			ws.close();
+			other.stop();
+		}
+	}
+
+	@Test
+	public void testPollingSequence() {
+		WS ws = new WS();
+		try {
+			ws.setEndpoint(engine.getEndpoint());
+			Job job = ws.postJob(new Job());
+			assertNotNull(job);
+			assertEquals(Job.Status.RUNNING, job.getStatus());
+			int polls = 0;
+			while (job.getStatus() != Job.Status.SUCCESS) {
+				Job update = ws.getJob(job.getId(), 0);
+				assertEquals(job.getId(), update.getId());
+				job = update;
+				polls++;
+			}
+			assertEquals(77, polls); // the recorded job succeeds at step 78
+			assertFalse(job.getMessages().isEmpty());
+
+			// every submitted job has its own sequence
+			Job other = ws.postJob(new Job());
+			assertFalse(job.getId().equals(other.getId()));
+			assertEquals(Job.Status.RUNNING, ws.getJob(other.getId(), 0).getStatus());
+		} finally {
+			ws.close();
+		}
+	}
+
+	@Test
+	public void testLatency() {
+		engine.setLatency(200);
+		WS ws = new WS();
+		try {
+			ws.setEndpoint(engine.getEndpoint());
+			long start = System.currentTimeMillis();
+			assertNotNull(ws.getScripts());
+			assertTrue(System.currentTimeMillis() - start >= 200);
+		} finally {
+			ws.close();
+		}
+	}
+
+}
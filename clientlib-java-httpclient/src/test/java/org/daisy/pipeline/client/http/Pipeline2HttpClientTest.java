@@ -0,0 +1,58 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class Pipeline2HttpClientTest {
+
+	@Test
+	public void testBodyNotRead() throws Exception {
+		// a server that sends a 1 GB result, and notices when the client stops reading it
+		CountDownLatch aborted = new CountDownLatch(1);
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/ws/jobs/job1/result", exchange -> {
+			long size = 1024L * 1024 * 1024;
+			exchange.sendResponseHeaders(200, size);
+			byte[] buffer = new byte[64 * 1024];
+			try (OutputStream os = exchange.getResponseBody()) {
+				for (long sent = 0; sent < size; sent += buffer.length) {
+					os.write(buffer);
+				}
+			} catch (IOException e) {
+				aborted.countDown();
+			}
+		});
+		server.start();
+		Pipeline2HttpClient transport = new Pipeline2HttpClient();
+		try {
+			String endpoint = "http://localhost:" + server.getAddress().getPort() + "/ws";
+			for (boolean closeStream : new boolean[]{true, false}) {
+				WSResponse response = transport.get(endpoint, "/jobs/job1/result", null, null, null);
+				assertEquals(200, response.status);
+				InputStream body = response.asStream();
+				body.read(new byte[1024]);
+				if (closeStream) {
+					body.close();
+				} else {
+					response.close();
+				}
+			}
+			// the connection was closed instead of reading the rest of the body
+			assertTrue(aborted.await(10, TimeUnit.SECONDS));
+		} finally {
+			transport.close();
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.daisy.pipeline.client.Pipeline2Exception;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResultDownloaderTest {
+
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private byte[] result;
+	private HttpServer server;
+	private WS ws;
+
+	// behaviour of the stub engine
+	private volatile boolean acceptRanges = true;
+	private volatile long failAfter = -1; // close the connection after serving this many bytes in total
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicLong served = new AtomicLong();
+
+	@Before
+	public void startServer() throws IOException {
+		result = new byte[1024 * 1024 + 123];
+		new Random(42).nextBytes(result);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/ws/alive", exchange -> {
+			byte[] alive = "<alive xmlns=\"http://www.daisy.org/ns/pipeline/data\" authentication=\"false\" localfs=\"false\" version=\"1.10\"/>".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, alive.length);
+			exchange.getResponseBody().write(alive);
+			exchange.close();
+		});
+		server.createContext("/ws/jobs/job1/result/result.bin", this::serveResult);
+		server.start();
+		ws = new WS();
+		ws.setEndpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/ws");
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+		ws.close();
+	}
+
+	private void serveResult(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		int start = 0;
+		int end = result.length - 1;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		Matcher matcher = range == null ? null : RANGE.matcher(range);
+		if (acceptRanges && matcher != null && matcher.matches()) {
+			start = Integer.parseInt(matcher.group(1));
+			end = Math.min(end, Integer.parseInt(matcher.group(2)));
+			exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+			exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + result.length);
+			exchange.sendResponseHeaders(206, end + 1 - start);
+		} else {
+			exchange.sendResponseHeaders(200, result.length);
+		}
+		OutputStream os = exchange.getResponseBody();
+		for (int i = start; i <= end; i += 4096) {
+			int length = Math.min(4096, end + 1 - i);
+			if (failAfter >= 0 && served.get() + length > failAfter) {
+				// the server closes the connection when a handler fails
+				throw new IOException("simulated dropped connection");
+			}
+			os.write(result, i, length);
+			served.addAndGet(length);
+		}
+		os.close();
+	}
+
+	@Test
+	public void testParallelDownload() throws Exception {
+		File target = folder.newFile("result.bin");
+		new ResultDownloader(ws, 64 * 1024, 4, 0).download("job1", "result.bin", target);
+		assertArrayEquals(result, Files.readAllBytes(target.toPath()));
+		assertEquals(17, requests.get()); // one request per 64 kB chunk
+		assertFalse(new File(target.getPath() + ".part").exists());
+		assertFalse(new File(target.getPath() + ".part.state").exists());
+	}
+
+	@Test
+	public void testSingleStreamFallback() throws Exception {
+		acceptRanges = false;
+		File target = folder.newFile("result.bin");
+		new ResultDownloader(ws, 64 * 1024, 4, 0).download("job1", "result.bin", target);
+		assertArrayEquals(result, Files.readAllBytes(target.toPath()));
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testDownloadJobResult() throws Exception {
+		File target = new File(folder.getRoot(), "result.bin");
+		assertEquals(target.toPath(), ws.downloadJobResult("job1", "result.bin", target.toPath()));
+		assertArrayEquals(result, Files.readAllBytes(target.toPath()));
+		assertEquals(1, requests.get());
+		assertEquals(1, folder.getRoot().list().length); // no temporary files left behind
+
+		failAfter = served.get() + result.length / 2;
+		assertNull(ws.downloadJobResult("job1", "result.bin", target.toPath()));
+		assertArrayEquals(result, Files.readAllBytes(target.toPath())); // the previous download is untouched
+		assertEquals(1, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		File target = new File(folder.getRoot(), "result.bin");
+		failAfter = result.length / 2;
+		try {
+			new ResultDownloader(ws, 64 * 1024, 1, 0).download("job1", "result.bin", target);
+			fail("the download should have been interrupted");
+		} catch (Pipeline2Exception e) {
+			// expected
+		}
+		assertFalse(target.exists());
+		assertTrue(new File(target.getPath() + ".part.state").exists());
+
+		long servedBeforeResume = served.get();
+		failAfter = -1;
+		new ResultDownloader(ws, 64 * 1024, 4, 0).download("job1", "result.bin", target);
+		assertArrayEquals(result, Files.readAllBytes(target.toPath()));
+		// only the missing part has been downloaded again
+		assertTrue(served.get() - servedBeforeResume <= result.length - servedBeforeResume + 64 * 1024);
+	}
+
+}
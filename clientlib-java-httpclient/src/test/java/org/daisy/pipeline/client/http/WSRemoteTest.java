@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
@@ -19,6 +20,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 public class WSRemoteTest extends PaxExamConfig {
@@ -30,7 +32,15 @@ public class WSRemoteTest extends PaxExamConfig {
 	
 	@Test
 	public void testJobRemote() throws InterruptedException, ZipException, IOException {
-		WSInterface ws = new WS();
+		testJobRemote(new WS());
+	}
+	
+	@Test
+	public void testJobRemoteJavaHttpTransport() throws InterruptedException, ZipException, IOException {
+		testJobRemote(new WS(new JavaHttpTransport()));
+	}
+	
+	private void testJobRemote(WS ws) throws InterruptedException, ZipException, IOException {
 		assertFalse(ws.alive().localfs);
 		Job job; {
 			job = new Job();
@@ -62,8 +72,10 @@ public class WSRemoteTest extends PaxExamConfig {
 		assertNotNull(contextZip.getEntry("input1.xml"));
 		assertNotNull(contextZip.getEntry("input2.html"));
 		contextZip.close();
-		job = ws.postJob(job);
+		AtomicLong bytesUploaded = new AtomicLong();
+		job = ws.postJob(job, bytesUploaded::set);
 		assertNotNull(job);
+		assertTrue(bytesUploaded.get() > 0);
 		Thread.sleep(2000);
 		job = ws.getJob(job.getId(), 0);
 		assertEquals("The job is finished", Job.Status.SUCCESS, job.getStatus());
@@ -0,0 +1,57 @@
+package org.daisy.pipeline.client.http;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class WSRequestCoalescerTest {
+
+	@Test
+	public void testError() throws Exception {
+		WSRequestCoalescer coalescer = new WSRequestCoalescer();
+		Error error = new Error("failed to parse");
+		CountDownLatch leaderStarted = new CountDownLatch(1);
+		CountDownLatch waiterJoined = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> leader = executor.submit(() -> coalescer.execute("/jobs", () -> {
+				leaderStarted.countDown();
+				try {
+					waiterJoined.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw error;
+			}));
+			leaderStarted.await(10, TimeUnit.SECONDS);
+			Future<String> waiter = executor.submit(() -> coalescer.execute("/jobs", () -> "not the leader"));
+			while (coalescer.getSharedCount() == 0) {
+				Thread.sleep(10);
+			}
+			waiterJoined.countDown();
+			for (Future<String> call : Arrays.asList(leader, waiter)) {
+				try {
+					call.get(10, TimeUnit.SECONDS);
+					fail();
+				} catch (ExecutionException e) {
+					assertSame(error, e.getCause());
+				}
+			}
+			// the failed request is not reused
+			assertEquals("result", coalescer.execute("/jobs", () -> "result"));
+			assertEquals(2, coalescer.getRequestCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
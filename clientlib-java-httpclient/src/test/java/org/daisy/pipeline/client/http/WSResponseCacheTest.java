@@ -0,0 +1,35 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class WSResponseCacheTest {
+
+	private static WSResponse response(String cacheControl) {
+		return new WSResponse("http://localhost:8181/ws/scripts", 200, "OK", "", "application/xml", 0L,
+		                      new ByteArrayInputStream(new byte[0]),
+		                      Collections.singletonMap("Cache-Control", cacheControl));
+	}
+
+	@Test
+	public void testMaxAge() {
+		WSResponseCache cache = new WSResponseCache();
+		assertEquals(60000, cache.expires(response("max-age=60"), null, null, 0));
+		assertEquals(60000, cache.expires(response("public, max-age=60"), null, null, 0));
+		assertEquals(60000, cache.expires(response("s-maxage=10,max-age=60"), null, null, 0));
+		// s-maxage only applies to shared caches
+		assertEquals(0, cache.expires(response("s-maxage=10"), "\"etag\"", null, 0));
+		assertEquals(WSResponseCache.DEFAULT_TTL, cache.expires(response("s-maxage=10"), null, null, 0));
+		assertEquals(0, cache.expires(response("no-cache, max-age=60"), null, null, 0));
+	}
+
+	@Test
+	public void testDisabledByDefault() {
+		assertNull(new WS().getCache());
+	}
+}
@@ -0,0 +1,110 @@
+package org.daisy.pipeline.client.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.w3c.dom.Document;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WSResponseTest {
+
+	private static byte[] body(int messages) {
+		StringBuilder xml = new StringBuilder("<log xmlns=\"http://www.daisy.org/ns/pipeline/data\">");
+		for (int i = 0; i < messages; i++) {
+			xml.append("<line n=\"").append(i).append("\">æøå ").append(i).append("</line>");
+		}
+		return xml.append("</log>").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static WSResponse response(byte[] body, long threshold) {
+		WSResponse response = new WSResponse("http://localhost:8181/ws/jobs/job1/log", 200, "OK", "", "application/xml",
+		                                     (long)body.length, new ByteArrayInputStream(body));
+		response.setMemoryThreshold(threshold);
+		return response;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testInMemory() throws Exception {
+		byte[] body = body(10);
+		WSResponse response = response(body, 1024 * 1024);
+		assertEquals(new String(body, StandardCharsets.UTF_8), response.asText());
+		assertFalse(response.isSpilled());
+		assertArrayEquals(body, readAll(response.asStream()));
+		assertEquals(10, response.asXml().getDocumentElement().getChildNodes().getLength());
+		response.close();
+	}
+
+	@Test
+	public void testSpillToDisk() throws Exception {
+		byte[] body = body(10000);
+		WSResponse response = response(body, 4096);
+		response.buffer();
+		assertTrue(response.isSpilled());
+		File tmp = new File(System.getProperty("java.io.tmpdir"));
+		int files = tmp.list((dir, name) -> name.startsWith("pipeline2-response")).length;
+		assertTrue(files > 0);
+
+		// the body can be read more than once, in any form
+		assertEquals(new String(body, StandardCharsets.UTF_8), response.asText());
+		assertArrayEquals(body, readAll(response.asStream()));
+		assertArrayEquals(body, readAll(response.asStream()));
+		Document xml = response.asXml();
+		assertEquals(10000, xml.getDocumentElement().getChildNodes().getLength());
+
+		response.close();
+		assertEquals(files - 1, tmp.list((dir, name) -> name.startsWith("pipeline2-response")).length);
+	}
+
+	@Test
+	public void testTextLimit() throws Exception {
+		byte[] body = body(10000);
+		for (long threshold : new long[]{1024 * 1024, 4096}) {
+			WSResponse response = response(body, threshold);
+			response.setTextLimit(1000);
+			String text = response.asText();
+			String expected = new String(body, StandardCharsets.UTF_8);
+			String head = text.substring(0, text.indexOf("\n[truncated:"));
+			assertTrue(head.length() > 0);
+			assertTrue(expected.startsWith(head));
+			assertTrue(head.getBytes(StandardCharsets.UTF_8).length <= 1000);
+			assertTrue(text.endsWith(" of " + body.length + " bytes, read the response as a stream to get all of it]"));
+			// the stream is not truncated
+			assertArrayEquals(body, readAll(response.asStream()));
+			response.close();
+		}
+	}
+
+	@Test
+	public void testUnbufferedStream() throws Exception {
+		// asStream() does not buffer the body before it has been read in another way
+		byte[] body = body(10000);
+		InputStream connection = new ByteArrayInputStream(body);
+		WSResponse response = new WSResponse("http://localhost:8181/ws/jobs/job1/result", 200, "OK", "", "application/xml",
+		                                     (long)body.length, connection);
+		response.setMemoryThreshold(4096);
+		assertTrue(connection == response.asStream());
+		assertFalse(response.isSpilled());
+		response.close();
+	}
+
+}
@@ -1,7 +1,14 @@
 package org.daisy.pipeline.client.http;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.daisy.pipeline.client.filestorage.JobStorage;
 import org.daisy.pipeline.client.models.Alive;
@@ -42,6 +49,16 @@ public class WSTest extends PaxExamConfig {
 		assertEquals("1.14.4", alive.version);
 	}
 	
+	@Test
+	public void testAliveJavaHttpTransport() {
+		try (WS ws = new WS(new JavaHttpTransport())) {
+			Alive alive = ws.alive();
+			assertFalse(alive.error);
+			assertTrue(alive.localfs);
+			assertEquals("1.14.4", alive.version);
+		}
+	}
+	
 	@Test
 	public void testScripts() {
 		WSInterface ws = new WS();
@@ -117,9 +134,85 @@ public class WSTest extends PaxExamConfig {
 		assertEquals("foo:regex", option2.getType().toString());
 	}
 	
+	@Test
+	public void testAsync() throws InterruptedException, ExecutionException {
+		try (WS ws = new WS(new JavaHttpTransport())) {
+			AsyncWSInterface asyncWs = new AsyncWS(ws, Executors.newSingleThreadExecutor());
+			CompletableFuture<Alive> alive = asyncWs.alive();
+			CompletableFuture<List<Script>> scripts = asyncWs.getScripts();
+			CompletableFuture<Script> script = asyncWs.getScript("foo:script");
+			assertEquals("1.14.4", alive.get().version);
+			assertEquals(1, scripts.get().size());
+			assertEquals("Example script", script.get().getNicename());
+			assertNull(asyncWs.getScript("foo:non-existing").get());
+			assertFalse(asyncWs.deleteJob("non-existing").get());
+		}
+	}
+	
+	@Test
+	public void testCache() {
+		WS ws = new WS();
+		WSResponseCache cache = new WSResponseCache();
+		ws.setCache(cache);
+		assertEquals(1, ws.getScripts().size());
+		assertEquals(1, ws.getScripts().size());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount() + cache.getRevalidationCount());
+		// every call returns a separate copy
+		Script script = ws.getScript("foo:script");
+		script.getArgument("option-1").set("three");
+		assertNull(ws.getScript("foo:script").getArgument("option-1").get());
+	}
+	
+	@Test
+	public void testCoalescing() throws InterruptedException, ExecutionException {
+		WS ws = new WS();
+		ws.setCache(null);
+		WSRequestCoalescer coalescer = new WSRequestCoalescer();
+		ws.setCoalescer(coalescer);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Callable<List<Script>>> calls = new ArrayList<Callable<List<Script>>>();
+			for (int i = 0; i < 8; i++) {
+				calls.add(ws::getScripts);
+			}
+			List<Script> previous = null;
+			for (Future<List<Script>> scripts : executor.invokeAll(calls)) {
+				assertEquals(1, scripts.get().size());
+				// shared requests still give every caller its own models
+				assertFalse(scripts.get() == previous);
+				previous = scripts.get();
+			}
+			assertEquals(8, coalescer.getRequestCount() + coalescer.getSharedCount());
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void testCluster() {
+		WSCluster cluster = new WSCluster(new WS(), new WS());
+		try {
+			assertNotNull(cluster.alive());
+			assertEquals(1, cluster.getScripts().size());
+			assertNotNull(cluster.getQueue());
+			assertNull(cluster.getEngine("no-such-job"));
+		} finally {
+			cluster.close();
+		}
+	}
+	
 	@Test
 	public void testJobLocal() throws InterruptedException {
-		WSInterface ws = new WS();
+		testJobLocal(new WS());
+	}
+	
+	@Test
+	public void testJobLocalJavaHttpTransport() throws InterruptedException {
+		testJobLocal(new WS(new JavaHttpTransport()));
+	}
+	
+	private void testJobLocal(WSInterface ws) throws InterruptedException {
 		Job job; {
 			job = new Job();
 			job.setId("1");
@@ -0,0 +1,314 @@
+package org.daisy.pipeline.client.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A Pipeline 2 engine that answers with recorded responses, for testing and benchmarking the client without an engine.
+ *
+ * Responses are read from a directory like "clientlib-java/src/test/resources/responses":
+ * a GET request for "/ws/some/path" is answered with "some/path.xml". Recorded jobs can also
+ * be requested by their ID. A directory of numbered responses like "jobs/job7/1.xml",
+ * "jobs/job7/2.xml", ... is a polling sequence: every GET request for that job returns the
+ * next step, until the last step is reached.
+ *
+ * A POST to "/ws/jobs" creates a new job with a fresh ID that plays the first polling
+ * sequence, so each submitted job progresses through the recorded states on its own.
+ *
+ * Links in the responses are rewritten to point to the mock engine. The "msgSeq" parameter
+ * and authentication are ignored.
+ */
+public class MockEngine {
+
+	/** The recorded responses in clientlib-java, as seen from clientlib-java-httpclient */
+	public static final File DEFAULT_RESPONSES = new File("../clientlib-java/src/test/resources/responses");
+
+	private static final String RECORDED_ENDPOINT = "http://localhost:8181/ws";
+	private static final Pattern JOB_ID = Pattern.compile("<job\\b[^>]*?\\sid=\"([^\"]+)\"");
+
+	private final File responses;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final String endpoint;
+
+	private final Map<String,byte[]> cache = new ConcurrentHashMap<String,byte[]>();
+	private final Map<String,File> recordedJobs = new ConcurrentHashMap<String,File>();
+	private final Map<String,List<File>> sequences = new ConcurrentHashMap<String,List<File>>();
+	private final Map<String,Polling> jobs = new ConcurrentHashMap<String,Polling>();
+	private List<File> defaultSequence;
+	private String defaultSequenceJobId;
+
+	private volatile long latency = 0;
+	private volatile long bandwidth = 0;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	/* A job that is being polled, and where it is in its sequence */
+	private static class Polling {
+		final String recordedId;
+		final List<File> steps;
+		final AtomicInteger next = new AtomicInteger();
+		Polling(String recordedId, List<File> steps) {
+			this.recordedId = recordedId;
+			this.steps = steps;
+		}
+	}
+
+	/**
+	 * Start a mock engine on a free port that serves the responses in {@link #DEFAULT_RESPONSES}.
+	 *
+	 * @throws IOException thrown if the server could not be started
+	 */
+	public MockEngine() throws IOException {
+		this(DEFAULT_RESPONSES, 0);
+	}
+
+	/**
+	 * Start a mock engine.
+	 *
+	 * @param responses the directory with the recorded responses
+	 * @param port the port to listen on, or 0 for a free port
+	 * @throws IOException thrown if the server could not be started
+	 */
+	public MockEngine(File responses, int port) throws IOException {
+		this.responses = responses;
+		indexJobs();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/ws", this::handle);
+		server.start();
+		endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/ws";
+	}
+
+	/** The endpoint to use with WS.setEndpoint */
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	/** Wait this many milliseconds before answering each request. Defaults to 0. */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	/** Send response bodies at most this many bytes per second per request, or 0 for no limit. Defaults to 0. */
+	public void setBandwidth(long bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	/** The number of requests answered so far */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/** The number of request body bytes received so far, for instance for job uploads */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/** Start all polling sequences from the beginning, and forget all submitted jobs */
+	public void reset() {
+		jobs.clear();
+	}
+
+	/** Stop the server */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	// find the recorded jobs and polling sequences, by job ID
+	private void indexJobs() throws IOException {
+		File[] files = new File(responses, "jobs").listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isFile() && file.getName().endsWith(".xml")) {
+				String id = jobId(file);
+				if (id != null) {
+					recordedJobs.put(id, file);
+				}
+			} else if (file.isDirectory() && new File(file, "1.xml").isFile()) {
+				List<File> steps = new ArrayList<File>();
+				for (File step : file.listFiles()) {
+					if (step.getName().matches("\\d+\\.xml")) {
+						steps.add(step);
+					}
+				}
+				steps.sort(Comparator.comparing(step -> Integer.parseInt(step.getName().replace(".xml", ""))));
+				String id = jobId(steps.get(0));
+				if (id != null) {
+					sequences.put(id, steps);
+					if (defaultSequence == null) {
+						defaultSequence = steps;
+						defaultSequenceJobId = id;
+					}
+				}
+			}
+		}
+	}
+
+	private static String jobId(File file) throws IOException {
+		Matcher matcher = JOB_ID.matcher(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try (InputStream body = exchange.getRequestBody()) {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = body.read(buffer)) != -1) {
+				bytesReceived.addAndGet(read);
+			}
+		}
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath().substring("/ws".length());
+		if (path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		String[] segments = path.split("/");
+
+		if ("POST".equals(method) && "/jobs".equals(path)) {
+			if (defaultSequence == null) {
+				send(exchange, 500, null, null);
+				return;
+			}
+			String id = UUID.randomUUID().toString();
+			Polling job = new Polling(defaultSequenceJobId, defaultSequence);
+			jobs.put(id, job);
+			send(exchange, 201, step(job), id);
+
+		} else if ("DELETE".equals(method) && segments.length == 3 && "jobs".equals(segments[1])) {
+			boolean known = jobs.remove(segments[2]) != null || recordedJobs.containsKey(segments[2]) || sequences.containsKey(segments[2]);
+			send(exchange, known ? 204 : 404, null, null);
+
+		} else if ("GET".equals(method) && segments.length == 3 && "jobs".equals(segments[1]) && isJob(segments[2])) {
+			String id = segments[2];
+			if (recordedJobs.containsKey(id) && !sequences.containsKey(id)) {
+				send(exchange, 200, recordedJobs.get(id), null);
+			} else {
+				Polling job = jobs.computeIfAbsent(id, recorded -> new Polling(recorded, sequences.get(recorded)));
+				send(exchange, 200, step(job), id);
+			}
+
+		} else if ("GET".equals(method)) {
+			File file = new File(responses, path + ".xml");
+			if (!file.isFile()) {
+				file = new File(responses, path);
+			}
+			send(exchange, file.isFile() ? 200 : 404, file.isFile() ? file : null, null);
+
+		} else {
+			send(exchange, 405, null, null);
+		}
+	}
+
+	private boolean isJob(String id) {
+		return jobs.containsKey(id) || recordedJobs.containsKey(id) || sequences.containsKey(id);
+	}
+
+	// the current step of a polling sequence, then advance
+	private File step(Polling job) {
+		int step = job.next.getAndUpdate(i -> Math.min(i + 1, job.steps.size() - 1));
+		return job.steps.get(step);
+	}
+
+	private void send(HttpExchange exchange, int status, File file, String jobId) throws IOException {
+		if (file == null) {
+			String error = "<error xmlns=\"http://www.daisy.org/ns/pipeline/data\" query=\"" + exchange.getRequestURI() + "\"><description>Mock engine: " + status + "</description></error>";
+			byte[] body = error.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/xml");
+			exchange.sendResponseHeaders(status, status == 204 ? -1 : body.length);
+			if (status != 204) {
+				write(exchange.getResponseBody(), body);
+			}
+			exchange.close();
+			return;
+		}
+
+		byte[] body = load(file);
+		if (jobId != null) {
+			// posted jobs play a recorded sequence under their own ID
+			Polling job = jobs.get(jobId);
+			if (job != null && !jobId.equals(job.recordedId)) {
+				body = new String(body, StandardCharsets.UTF_8).replace(job.recordedId, jobId).getBytes(StandardCharsets.UTF_8);
+			}
+		}
+		exchange.getResponseHeaders().add("Content-Type", file.getName().endsWith(".xml") ? "application/xml" : "application/octet-stream");
+		exchange.sendResponseHeaders(status, body.length);
+		write(exchange.getResponseBody(), body);
+		exchange.close();
+	}
+
+	// a recorded response, with its links pointing to this server
+	private byte[] load(File file) throws IOException {
+		byte[] body = cache.get(file.getPath());
+		if (body == null) {
+			body = Files.readAllBytes(file.toPath());
+			if (file.getName().endsWith(".xml")) {
+				body = new String(body, StandardCharsets.UTF_8).replace(RECORDED_ENDPOINT, endpoint).getBytes(StandardCharsets.UTF_8);
+			}
+			cache.put(file.getPath(), body);
+		}
+		return body;
+	}
+
+	// write the body, throttled to the configured bandwidth
+	private void write(OutputStream os, byte[] body) throws IOException {
+		long bandwidth = this.bandwidth;
+		if (bandwidth <= 0) {
+			os.write(body);
+			return;
+		}
+		long start = System.nanoTime();
+		int slice = (int)Math.max(1, Math.min(body.length, bandwidth / 10));
+		for (int offset = 0; offset < body.length; offset += slice) {
+			int length = Math.min(slice, body.length - offset);
+			os.write(body, offset, length);
+			os.flush();
+			long due = start + (offset + length) * 1000000000L / bandwidth;
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+		}
+	}
+
+}
@@ -1,10 +1,13 @@
 package org.daisy.pipeline.client.filestorage;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -14,6 +17,7 @@ import org.daisy.pipeline.client.Pipeline2Exception;
 import org.daisy.pipeline.client.Pipeline2Logger;
 import org.daisy.pipeline.client.models.Argument;
 import org.daisy.pipeline.client.models.Job;
+import org.daisy.pipeline.client.models.StaxWriter;
 import org.daisy.pipeline.client.utils.XML;
 import org.w3c.dom.Document;
 
@@ -80,13 +84,10 @@ public class JobStorage {
 			
 			if (directory != null && directory.exists()) {
 				File jobFile = new File(directory, "job.xml");
-				String jobString = null;
 				Document jobDocument = null;
 				if (jobFile.exists()) {
-					try {
-						byte[] encoded = Files.readAllBytes(Paths.get(jobFile.getPath()));
-						jobString = new String(encoded, Charset.defaultCharset());
-						jobDocument = XML.getXml(jobString);
+					try (InputStream in = new FileInputStream(jobFile)) {
+						jobDocument = XML.getXml(in);
 	
 					} catch (IOException e) {
 						Pipeline2Logger.logger().error("Unable to load job.xml: "+jobFile.getAbsolutePath(), e);
@@ -143,13 +144,11 @@ public class JobStorage {
 		synchronized (lock) {
 
 			File jobFile = new File(directory, "job.xml");
-			Document jobDocument = job.toXml();
 
-			try {
-				String jobRequestString = XML.toString(jobDocument);
-				Files.write(jobFile.toPath(), jobRequestString.getBytes());
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(jobFile))) {
+				StaxWriter.writeJob(job, out);
 
-			} catch (IOException e) {
+			} catch (IOException | Pipeline2Exception e) {
 				Pipeline2Logger.logger().error("Unable to store XML for job", e);
 			}
 
@@ -329,6 +328,19 @@ public class JobStorage {
 			return null;
 		}
 	}
+	
+	/**
+	 * Bundles all context files up as a ZIP archive and writes it to the given stream.
+	 * 
+	 * Unlike {@link #makeContextZip()}, no temporary file is created, so the archive can
+	 * be streamed directly into a request body. The stream is not closed.
+	 * 
+	 * @param os the stream to write the ZIP archive to
+	 * @throws IOException thrown when an IOException occurs
+	 */
+	public synchronized void writeContextZip(OutputStream os) throws IOException {
+		org.daisy.pipeline.client.utils.Files.zip(getContextDir(), os);
+	}
 
 	/**
 	 * Test whether the given path exists in the context.
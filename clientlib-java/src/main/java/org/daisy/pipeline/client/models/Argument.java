@@ -8,10 +8,14 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.daisy.pipeline.client.Pipeline2Exception;
 import org.daisy.pipeline.client.Pipeline2Logger;
 import org.daisy.pipeline.client.filestorage.JobStorage;
 import org.daisy.pipeline.client.models.Argument;
+import org.daisy.pipeline.client.utils.DOM;
 import org.daisy.pipeline.client.utils.XML;
 import org.daisy.pipeline.client.utils.XPath;
 import org.w3c.dom.Document;
@@ -72,85 +76,80 @@ public class Argument {
 
 	private void lazyLoad() {
 		if (!lazyLoaded && argumentNode != null) {
-			try {
-				this.name = parseTypeString(XPath.selectText("@name", argumentNode, XPath.dp2ns));
+			this.name = parseTypeString(DOM.attribute(argumentNode, "name"));
 
-				this.nicename = parseTypeString(XPath.selectText("@nicename", argumentNode, XPath.dp2ns));
-				if (this.nicename == null || "".equals(this.nicename))
-					this.nicename = this.name;
+			this.nicename = parseTypeString(DOM.attribute(argumentNode, "nicename"));
+			if (this.nicename == null || "".equals(this.nicename))
+				this.nicename = this.name;
 
-				this.desc = XPath.selectText("@desc", argumentNode, XPath.dp2ns);
-				if (this.desc == null)
-					this.desc = "";
+			this.desc = DOM.attribute(argumentNode, "desc");
+			if (this.desc == null)
+				this.desc = "";
 
-				this.required = parseTypeBoolean(XPath.selectText("@required", argumentNode, XPath.dp2ns));
-				if (this.required == null)
-					this.required = true;
+			this.required = parseTypeBoolean(DOM.attribute(argumentNode, "required"));
+			if (this.required == null)
+				this.required = true;
 
-				this.sequence = parseTypeBoolean(XPath.selectText("@sequence", argumentNode, XPath.dp2ns));
-				if (this.sequence == null)
-					this.sequence = false;
+			this.sequence = parseTypeBoolean(DOM.attribute(argumentNode, "sequence"));
+			if (this.sequence == null)
+				this.sequence = false;
 
-				this.mediaTypes = parseTypeMediaTypes(XPath.selectText("@mediaType", argumentNode, XPath.dp2ns));
+			this.mediaTypes = parseTypeMediaTypes(DOM.attribute(argumentNode, "mediaType"));
 
-				try {
-					this.output = Output.valueOf(parseTypeString(XPath.selectText("@outputType", argumentNode, XPath.dp2ns)));
-				} catch (IllegalArgumentException e) {
-					this.kind = null;
-				} catch (NullPointerException e) {
-					this.kind = null;
-				}
-
-				try {
-					this.kind = Kind.valueOf(argumentNode.getLocalName()); // TODO "parameters": how to determine that a port is a parameter port?
-				} catch (IllegalArgumentException e) {
-					this.kind = null;
-				} catch (NullPointerException e) {
-					this.kind = null;
-				}
+			try {
+				this.output = Output.valueOf(parseTypeString(DOM.attribute(argumentNode, "outputType")));
+			} catch (IllegalArgumentException e) {
+				this.kind = null;
+			} catch (NullPointerException e) {
+				this.kind = null;
+			}
 
-				this.ordered = parseTypeBoolean(XPath.selectText("@ordered", argumentNode, XPath.dp2ns));
-				if (this.ordered == null)
-					this.ordered = true;
+			try {
+				this.kind = Kind.valueOf(argumentNode.getLocalName()); // TODO "parameters": how to determine that a port is a parameter port?
+			} catch (IllegalArgumentException e) {
+				this.kind = null;
+			} catch (NullPointerException e) {
+				this.kind = null;
+			}
 
-				this.type = parseTypeString(XPath.selectText("@type", argumentNode, XPath.dp2ns));
-				if (this.type == null)
-					this.type = "string";
+			this.ordered = parseTypeBoolean(DOM.attribute(argumentNode, "ordered"));
+			if (this.ordered == null)
+				this.ordered = true;
 
-				if (this.kind == Kind.input || this.kind == Kind.output) {
-					this.type = "anyFileURI";
-					
-					if (this.sequence && parseTypeBoolean(XPath.selectText("@required", argumentNode, XPath.dp2ns)) == null)
-						this.required = false;
+			this.type = parseTypeString(DOM.attribute(argumentNode, "type"));
+			if (this.type == null)
+				this.type = "string";
 
-					if (this.mediaTypes.size() == 0)
-						this.mediaTypes.add("application/xml");
-				}
+			if (this.kind == Kind.input || this.kind == Kind.output) {
+				this.type = "anyFileURI";
+				
+				if (this.sequence && parseTypeBoolean(DOM.attribute(argumentNode, "required")) == null)
+					this.required = false;
 
-				if (this.kind == Kind.output && this.output == null) {
-					this.output = Output.result;
-				}
+				if (this.mediaTypes.size() == 0)
+					this.mediaTypes.add("application/xml");
+			}
 
-				this.defaultValue = XPath.selectText("@default", argumentNode, XPath.dp2ns);
+			if (this.kind == Kind.output && this.output == null) {
+				this.output = Output.result;
+			}
 
-				List<Node> valueNodes = XPath.selectNodes("d:item", argumentNode, XPath.dp2ns);
-				if (valueNodes.isEmpty()) {
-					String value = XPath.selectText("text()", argumentNode, XPath.dp2ns);
-					if (value != null && !"".equals(value)) {
-						this.values = new ArrayList<String>();
-						this.values.add(normalizeValue(value));
-					}
+			this.defaultValue = DOM.attribute(argumentNode, "default");
 
-				} else {
+			List<Element> valueNodes = DOM.children(argumentNode, "item");
+			if (valueNodes.isEmpty()) {
+				String value = DOM.text(argumentNode);
+				if (value != null && !"".equals(value)) {
 					this.values = new ArrayList<String>();
-					for (Node valueNode : valueNodes) {
-						String value = XPath.selectText("@value", valueNode, XPath.dp2ns);
-						this.values.add(normalizeValue(value));
-					}
+					this.values.add(normalizeValue(value));
 				}
 
-			} catch (Pipeline2Exception e) {
-				Pipeline2Logger.logger().error("Failed to parse argument node", e);
+			} else {
+				this.values = new ArrayList<String>();
+				for (Element valueNode : valueNodes) {
+					String value = DOM.attribute(valueNode, "value");
+					this.values.add(normalizeValue(value));
+				}
 			}
 			lazyLoaded = true;
 		}
@@ -951,4 +950,38 @@ public class Argument {
 		return argDoc;
 	}
 
+	/* Streaming equivalent of toXml(), used by StaxWriter */
+	void toXml(XMLStreamWriter writer) throws XMLStreamException {
+		lazyLoad();
+
+		StaxWriter.startElement(writer, ""+kind, true);
+		StaxWriter.attribute(writer, "name", name);
+		StaxWriter.attribute(writer, "nicename", nicename);
+		StaxWriter.attribute(writer, "desc", desc);
+		StaxWriter.attribute(writer, "required", required);
+		StaxWriter.attribute(writer, "sequence", sequence);
+		if (mediaTypes != null) {
+			StaxWriter.attribute(writer, "mediaType", String.join(" ", mediaTypes));
+		}
+		StaxWriter.attribute(writer, "outputType", output);
+		StaxWriter.attribute(writer, "ordered", ordered);
+		StaxWriter.attribute(writer, "type", type);
+
+		if (values == null) {
+			// do nothing
+
+		} else if (values.size() == 1 && values.get(0).length() > 0 && !sequence) {
+			writer.writeCharacters(values.get(0));
+
+		} else {
+			for (String value : values) {
+				StaxWriter.startElement(writer, "item", false);
+				StaxWriter.attribute(writer, "value", value);
+				writer.writeEndElement();
+			}
+		}
+
+		writer.writeEndElement();
+	}
+
 }
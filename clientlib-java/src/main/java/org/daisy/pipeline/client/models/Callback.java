@@ -1,9 +1,10 @@
 package org.daisy.pipeline.client.models;
 
-import org.daisy.pipeline.client.Pipeline2Exception;
-import org.daisy.pipeline.client.Pipeline2Logger;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.daisy.pipeline.client.utils.DOM;
 import org.daisy.pipeline.client.utils.XML;
-import org.daisy.pipeline.client.utils.XPath;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -24,20 +25,15 @@ public class Callback implements Comparable<Callback> {
 	}
 	
 	public Callback(Node callbackElement) {
-		try {
-			this.href = XPath.selectText("@href", callbackElement, XPath.dp2ns);
-			String type = XPath.selectText("@href", callbackElement, XPath.dp2ns);
-			for (Type t : Type.values()) {
-				if (t.toString().equals(type)) {
-					this.type = t;
-					break;
-				}
+		this.href = DOM.attribute(callbackElement, "href");
+		String type = DOM.attribute(callbackElement, "type");
+		for (Type t : Type.values()) {
+			if (t.toString().equals(type)) {
+				this.type = t;
+				break;
 			}
-			this.frequency = XPath.selectText("@frequency", callbackElement, XPath.dp2ns);
-			
-		} catch (Pipeline2Exception e) {
-			Pipeline2Logger.logger().error("Unable to parse callback XML", e);
 		}
+		this.frequency = DOM.attribute(callbackElement, "frequency");
 	}
 	
 	@Override
@@ -64,4 +60,13 @@ public class Callback implements Comparable<Callback> {
 		return callbackDocument;
 	}
 	
+	/* Streaming equivalent of toXml(), used by StaxWriter */
+	void toXml(XMLStreamWriter writer) throws XMLStreamException {
+		StaxWriter.startElement(writer, "callback", true);
+		StaxWriter.attribute(writer, "href", href);
+		StaxWriter.attribute(writer, "type", type);
+		StaxWriter.attribute(writer, "frequency", frequency);
+		writer.writeEndElement();
+	}
+	
 }
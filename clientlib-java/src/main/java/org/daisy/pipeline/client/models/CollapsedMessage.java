@@ -0,0 +1,35 @@
+package org.daisy.pipeline.client.models;
+
+/**
+ * A job message, or a run of consecutive identical sibling messages shown as one entry.
+ *
+ * Messages are identical when they have the same parent, level, text, file, line and
+ * column, and no child messages or progress info, like the warnings that are emitted for
+ * every element of a certain kind. See {@link Job#getCollapsedMessages()}.
+ */
+public class CollapsedMessage {
+
+	/** The first message of the run. */
+	public final Message message;
+
+	/** The number of messages in the run, 1 if the message is not repeated. */
+	public final int count;
+
+	/** The sequence number of the first message of the run. */
+	public final int firstSequence;
+
+	/** The sequence number of the last message of the run. */
+	public final int lastSequence;
+
+	CollapsedMessage(Message message, int count, int firstSequence, int lastSequence) {
+		this.message = message;
+		this.count = count;
+		this.firstSequence = firstSequence;
+		this.lastSequence = lastSequence;
+	}
+
+	@Override
+	public String toString() {
+		return count == 1 ? message.toString() : message + " (" + count + " times, " + firstSequence + "-" + lastSequence + ")";
+	}
+}
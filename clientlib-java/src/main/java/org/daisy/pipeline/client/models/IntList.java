@@ -0,0 +1,88 @@
+package org.daisy.pipeline.client.models;
+
+import java.util.Arrays;
+
+/*
+ * A growable array of ints, without boxing.
+ */
+class IntList {
+
+	private int[] elements;
+	private int size = 0;
+
+	IntList() {
+		elements = new int[16];
+	}
+
+	int size() {
+		return size;
+	}
+
+	int get(int index) {
+		checkIndex(index, size);
+		return elements[index];
+	}
+
+	/* @return the previous element */
+	int set(int index, int element) {
+		checkIndex(index, size);
+		int previous = elements[index];
+		elements[index] = element;
+		return previous;
+	}
+
+	void add(int element) {
+		if (size == elements.length) {
+			elements = Arrays.copyOf(elements, size * 2);
+		}
+		elements[size++] = element;
+	}
+
+	void add(int index, int element) {
+		checkIndex(index, size + 1);
+		if (size == elements.length) {
+			elements = Arrays.copyOf(elements, size * 2);
+		}
+		System.arraycopy(elements, index, elements, index + 1, size - index);
+		elements[index] = element;
+		size++;
+	}
+
+	/* @return the removed element */
+	int remove(int index) {
+		checkIndex(index, size);
+		int removed = elements[index];
+		System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+		size--;
+		return removed;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	/* @return the index of the first occurrence of the element, or -1 */
+	int indexOf(int element) {
+		for (int i = 0; i < size; i++) {
+			if (elements[i] == element) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/* Like Arrays.binarySearch; the list must be sorted */
+	int binarySearch(int element) {
+		return Arrays.binarySearch(elements, 0, size, element);
+	}
+
+	void sort() {
+		Arrays.sort(elements, 0, size);
+	}
+
+	private static void checkIndex(int index, int size) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.daisy.pipeline.client.models;
+
+/*
+ * A hash map with int keys and non-null values, without boxing the keys.
+ *
+ * Uses open addressing with linear probing. The table size is a power of two and the table
+ * is grown when it is more than half full.
+ */
+class IntMap<V> {
+
+	private int[] keys;
+	private Object[] values; // null means that the slot is free
+	private int size = 0;
+	private int mask;
+
+	IntMap() {
+		this(16);
+	}
+
+	/* @param expectedSize the number of entries to make room for */
+	IntMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) * 2;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(int key) {
+		for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return (V)values[i];
+			}
+		}
+		return null;
+	}
+
+	/* @return the previous value, or null if there was none */
+	@SuppressWarnings("unchecked")
+	V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int i = hash(key) & mask;
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V previous = (V)values[i];
+				values[i] = value;
+				return previous;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+		return null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] != null) {
+				int i = hash(oldKeys[j]) & mask;
+				while (values[i] != null) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+}
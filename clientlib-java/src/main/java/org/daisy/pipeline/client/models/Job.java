@@ -13,10 +13,14 @@ import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.daisy.pipeline.client.Pipeline2Exception;
 import org.daisy.pipeline.client.Pipeline2Logger;
 import org.daisy.pipeline.client.filestorage.JobStorage;
 import org.daisy.pipeline.client.filestorage.JobValidator;
+import org.daisy.pipeline.client.utils.DOM;
 import org.daisy.pipeline.client.utils.Files;
 import org.daisy.pipeline.client.utils.XML;
 import org.daisy.pipeline.client.utils.XPath;
@@ -57,8 +61,11 @@ public class Job implements Comparable<Job> {
 	private Result result; // <results>, optional in job, not used in jobRequest, "all results"-zip
 	private SortedMap<Result,List<Result>> results; // results/result, optional in job, not used in jobRequest, "individual results"-zips as keys, individual files as values
 	private Node resultsNode;
+	private ResultIndex resultIndex; // lookup tables for results, built together with results
 
 	private BigDecimal progress;
+	private BigDecimal progressPercentageOf = null; // the progress that progressPercentage was computed from
+	private double progressPercentage;
 	
 	private boolean lazyLoaded = false;
 	private Node jobNode = null;
@@ -150,16 +157,15 @@ public class Job implements Comparable<Job> {
 		}
 
 		try {
-			if (resultsXml instanceof Document) {
-				resultsXml = XPath.selectNode("/*", resultsXml, XPath.dp2ns);
-			}
+			resultsXml = DOM.element(resultsXml);
 			
-			Node resultNode;
+			// walk the tree instead of compiling an XPath expression for every href that is looked up
+			Element resultNode;
 			if ("".equals(href)) {
-				resultNode = XPath.selectNode("./descendant-or-self::d:results", resultsXml, XPath.dp2ns);
+				resultNode = findDescendantOrSelf(resultsXml, "results", null);
 				
 			} else {
-				resultNode = XPath.selectNode("./descendant-or-self::*[@href='"+href.replaceAll("'", "''").replaceAll(" ", "%20")+"']", resultsXml, XPath.dp2ns);
+				resultNode = findDescendantOrSelf(resultsXml, null, href.replaceAll(" ", "%20"));
 			}
 			
 			if (resultNode != null) {
@@ -167,12 +173,29 @@ public class Job implements Comparable<Job> {
 			}
 
 		} catch (Pipeline2Exception e) {
-			Pipeline2Logger.logger().error("Could not parse job XML for finding the job result '"+href.replaceAll("'", "''").replaceAll(" ", "%20")+"'", e);
+			Pipeline2Logger.logger().error("Could not parse job XML for finding the job result '"+href.replaceAll(" ", "%20")+"'", e);
 		}
 		Pipeline2Logger.logger().debug("No result was found for href="+href);
 		return null;
 	}
 
+	/* Find the first element in document order, starting with the node itself, with the given
+	 * local name in the Pipeline 2 namespace (if not null) and the given href (if not null) */
+	private static Element findDescendantOrSelf(Node node, String localName, String href) {
+		if (node instanceof Element
+		    && (localName == null || DOM.isElement(node, localName))
+		    && (href == null || href.equals(DOM.attribute(node, "href")))) {
+			return (Element)node;
+		}
+		for (Node child = node == null ? null : node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			Element found = findDescendantOrSelf(child, localName, href);
+			if (found != null) {
+				return found;
+			}
+		}
+		return null;
+	}
+
 	private void lazyLoad() {
 		if (storage != null) {
 			storage.lazyLoad();
@@ -185,22 +208,22 @@ public class Job implements Comparable<Job> {
 		try {
 			// select root element if the node is a document node
 			if (jobNode instanceof Document) {
-				jobNode = XPath.selectNode("/*", jobNode, XPath.dp2ns);
+				jobNode = DOM.element(jobNode);
 			}
 
-			String id = XPath.selectText("@id", jobNode, XPath.dp2ns);
+			String id = DOM.attribute(jobNode, "id");
 			if (id != null) {
 				this.id = id;
 			}
-			this.href = XPath.selectText("@href", jobNode, XPath.dp2ns);
-			String status = XPath.selectText("@status", jobNode, XPath.dp2ns);
+			this.href = DOM.attribute(jobNode, "href");
+			String status = DOM.attribute(jobNode, "status");
 			for (Status s : Status.values()) {
 				if (s.toString().equals(status)) {
 					this.status = s;
 					break;
 				}
 			}
-			String priority = XPath.selectText("@priority", jobNode, XPath.dp2ns);
+			String priority = DOM.attribute(jobNode, "priority");
 			for (Priority p : Priority.values()) {
 				if (p.toString().equals(priority)) {
 					this.priority = p;
@@ -209,7 +232,7 @@ public class Job implements Comparable<Job> {
 			}
 			if (this.priority == null) {
 				// in the job XML, the priority is a attribute, but in the job request xml, it is an element
-				priority = XPath.selectText("d:priority", jobNode, XPath.dp2ns);
+				priority = DOM.childText(jobNode, "priority");
 				for (Priority p : Priority.values()) {
 					if (p.toString().equals(priority)) {
 						this.priority = p;
@@ -217,7 +240,7 @@ public class Job implements Comparable<Job> {
 					}
 				}
 			}
-			String queuePosition = XPath.selectText("@queue-position", jobNode, XPath.dp2ns);
+			String queuePosition = DOM.attribute(jobNode, "queue-position");
 			if (queuePosition != null) {
 				try {
 					this.queuePosition = Integer.parseInt(queuePosition);
@@ -225,22 +248,22 @@ public class Job implements Comparable<Job> {
 					Pipeline2Logger.logger().debug("Could not parse the queue position as an integer.", e);
 				}
 			}
-			this.nicename = XPath.selectText("d:nicename", jobNode, XPath.dp2ns);
-			this.description = XPath.selectText("d:description", jobNode, XPath.dp2ns);
-			this.batchId = XPath.selectText("d:batchId", jobNode, XPath.dp2ns);
+			this.nicename = DOM.childText(jobNode, "nicename");
+			this.description = DOM.childText(jobNode, "description");
+			this.batchId = DOM.childText(jobNode, "batchId");
 			
-			Node scriptNode = XPath.selectNode("d:script", jobNode, XPath.dp2ns);
+			Node scriptNode = DOM.child(jobNode, "script");
 			if (scriptNode != null) {
 				this.script = new Script(scriptNode);
 			}
 			
-			this.logHref = XPath.selectText("d:log/@href", jobNode, XPath.dp2ns);
+			this.logHref = DOM.childAttribute(jobNode, "log", "href");
 			this.callback = new ArrayList<Callback>();
-			for (Node callbackNode : XPath.selectNodes("d:callback", jobNode, XPath.dp2ns)) {
+			for (Node callbackNode : DOM.children(jobNode, "callback")) {
 				this.callback.add(new Callback(callbackNode));
 			}
-			this.messagesNode = XPath.selectNode("d:messages", jobNode, XPath.dp2ns);
-			String progressString = XPath.selectText("d:messages/@progress", jobNode, XPath.dp2ns);
+			this.messagesNode = DOM.child(jobNode, "messages");
+			String progressString = DOM.attribute(this.messagesNode, "progress");
 			if (progressString != null) {
 				try {
 					this.progress = new BigDecimal(Double.parseDouble(progressString));
@@ -248,7 +271,7 @@ public class Job implements Comparable<Job> {
 					Pipeline2Logger.logger().debug("Could not parse the progress as a decimal number.", e);
 				}
 			}
-			this.resultsNode = XPath.selectNode("d:results", jobNode, XPath.dp2ns);
+			this.resultsNode = DOM.child(jobNode, "results");
 
 			// Arguments are both part of the script XML and the jobRequest XML.
 			// We could keep a separate copy of the arguments here in the Job instance, but that seems a bit unneccessary.
@@ -259,10 +282,10 @@ public class Job implements Comparable<Job> {
 			if (this.script == null) {
 				argumentInputs = new ArrayList<Argument>();
 				argumentOutputs = new ArrayList<Argument>();
-				for (Node node : XPath.selectNodes("d:input | d:option", jobNode, XPath.dp2ns)) {
+				for (Node node : DOM.children(jobNode, "input", "option")) {
 					argumentInputs.add(new Argument(node));
 				}
-				for (Node node : XPath.selectNodes("d:output", jobNode, XPath.dp2ns)) {
+				for (Node node : DOM.children(jobNode, "output")) {
 					argumentOutputs.add(new Argument(node));
 				}
 			}
@@ -300,62 +323,156 @@ public class Job implements Comparable<Job> {
 		if (messages == null && messagesNode != null) {
 			try {
 				List<Message> messagesTree = new ArrayList<Message>();
-				List<Node> messageNodes = XPath.selectNodes("d:message", this.messagesNode, XPath.dp2ns);
-				for (Node messageNode : messageNodes) {
+				for (Node messageNode : DOM.children(this.messagesNode, "message")) {
 					Message m = parseMessage(messageNode, now);
 					messagesTree.add(m);
 				}
-				String msgSeq = XPath.selectText("@msgSeq", this.messagesNode, XPath.dp2ns);
+				String msgSeq = DOM.attribute(this.messagesNode, "msgSeq");
 				messages = new JobMessages(messagesTree, msgSeq != null ? Integer.parseInt(msgSeq) : -1);
 			} catch (Exception e) {
 				Pipeline2Logger.logger().error("Unable to parse messages XML", e);
 			}
 		}
-		if (maxDepth >= 0) {
-			ArrayList<Message> filteredMessages = new ArrayList<Message>();
-			for (Message m : messages) {
-				if (m.getDepth() <= maxDepth) {
-					filteredMessages.add(m);
-				}
-			}
-			return filteredMessages;
+		if (maxDepth >= 0 && messages != null) {
+			return messages.query(Integer.MIN_VALUE, Integer.MAX_VALUE, null, maxDepth);
 		} else {
 			return messages;
 		}
 	}
 
+	/**
+	 * Get a page of messages for the job, in order of sequence number.
+	 * 
+	 * The messages are looked up in an index that is kept up to date when updates are
+	 * joined, so the cost of a page does not depend on the total number of messages.
+	 * 
+	 * @param fromSequence The sequence number of the first message. For the next page, use
+	 *                     the sequence number of the last message on this page plus one.
+	 * @param limit The maximum number of messages
+	 * @param minLevel Leave out messages that are less severe than this level, unless they
+	 *                 have more severe sub-messages (see {@link Message#getInferredLevel()}).
+	 *                 Use null for all levels.
+	 * @param maxDepth Don't return messages deeper than this level (-1 for all messages)
+	 * @return The list of messages, or null if the job has no messages
+	 */
+	public List<Message> queryMessages(int fromSequence, int limit, Message.Level minLevel, int maxDepth) {
+		getMessages(); // lazy load messages
+		if (messages == null) {
+			return null;
+		}
+		return messages.query(fromSequence, limit, minLevel, maxDepth);
+	}
+	
+	/**
+	 * Get the number of messages for the job that are at least as severe as the given
+	 * level, or that have sub-messages that are (see {@link Message#getInferredLevel()}).
+	 * 
+	 * @param minLevel The level. Use null to count all messages.
+	 * @return The number of messages
+	 */
+	public int getMessageCount(Message.Level minLevel) {
+		getMessages(); // lazy load messages
+		if (messages == null) {
+			return 0;
+		}
+		return messages.count(minLevel);
+	}
+	
+	/**
+	 * Get the messages for the job, with runs of consecutive identical sibling messages
+	 * collapsed into one entry with a count and a sequence range.
+	 * 
+	 * Use this to show a job that emits the same warning thousands of times: the cost
+	 * scales with the number of distinct messages rather than the total number.
+	 * 
+	 * @return The list of messages, or null if the job has no messages
+	 */
+	public List<CollapsedMessage> getCollapsedMessages() {
+		return getCollapsedMessages(-1);
+	}
+	
+	/**
+	 * Get the messages for the job, with runs of consecutive identical sibling messages
+	 * collapsed into one entry.
+	 * 
+	 * @param maxDepth Don't return messages deeper than this level
+	 * @return The list of messages, or null if the job has no messages
+	 */
+	public List<CollapsedMessage> getCollapsedMessages(int maxDepth) {
+		getMessages(); // lazy load messages
+		if (messages == null) {
+			return null;
+		}
+		return messages.collapse(maxDepth);
+	}
+
+	/**
+	 * Get an immutable copy of the current state of the job, that can be shared between
+	 * threads without locking.
+	 * 
+	 * The job is fully loaded and its messages are copied, so the cost is proportional to the
+	 * number of messages. Take a snapshot after an update is joined, not for every read.
+	 * 
+	 * @return The snapshot
+	 */
+	public JobSnapshot snapshot() {
+		getMessages(); // lazy load messages
+		lazyLoadResults();
+		return new JobSnapshot(this, messages, resultIndex);
+	}
+
+	/**
+	 * Parse everything that is otherwise parsed lazily when it is first accessed.
+	 * 
+	 * After this, reading the job does not modify it anymore, so the job can be read from
+	 * several threads as long as it is not modified or updated.
+	 */
+	public void materialize() {
+		getStatus();
+		getMessages();
+		getResults();
+		for (Argument argument : getArguments()) {
+			argument.size();
+		}
+	}
+
 	private static Message parseMessage(Node messageNode, long now) throws Pipeline2Exception {
 		Message m = new Message(now);
-		m.text = XPath.selectText("@content", messageNode, XPath.dp2ns);
-		if (XPath.selectText("@level", messageNode, XPath.dp2ns) != null) {
-			m.level = Message.Level.valueOf(XPath.selectText("@level", messageNode, XPath.dp2ns));
+		m.text = DOM.attribute(messageNode, "content");
+		String level = DOM.attribute(messageNode, "level");
+		if (level != null) {
+			m.level = Message.Level.valueOf(level);
 		}
-		if (XPath.selectText("@sequence", messageNode, XPath.dp2ns) != null) {
-			m.sequence = Integer.valueOf(XPath.selectText("@sequence", messageNode, XPath.dp2ns));
+		String sequence = DOM.attribute(messageNode, "sequence");
+		if (sequence != null) {
+			m.sequence = Integer.valueOf(sequence);
 		}
-		if (XPath.selectText("@line", messageNode, XPath.dp2ns) != null) {
-			m.line = Integer.valueOf(XPath.selectText("@line", messageNode, XPath.dp2ns));
+		String line = DOM.attribute(messageNode, "line");
+		if (line != null) {
+			m.line = Integer.valueOf(line);
 		}
-		if (XPath.selectText("@column", messageNode, XPath.dp2ns) != null) {
-			m.column = Integer.valueOf(XPath.selectText("@column", messageNode, XPath.dp2ns));
+		String column = DOM.attribute(messageNode, "column");
+		if (column != null) {
+			m.column = Integer.valueOf(column);
 		}
-		if (XPath.selectText("@timeStamp", messageNode, XPath.dp2ns) != null) {
-			m.setTimeStamp(XPath.selectText("@timeStamp", messageNode, XPath.dp2ns));
+		String timeStamp = DOM.attribute(messageNode, "timeStamp");
+		if (timeStamp != null) {
+			m.setTimeStamp(timeStamp);
 		}
-		if (XPath.selectText("@file", messageNode, XPath.dp2ns) != null) {
-			m.file = XPath.selectText("@file", messageNode, XPath.dp2ns);
+		String file = DOM.attribute(messageNode, "file");
+		if (file != null) {
+			m.file = file;
 		}
-		String portion = XPath.selectText("@portion", messageNode, XPath.dp2ns);
+		String portion = DOM.attribute(messageNode, "portion");
 		if (portion != null) {
 			Message.ProgressInfo progressInfo = new Message.ProgressInfo();
 			progressInfo.portion = new BigDecimal(portion);
-			String progress = XPath.selectText("@progress", messageNode, XPath.dp2ns);
+			String progress = DOM.attribute(messageNode, "progress");
 			progressInfo.progress = progress != null ? new BigDecimal(progress) : BigDecimal.ZERO;
 			m.progressInfo = progressInfo;
 		}
-		List<Node> childNodes = XPath.selectNodes("d:message", messageNode, XPath.dp2ns);
 		m.children = new ArrayList<Message>();
-		for (Node n : childNodes) {
+		for (Node n : DOM.children(messageNode, "message")) {
 			Message mm = parseMessage(n, now);
 			mm.parentSequence = m.sequence;
 			mm.parent = m;
@@ -371,13 +488,11 @@ public class Job implements Comparable<Job> {
 				result = Result.parseResultXml(this.resultsNode, href);
 				results = new TreeMap<Result,List<Result>>();
 
-				List<Node> resultNodes = XPath.selectNodes("d:result", this.resultsNode, XPath.dp2ns);
-				for (Node resultPortOrOptionNode : resultNodes) {
+				for (Node resultPortOrOptionNode : DOM.children(this.resultsNode, "result")) {
 					Result resultPortOrOption = Result.parseResultXml(resultPortOrOptionNode, result.href);
 					List<Result> portOrOptionResults = new ArrayList<Result>();
 
-					List<Node> fileNodes = XPath.selectNodes("d:result", resultPortOrOptionNode, XPath.dp2ns);
-					for (Node fileNode : fileNodes) {
+					for (Node fileNode : DOM.children(resultPortOrOptionNode, "result")) {
 						Result file = Result.parseResultXml(fileNode, resultPortOrOption.href);
 						portOrOptionResults.add(file);
 					}
@@ -385,6 +500,7 @@ public class Job implements Comparable<Job> {
 
 					results.put(resultPortOrOption, portOrOptionResults);
 				}
+				resultIndex = new ResultIndex(result, results);
 
 			} catch (Pipeline2Exception e) {
 				Pipeline2Logger.logger().error("Unable to parse results XML", e);
@@ -410,15 +526,10 @@ public class Job implements Comparable<Job> {
 	 */
 	public Result getResult(String argumentName) {
 		lazyLoadResults();
-		if (argumentName == null) {
+		if (argumentName == null || resultIndex == null) {
 			return null;
 		}
-		for (Result result : getResults().keySet()) {
-			if (argumentName.equals(result.name)) {
-				return result;
-			}
-		}
-		return null;
+		return resultIndex.getByName(argumentName);
 	}
 
 	/**
@@ -437,17 +548,11 @@ public class Job implements Comparable<Job> {
 		href = href.replaceAll(" ", "%20");
 
 		Result argument = getResult(argumentName);
-		if (!results.containsKey(argument)) {
+		if (argument == null) {
 			return null;
 		}
 
-		for (Result r : getResults(argumentName)) {
-			if (href.equals(r.href) || href.equals(r.prettyRelativeHref)) {
-				return r;
-			}
-		}
-
-		return null;
+		return resultIndex.getFile(argument, href);
 	}
 
 	/**
@@ -457,15 +562,11 @@ public class Job implements Comparable<Job> {
 	 * @return The list of results
 	 */
 	public List<Result> getResults(String argumentName) {
-		if (argumentName == null) {
+		Result argument = getResult(argumentName);
+		if (argument == null) {
 			return null;
 		}
-		for (Result result : getResults().keySet()) {
-			if (argumentName.equals(result.name)) {
-				return results.get(result);
-			}
-		}
-		return null;
+		return results.get(argument);
 	}
 
 	/**
@@ -484,6 +585,24 @@ public class Job implements Comparable<Job> {
 		return results;
 	}
 
+	/**
+	 * Get all results whose href relative to the top-level `…/result` URL starts with the given prefix.
+	 * 
+	 * This can be used to browse the results like a directory tree. For instance, the prefix
+	 * "option/output-dir/idx/output-dir/epub/" gives all the files in the "epub" directory of the
+	 * "output-dir" option, and an empty prefix gives all results.
+	 * 
+	 * @param prefix The start of the relative href
+	 * @return The matching results, sorted by relative href, or null if the job has no results
+	 */
+	public SortedMap<String,Result> getResultsByRelativeHref(String prefix) {
+		lazyLoadResults();
+		if (resultIndex == null) {
+			return null;
+		}
+		return resultIndex.getByRelativeHrefPrefix(prefix);
+	}
+
 	/**
 	 * Parse the list of jobs described by the provided XML document/node.
 	 * Example: http://daisy-pipeline.googlecode.com/hg/webservice/samples/xml-formats/jobs.xml
@@ -496,11 +615,13 @@ public class Job implements Comparable<Job> {
 		List<Job> jobs = new ArrayList<Job>();
 
 		// select root element if the node is a document node
-		if (jobsXml instanceof Document)
-			jobsXml = XPath.selectNode("/d:jobs", jobsXml, XPath.dp2ns);
+		if (jobsXml instanceof Document) {
+			jobsXml = DOM.element(jobsXml);
+			if (jobsXml != null && !DOM.isElement(jobsXml, "jobs"))
+				jobsXml = null;
+		}
 
-		List<Node> jobNodes = XPath.selectNodes("d:job", jobsXml, XPath.dp2ns);
-		for (Node jobNode : jobNodes) {
+		for (Node jobNode : DOM.children(jobsXml, "job")) {
 			jobs.add(new Job(jobNode));
 		}
 
@@ -596,23 +717,65 @@ public class Job implements Comparable<Job> {
 		this.progress = jobUpdate.progress;
 		if (this.messages == null) {
 			this.messages = jobUpdate.messages;
+			Collections.sort(this.messages);
 		} else {
-			this.messages.join(jobUpdate.messages);
+			this.messages.join(jobUpdate.messages); // keeps the messages sorted
 		}
-		Collections.sort(this.messages);
 	}
 	
+	/**
+	 * Update this job with a job update, like the response to a request with msgSeq.
+	 *
+	 * The status, priority, queue position, log and progress are taken from the update, the new
+	 * and changed messages are merged into the existing messages (see {@link #joinMessages(Job)}),
+	 * and the results are taken from the update once they are available. The script and
+	 * arguments of this job are kept as they are, so they are not parsed again.
+	 *
+	 * @param jobUpdate The job update
+	 */
+	public void joinUpdate(Job jobUpdate) {
+		lazyLoad();
+		if (this == jobUpdate) {
+			return;
+		}
+		jobUpdate.lazyLoad();
+		if (jobUpdate.status != null) {
+			this.status = jobUpdate.status;
+		}
+		if (jobUpdate.priority != null) {
+			this.priority = jobUpdate.priority;
+		}
+		this.queuePosition = jobUpdate.queuePosition;
+		if (jobUpdate.logHref != null) {
+			this.logHref = jobUpdate.logHref;
+		}
+		if (jobUpdate.messages == null && jobUpdate.messagesNode != null) {
+			jobUpdate.getMessages();
+		}
+		if (jobUpdate.messages != null) {
+			joinMessages(jobUpdate);
+		} else if (jobUpdate.progress != null) {
+			this.progress = jobUpdate.progress;
+		}
+		if (jobUpdate.resultsNode != null || jobUpdate.results != null) {
+			this.resultsNode = jobUpdate.resultsNode;
+			this.result = jobUpdate.result;
+			this.results = jobUpdate.results;
+			this.resultIndex = jobUpdate.resultIndex;
+		}
+	}
+
 	// for testing only
 	void joinMessages(List<Message> messagesTree) {
 		lazyLoad();
 		JobMessages update = new JobMessages(messagesTree, -1);
 		if (this.messages == null) {
 			this.messages = update;
+			Collections.sort(this.messages);
 		} else {
 			this.messages.join(update);
 		}
-		Collections.sort(this.messages);
-		this.progress = messages.getProgressFrom();
+		this.progress = BigDecimal.valueOf(messages.getProgressFrom());
 	}
 	
 	public void setResults(Result result, SortedMap<Result, List<Result>> results) {
@@ -622,6 +785,7 @@ public class Job implements Comparable<Job> {
 		if (this.results != results) {
 			if (results == null) {
 				this.results = null;
+				this.resultIndex = null;
 				
 			} else {
 				this.results = new TreeMap<Result,List<Result>>();
@@ -635,6 +799,9 @@ public class Job implements Comparable<Job> {
 		}
 		
 		this.result = result;
+		if (this.results != null) {
+			this.resultIndex = new ResultIndex(result, this.results);
+		}
 	}
 
 	/** Set job XML and re-enable lazy loading for the new XML.
@@ -646,6 +813,11 @@ public class Job implements Comparable<Job> {
 		this.lazyLoaded = false;
 	}
 
+	/* Set messages that were parsed from the job XML up front, see StaxParser */
+	void setParsedMessages(JobMessages messages) {
+		this.messages = messages;
+	}
+
 	public List<Argument> getInputs() {
 		lazyLoad();
 		if (script == null) {
@@ -739,17 +911,7 @@ public class Job implements Comparable<Job> {
 		if (href == null || "".equals(href) || href.equals(result.href) || href.equals(result.relativeHref)) {
 			return result;
 		}
-		for (Result key : results.keySet()) {
-			if (href.equals(key.href) || href.equals(key.relativeHref)) {
-				return key;
-			}
-			for (Result value : results.get(key)) {
-				if (value != null && (href.equals(value.href) || href.equals(value.relativeHref))) {
-					return value;
-				}
-			}
-		}
-		return null;
+		return resultIndex == null ? null : resultIndex.getByHref(href);
 	}
 
 	public Document toXml() {
@@ -816,7 +978,9 @@ public class Job implements Comparable<Job> {
 			if (messages.msgSeq >= 0)
 				msgsElement.setAttribute("msgSeq", ""+messages.msgSeq);
 			for (Message m : messages.asTree()) {
-				XML.appendChildAcrossDocuments(msgsElement, m.toXml());
+				Element msgElement = jobDocument.createElementNS(XPath.dp2ns.get("d"), "message");
+				m.toXml(msgElement, true);
+				msgsElement.appendChild(msgElement);
 			}
 			jobElement.appendChild(msgsElement);
 		}
@@ -854,6 +1018,88 @@ public class Job implements Comparable<Job> {
 		return jobDocument;
 	}
 
+	/* Streaming equivalent of toXml(), used by StaxWriter */
+	void toXml(XMLStreamWriter writer) throws XMLStreamException {
+		lazyLoad();
+
+		StaxWriter.startElement(writer, "job", true);
+		StaxWriter.attribute(writer, "id", id);
+		StaxWriter.attribute(writer, "href", href);
+		StaxWriter.attribute(writer, "status", status);
+		StaxWriter.attribute(writer, "priority", priority);
+
+		if (script != null) {
+			script.toXml(writer);
+		}
+
+		StaxWriter.textElement(writer, "nicename", nicename, false);
+		StaxWriter.textElement(writer, "description", description, true);
+		StaxWriter.textElement(writer, "batchId", batchId, false);
+
+		if (logHref != null) {
+			StaxWriter.startElement(writer, "log", false);
+			StaxWriter.attribute(writer, "href", logHref);
+			writer.writeEndElement();
+		}
+
+		if (callback != null) {
+			for (Callback c : callback) {
+				c.toXml(writer);
+			}
+		}
+
+		// parse messages and results that were not accessed yet, so that they are written too
+		if (messages == null && messagesNode != null) {
+			getMessages();
+		}
+		lazyLoadResults();
+		if (messages != null) {
+			StaxWriter.startElement(writer, "messages", false);
+			if (progress != null)
+				StaxWriter.attribute(writer, "progress", Float.toString(progress.floatValue()));
+			if (messages.msgSeq >= 0)
+				StaxWriter.attribute(writer, "msgSeq", messages.msgSeq);
+			for (Message m : messages.asTree()) {
+				StaxWriter.startElement(writer, "message", false);
+				m.toXml(writer, true);
+				writer.writeEndElement();
+			}
+			writer.writeEndElement();
+		}
+
+		if (results != null) {
+			StaxWriter.startElement(writer, "results", false);
+			result.toXml(writer);
+			for (Result r : results.keySet()) {
+				StaxWriter.startElement(writer, "result", false);
+				r.toXml(writer);
+				for (Result fileResult : results.get(r)) {
+					StaxWriter.startElement(writer, "result", false);
+					fileResult.toXml(writer);
+					writer.writeEndElement();
+				}
+				writer.writeEndElement();
+			}
+			writer.writeEndElement();
+		}
+
+		// input and option values are stored in /job/script/* instead of here; see toXml()
+		if (script == null) {
+			if (argumentInputs != null) {
+				for (Argument arg : argumentInputs) {
+					arg.toXml(writer);
+				}
+			}
+			if (argumentOutputs != null) {
+				for (Argument arg : argumentOutputs) {
+					arg.toXml(writer);
+				}
+			}
+		}
+
+		writer.writeEndElement();
+	}
+
 	/**
 	 * Create jobRequest XML.
 	 * 
@@ -1057,26 +1303,27 @@ public class Job implements Comparable<Job> {
 	public double getProgressFrom() {
 		lazyLoad();
 		if (progress == null && messagesNode != null) {
-			try {
-				String attr = XPath.selectText("@progress", this.messagesNode, XPath.dp2ns);
-				if (attr == null) {
-					// support this case for testing purposes
-					if (messages != null) {
-						progress = messages.getProgressFrom();
-					} else {
-						throw new RuntimeException("could not compute progress");
-					}
+			String attr = DOM.attribute(this.messagesNode, "progress");
+			if (attr == null) {
+				// support this case for testing purposes
+				if (messages != null) {
+					progress = BigDecimal.valueOf(messages.getProgressFrom());
 				} else {
-					progress = new BigDecimal(attr).min(BigDecimal.ONE);
+					throw new RuntimeException("could not compute progress");
 				}
-			} catch (Pipeline2Exception e) {
-				throw new RuntimeException(e);
+			} else {
+				progress = new BigDecimal(attr).min(BigDecimal.ONE);
 			}
 		}
 		if (progress == null) {
 			return 0.0;
 		} else {
-			return toPercentage(progress);
+			// called repeatedly for every progress estimate, so avoid BigDecimal arithmetic
+			if (progress != progressPercentageOf) {
+				progressPercentage = toPercentage(progress);
+				progressPercentageOf = progress;
+			}
+			return progressPercentage;
 		}
 	}
 
@@ -1113,7 +1360,8 @@ public class Job implements Comparable<Job> {
 		if (messages == null) {
 			return 100.0;
 		} else {
-			return Math.min(100.0, getProgressFrom() + getProgressInterval(now, timeUntilUpdateRequest));
+			return progressTo(getProgressFrom(), messages.getProgressInterval() * 100.0, messages.getJobStartTime(),
+			                  now, timeUntilUpdateRequest);
 		}
 	}
 
@@ -1190,25 +1438,36 @@ public class Job implements Comparable<Job> {
 		} else if (messages == null) {
 			return 0.0;
 		} else {
-			Long previousTime = messages.getProgressFromTime();
-			if (previousTime == null) previousTime = now;
-			Double previousPercentage = getProgressFrom();
-			Double nextPercentage = getProgressTo();
-			Double inverseExponential = nextPercentage
-                                        - (nextPercentage - previousPercentage)
-                                          * Math.exp(-(double)Math.max(0L, now - previousTime)
-                                                     / getProgressTimeConstant(now, timeUntilUpdateRequest));
-			Double linear = previousPercentage + (now - previousTime) * getAverageProgress(now);
-			
-			// Linear progress will be lower than inverse exponential progress
-			// for the first 95% of the progress interval. After that, the progress
-			// follows an inverse exponential curve so that the progress is always
-			// moving forward, while never exceeding the progress interval.
-			return Math.min(linear, inverseExponential);
-			
+			return progressEstimate(getProgressFrom(), getProgressTo(), messages.getProgressInterval() * 100.0,
+			                        messages.getProgressFromTime(), messages.getJobStartTime(), now, timeUntilUpdateRequest);
 		}
 	}
 	
+	// The progress computations below only depend on the progress as a percentage, the current
+	// progress interval as a percentage, and the time stamps of the progress and of the first
+	// progress message, so that they can be shared with JobSnapshot.
+	
+	static double progressTo(double progressFrom, double interval, Long jobStartTime, long now, Integer timeUntilUpdateRequest) {
+		return Math.min(100.0, progressFrom + progressInterval(progressFrom, interval, jobStartTime, now, timeUntilUpdateRequest));
+	}
+	
+	static double progressEstimate(double previousPercentage, double nextPercentage, double interval,
+	                               Long progressFromTime, Long jobStartTime, long now, Integer timeUntilUpdateRequest) {
+		long previousTime = progressFromTime != null ? progressFromTime : now;
+		double inverseExponential = nextPercentage
+		                            - (nextPercentage - previousPercentage)
+		                              * Math.exp(-(double)Math.max(0L, now - previousTime)
+		                                         / progressTimeConstant(previousPercentage, interval, progressFromTime,
+		                                                                jobStartTime, now, timeUntilUpdateRequest));
+		double linear = previousPercentage + (now - previousTime) * averageProgress(previousPercentage, jobStartTime, now);
+		
+		// Linear progress will be lower than inverse exponential progress
+		// for the first 95% of the progress interval. After that, the progress
+		// follows an inverse exponential curve so that the progress is always
+		// moving forward, while never exceeding the progress interval.
+		return Math.min(linear, inverseExponential);
+	}
+	
 	/**
 	 * The interval is chosen in such a way that it is not expected to end before the next
 	 * update request to the server. Note that an update request does not necessarily
@@ -1216,46 +1475,37 @@ public class Job implements Comparable<Job> {
 	 *
 	 * @param timeUntilUpdateRequest The time until the next update request is expected, in nanoseconds.
 	 */
-	private double getProgressInterval(long now, Integer timeUntilUpdateRequest) {
-		if (messages == null) {
-			return 0.0;
-		} else {
-			double interval = toPercentage(messages.getProgressInterval());
-			if (timeUntilUpdateRequest != null) {
-				double minInterval = getAverageProgress(now) * timeUntilUpdateRequest;
-				interval = Math.max(interval, minInterval);
-			}
-			return interval;
+	private static double progressInterval(double progressFrom, double interval, Long jobStartTime, long now,
+	                                       Integer timeUntilUpdateRequest) {
+		if (timeUntilUpdateRequest != null) {
+			double minInterval = averageProgress(progressFrom, jobStartTime, now) * timeUntilUpdateRequest;
+			interval = Math.max(interval, minInterval);
 		}
+		return interval;
 	}
 	
 	/**
 	 * Get the average progress since the start of the job, in percentage per millisecond
 	 */
-	private double getAverageProgress(Long now) {
-		Long startTime = messages.getJobStartTime();
-		if (startTime == null) {
+	private static double averageProgress(double progressFrom, Long jobStartTime, long now) {
+		if (jobStartTime == null) {
 			return 0.0;
 		}
-		if (now.equals(startTime)) {
+		if (now == jobStartTime) {
 			return 0.0;
 		}
-		return getProgressFrom() / (now - startTime);
+		return progressFrom / (now - jobStartTime);
 	}
 	
-	private double getProgressTimeConstant(long now, Integer timeUntilUpdateRequest) {
-		if (messages != null) {
-			double progressFrom = getProgressFrom();
-			double progressInterval = getProgressInterval(now, timeUntilUpdateRequest);
-			Long progressFromTime = getProgressFromTime();
-			Long jobStartTime = messages.getJobStartTime();
-			if (progressFrom > 0.0
-			    && jobStartTime != null
-			    && progressFromTime != null
-			    && progressFromTime - jobStartTime > 0
-			    && progressInterval > 0.0) {
-				return - (progressFromTime - jobStartTime) * progressInterval / progressFrom / Math.log(0.05);
-			}
+	private static double progressTimeConstant(double progressFrom, double interval, Long progressFromTime,
+	                                           Long jobStartTime, long now, Integer timeUntilUpdateRequest) {
+		double progressInterval = progressInterval(progressFrom, interval, jobStartTime, now, timeUntilUpdateRequest);
+		if (progressFrom > 0.0
+		    && jobStartTime != null
+		    && progressFromTime != null
+		    && progressFromTime - jobStartTime > 0
+		    && progressInterval > 0.0) {
+			return - (progressFromTime - jobStartTime) * progressInterval / progressFrom / Math.log(0.05);
 		}
 		return 20000.0;
 	}
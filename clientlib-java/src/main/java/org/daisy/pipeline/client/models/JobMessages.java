@@ -1,8 +1,9 @@
 package org.daisy.pipeline.client.models;
 
-import java.math.BigDecimal;
-import java.util.ArrayList;
 import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -15,69 +16,259 @@ import java.util.NoSuchElementException;
 class JobMessages extends AbstractList<Message> {
 	
 	// map from sequence number to message
-	private final Map<Integer,Message> messageIndex = new HashMap<Integer,Message>();
+	private final IntMap<Message> messageIndex = new IntMap<Message>();
 	
 	// messages as a tree
-	private final List<Integer> messagesTree = new ArrayList<Integer>();
+	private final IntList messagesTree = new IntList();
 	final int msgSeq;
 	
 	// messages as a sequence
-	private final List<Integer> messagesSequence = new ArrayList<Integer>();
+	private final IntList messagesSequence = new IntList();
+	
+	// whether messagesSequence is strictly increasing, so that messages can be found by binary search
+	private boolean sorted = true;
+	
+	// the messages of messagesSequence by inferred level, with their depth
+	private final LevelIndex levelIndex = new LevelIndex();
 	
 	// time stamp of the first progress message
 	private Long jobStartTime = null;
 	
+	// compact store from which messages that are not in messageIndex yet are created when they
+	// are accessed, or null if all messages are in messageIndex
+	private final MessageStore store;
+	
+	// dictionary of message texts and file names, so that identical messages share one String
+	private final Map<String,String> strings = new HashMap<String,String>();
+	
 	/**
 	 * Get all messages from messagesTree newer than msgSeq as a sequence instead of a tree structure.
 	 */
 	public JobMessages(List<Message> messagesTree, int msgSeq) {
 		for (Message m : messagesTree) {
 			this.messagesTree.add(m.sequence);
-			messageIndex.put(m.sequence, m);
 		}
 		this.msgSeq = msgSeq;
-		addTree(this, messagesTree, msgSeq);
-		indexTree(messageIndex, messagesTree);
+		this.store = null;
+		addTree(messagesTree);
+		indexTree(messagesTree);
+	}
+	
+	/**
+	 * Get all messages from a message store newer than msgSeq as a sequence. Message objects
+	 * are only created for the messages that are accessed.
+	 */
+	JobMessages(MessageStore store, int msgSeq) {
+		this.msgSeq = msgSeq;
+		this.store = store;
+		// the store is in document order, which is the order in which addTree adds the messages
+		int[] depth = new int[store.size()];
+		for (int i = 0; i < store.size(); i++) {
+			int sequence = store.sequence(i);
+			int parent = store.parent(i);
+			if (parent < 0) {
+				messagesTree.add(sequence);
+			} else {
+				depth[i] = depth[parent] + 1;
+			}
+			if (sequence > msgSeq) {
+				int size = messagesSequence.size();
+				sorted = sorted && (size == 0 || messagesSequence.get(size - 1) < sequence);
+				messagesSequence.add(sequence);
+				levelIndex.add(sequence, store.inferredLevel(i), depth[i]);
+				if (store.hasProgressInfo(i)) {
+					if (jobStartTime == null || store.timeStamp(i) < jobStartTime) {
+						jobStartTime = store.timeStamp(i);
+					}
+				}
+			}
+		}
+	}
+	
+	/* The message with the given sequence number, created from the store if needed, or null */
+	private Message lookup(int sequence) {
+		Message m = messageIndex.get(sequence);
+		if (m == null && store != null) {
+			int i = store.indexOf(sequence);
+			if (i >= 0) {
+				m = store.message(i);
+				if (store.parent(i) >= 0) {
+					m.parent = lookup(store.sequence(store.parent(i)));
+				}
+				if (store.childCount(i) > 0) {
+					m.children = new StoreChildren(i);
+				}
+				messageIndex.put(sequence, m);
+				intern(m);
+			}
+		}
+		return m;
+	}
+	
+	/* Replace the text and file name of a message with the ones from the dictionary */
+	private void intern(Message m) {
+		if (m.text != null) {
+			String text = strings.putIfAbsent(m.text, m.text);
+			if (text != null) {
+				m.text = text;
+			}
+		}
+		if (m.file != null) {
+			String file = strings.putIfAbsent(m.file, m.file);
+			if (file != null) {
+				m.file = file;
+			}
+		}
+	}
+	
+	/*
+	 * The children of a message from the store. Message objects are only created for the
+	 * children that are accessed. Messages can be appended, like when an update is joined.
+	 */
+	private class StoreChildren extends AbstractList<Message> {
+		
+		private final int parent;
+		private List<Message> appended = null;
+		
+		StoreChildren(int parent) {
+			this.parent = parent;
+		}
+		
+		public Message get(int index) {
+			int count = store.childCount(parent);
+			if (index < count) {
+				return lookup(store.sequence(store.child(parent, index)));
+			} else if (appended != null) {
+				return appended.get(index - count);
+			} else {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+			}
+		}
+		
+		public int size() {
+			return store.childCount(parent) + (appended == null ? 0 : appended.size());
+		}
+		
+		@Override
+		public void add(int index, Message element) {
+			if (index != size()) {
+				throw new UnsupportedOperationException();
+			}
+			if (appended == null) {
+				appended = new ArrayList<Message>();
+			}
+			appended.add(element);
+			modCount++;
+		}
+		
+		JobMessages owner() {
+			return JobMessages.this;
+		}
+		
+		/* The children that have progress info, without creating Message objects for the others */
+		List<Message> withProgressInfo() {
+			List<Message> children = new ArrayList<Message>();
+			for (int n = 0; n < store.childCount(parent); n++) {
+				int child = store.child(parent, n);
+				if (store.hasProgressInfo(child)) {
+					children.add(lookup(store.sequence(child)));
+				}
+			}
+			if (appended != null) {
+				children.addAll(appended);
+			}
+			return children;
+		}
 	}
 	
-	/* Recursively add messages newer than a given number and remove existing messages with the same sequence number */
-	private void addTree(List<Message> collect, Iterable<Message> messages, int newerThan) {
+	/* Recursively add messages newer than msgSeq and remove existing messages with the same sequence number */
+	private void addTree(Iterable<Message> messages) {
 		for (Message m : messages) {
-			if (m.sequence > newerThan) {
-				Message old = messageIndex.get(m.sequence);
-				if (old != null) {
-					collect.remove(old);
+			if (m.sequence > msgSeq) {
+				if (messageIndex.get(m.sequence) != null) {
+					int i = indexOfSequence(m.sequence);
+					if (i >= 0) {
+						remove(i);
+					}
 				}
-				collect.add(m);
+				add(m);
 			}
-			addTree(collect, m, newerThan);
+			addTree(m);
 		}
 	}
 	
 	/* Recursively add messages to index */
-	private static void indexTree(Map<Integer,Message> index, Iterable<Message> messages) {
+	private void indexTree(Iterable<Message> messages) {
 		for (Message m : messages) {
-			index.put(m.sequence, m);
-			indexTree(index, m);
+			messageIndex.put(m.sequence, m);
+			intern(m);
+			indexTree(m);
+		}
+	}
+	
+	/* Position of a sequence number in messagesSequence, or -1 */
+	private int indexOfSequence(int sequence) {
+		if (sorted) {
+			int i = messagesSequence.binarySearch(sequence);
+			return i < 0 ? -1 : i;
+		} else {
+			return messagesSequence.indexOf(sequence);
 		}
 	}
 	
 	public Message get(int index) {
-		return messageIndex.get(messagesSequence.get(index));
+		return lookup(messagesSequence.get(index));
 	}
 
 	public int size() {
 		return messagesSequence.size();
 	}
 	
+	@Override
+	public int indexOf(Object o) {
+		if (!(o instanceof Message) || ((Message)o).sequence == null) {
+			return -1;
+		}
+		int sequence = ((Message)o).sequence;
+		if (messageIndex.get(sequence) != o) {
+			return -1;
+		}
+		return indexOfSequence(sequence);
+	}
+	
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) >= 0;
+	}
+	
+	@Override
+	public boolean remove(Object o) {
+		int i = indexOf(o);
+		if (i < 0) {
+			return false;
+		}
+		remove(i);
+		return true;
+	}
+	
 	@Override
 	public void add(int index, Message element) {
+		insert(index, element);
+		dirty = true;
+	}
+	
+	/* Add a message to the sequence */
+	private void insert(int index, Message element) {
 		if (element == null) {
 			throw new NullPointerException();
 		}
-		messagesSequence.add(index, element.sequence);
-		messageIndex.put(element.sequence, element);
-		dirty = dirty || index < lastMessageCount;
+		int sequence = element.sequence;
+		sorted = sorted
+			&& (index == 0 || messagesSequence.get(index - 1) < sequence)
+			&& (index == size() || sequence < messagesSequence.get(index));
+		messagesSequence.add(index, sequence);
+		messageIndex.put(sequence, element);
+		levelIndex.add(sequence, element.getInferredLevel(), element.getDepth());
 		modCount++;
 		if (element.getProgressInfo() != null) {
 			if (jobStartTime == null || element.timeStamp < jobStartTime) {
@@ -91,53 +282,280 @@ class JobMessages extends AbstractList<Message> {
 		if (element == null) {
 			throw new NullPointerException();
 		}
-		Message prev = messageIndex.get(messagesSequence.set(index, element.sequence));
-		messageIndex.put(element.sequence, element);
-		dirty = dirty || (index < lastMessageCount && !element.equals(prev));
+		int sequence = element.sequence;
+		int prevSequence = messagesSequence.set(index, sequence);
+		Message prev = lookup(prevSequence);
+		levelIndex.remove(prevSequence);
+		levelIndex.add(sequence, element.getInferredLevel(), element.getDepth());
+		sorted = sorted
+			&& (index == 0 || messagesSequence.get(index - 1) < sequence)
+			&& (index == size() - 1 || sequence < messagesSequence.get(index + 1));
+		messageIndex.put(sequence, element);
+		dirty = true;
 		modCount++;
 		return prev;
 	}
 	
 	@Override
 	public Message remove(int index) {
-		dirty = dirty || index < lastMessageCount;
+		dirty = true;
 		modCount++;
-		return messageIndex.get(messagesSequence.remove(index));
+		int sequence = messagesSequence.remove(index);
+		levelIndex.remove(sequence);
+		return lookup(sequence);
+	}
+	
+	/* Sorting in natural order (by sequence number) is done on the sequence numbers directly */
+	@Override
+	public void sort(Comparator<? super Message> c) {
+		if (c == null) {
+			messagesSequence.sort();
+			sorted = true;
+			modCount++;
+		} else {
+			super.sort(c);
+		}
 	}
 	
 	/**
 	 * Update with a list of new messages.
+	 *
+	 * The update is typically the response to a request with msgSeq: the messages newer than
+	 * msgSeq together with their ancestors. It is applied in place: messages that are already
+	 * known are updated, and new messages are attached to their parent and inserted into the
+	 * sequence. Only the messages in the update are visited, so the cost is proportional to
+	 * the size of the update and not to the total number of messages.
 	 */
 	public void join(JobMessages messages) {
-		Iterable<Message> tree = messages.asTree();
-		for (Message m : tree) {
-			Message old = messageIndex.get(m.sequence);
+		for (Message m : messages.asTree()) {
+			Message old = lookup(m.sequence);
+			if (old == null) {
+				messagesTree.add(m.sequence);
+				insertTree(m);
+				changedTopLevel.add(messagesTree.size() - 1);
+			} else {
+				boolean changed = old.update(m);
+				intern(old);
+				updateLevelIndex(old);
+				changed = join(old, m) || changed;
+				if (changed) {
+					int i = lastIndexOfTopLevel(m.sequence);
+					if (i >= 0) {
+						changedTopLevel.add(i);
+					} else {
+						dirty = true;
+					}
+				}
+			}
+		}
+	}
+	
+	/* Recursively apply updated messages to the children of the given message
+	 * @return whether anything changed */
+	private boolean join(Message parent, Iterable<Message> update) {
+		boolean changed = false;
+		for (Message m : update) {
+			Message old = lookup(m.sequence);
 			if (old != null) {
-				m.join(old);
+				changed = old.update(m) || changed;
+				intern(old);
+				updateLevelIndex(old);
+				changed = join(old, m) || changed;
 			} else {
-				messagesTree.add(m.sequence);
+				parent.addChild(m);
+				insertTree(m);
+				updateLevelIndex(parent);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+	
+	/* Update the level index after the inferred level of a message and its ancestors may have changed */
+	private void updateLevelIndex(Message m) {
+		for (; m != null; m = m.parent) {
+			levelIndex.setLevel(m.sequence, m.getInferredLevel());
+		}
+	}
+	
+	/* Position of a top level message in messagesTree, or -1. Updates are typically about
+	 * the last top level messages, so search from the end. */
+	private int lastIndexOfTopLevel(int sequence) {
+		for (int i = messagesTree.size() - 1; i >= 0; i--) {
+			if (messagesTree.get(i) == sequence) {
+				return i;
 			}
 		}
-		addTree(this, tree, msgSeq);
-		indexTree(messageIndex, tree);
+		return -1;
+	}
+	
+	/* Add a new message and its descendants to the index, and to the sequence if they are newer than msgSeq */
+	private void insertTree(Message m) {
+		messageIndex.put(m.sequence, m);
+		intern(m);
+		if (m.sequence > msgSeq) {
+			// messages usually arrive in order, in which case they are appended
+			int i = messagesSequence.size();
+			if (sorted && i > 0 && messagesSequence.get(i - 1) > m.sequence) {
+				i = messagesSequence.binarySearch(m.sequence);
+				i = i < 0 ? -i - 1 : i;
+			}
+			insert(i, m);
+		}
+		for (Message child : m) {
+			insertTree(child);
+		}
+	}
+	
+	/**
+	 * Get a page of messages, in order of sequence number.
+	 *
+	 * Only the messages on the page are visited, and the ones that are skipped because they
+	 * are too deep, so the cost does not depend on the total number of messages.
+	 *
+	 * @param fromSequence The sequence number of the first message. For the next page, use
+	 *                     the sequence number of the last message on this page plus one.
+	 * @param limit The maximum number of messages
+	 * @param minLevel Leave out messages that are less severe than this level, unless they
+	 *                 have more severe sub-messages (null for all levels)
+	 * @param maxDepth Leave out messages deeper than this level (-1 for all messages)
+	 */
+	public List<Message> query(int fromSequence, int limit, Message.Level minLevel, int maxDepth) {
+		IntList sequences = new IntList();
+		levelIndex.query(fromSequence, limit, minLevel, maxDepth, sequences);
+		List<Message> messages = new ArrayList<Message>(sequences.size());
+		for (int i = 0; i < sequences.size(); i++) {
+			messages.add(lookup(sequences.get(i)));
+		}
+		return messages;
+	}
+	
+	/**
+	 * Get the number of messages with an inferred level at least as severe as the given level.
+	 *
+	 * @param minLevel The level (null for all messages)
+	 */
+	public int count(Message.Level minLevel) {
+		return levelIndex.count(minLevel);
+	}
+	
+	/**
+	 * Get the messages with runs of consecutive identical siblings collapsed into one entry.
+	 *
+	 * Messages that are still in the store are compared there, so that Message objects are
+	 * only created for the first message of every run.
+	 *
+	 * @param maxDepth Leave out messages deeper than this level (-1 for all messages)
+	 */
+	public List<CollapsedMessage> collapse(int maxDepth) {
+		List<CollapsedMessage> collapsed = new ArrayList<CollapsedMessage>();
+		Message first = null;
+		int firstIndex = -1; // index in the store, if the message was compared there
+		int firstSequence = 0;
+		int lastSequence = 0;
+		int count = 0;
+		for (int k = 0; k < messagesSequence.size(); k++) {
+			int sequence = messagesSequence.get(k);
+			Message m = messageIndex.get(sequence);
+			int i = m == null && store != null ? store.indexOf(sequence) : -1;
+			if (m == null && i < 0) {
+				continue;
+			}
+			if (maxDepth >= 0 && (i >= 0 ? store.depth(i) : m.getDepth()) > maxDepth) {
+				continue;
+			}
+			if (first != null) {
+				boolean repetition = i >= 0 && firstIndex >= 0
+					? store.isRepetitionOf(i, firstIndex)
+					: (m != null ? m : lookup(sequence)).isRepetitionOf(first);
+				if (repetition) {
+					lastSequence = sequence;
+					count++;
+					continue;
+				}
+				collapsed.add(new CollapsedMessage(first, count, firstSequence, lastSequence));
+			}
+			first = m != null ? m : lookup(sequence);
+			firstIndex = i;
+			firstSequence = lastSequence = sequence;
+			count = 1;
+		}
+		if (first != null) {
+			collapsed.add(new CollapsedMessage(first, count, firstSequence, lastSequence));
+		}
+		return collapsed;
 	}
 	
 	public Iterable<Message> asTree() {
 		return new Iterable<Message>() {
 			public Iterator<Message> iterator() {
-				Iterator<Integer> i = messagesTree.iterator();
 				return new Iterator<Message>() {
+					int i = 0;
 					public boolean hasNext() {
-						return i.hasNext();
+						return i < messagesTree.size();
 					}
 					public Message next() {
-						return messageIndex.get(i.next());
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						return lookup(messagesTree.get(i++));
 					}
 				};
 			}
 		};
 	}
 	
+	/**
+	 * Get a deep copy of the messages tree, for instance for a snapshot. Messages that are still
+	 * in the store are copied from there, without creating Message objects for them in this list.
+	 */
+	List<Message> copyTree() {
+		List<Message> copy = new ArrayList<Message>(messagesTree.size());
+		for (int i = 0; i < messagesTree.size(); i++) {
+			int sequence = messagesTree.get(i);
+			Message m = messageIndex.get(sequence);
+			copy.add(m != null ? copy(m) : copy(store.indexOf(sequence)));
+		}
+		return copy;
+	}
+	
+	/* Copy a message and its descendants */
+	private Message copy(Message m) {
+		Message copy = m.copyWithoutRelatives();
+		if (m.children instanceof StoreChildren) {
+			// the message may come from a joined update, and the children from the store of that update
+			StoreChildren children = (StoreChildren)m.children;
+			JobMessages owner = children.owner();
+			for (int n = 0; n < owner.store.childCount(children.parent); n++) {
+				copy.addChild(owner.copyChild(owner.store.child(children.parent, n)));
+			}
+			if (children.appended != null) {
+				for (Message child : children.appended) {
+					copy.addChild(copy(child));
+				}
+			}
+		} else if (m.children != null) {
+			for (Message child : m.children) {
+				copy.addChild(copy(child));
+			}
+		}
+		return copy;
+	}
+	
+	/* Copy a message from the store and its descendants */
+	private Message copy(int i) {
+		Message copy = store.message(i);
+		for (int n = 0; n < store.childCount(i); n++) {
+			copy.addChild(copyChild(store.child(i, n)));
+		}
+		return copy;
+	}
+	
+	private Message copyChild(int i) {
+		Message m = messageIndex.get(store.sequence(i));
+		return m != null ? copy(m) : copy(i);
+	}
+	
 	/**
 	 * Get the time when the first progress information from the server was received.
 	 */
@@ -145,17 +563,30 @@ class JobMessages extends AbstractList<Message> {
 		return jobStartTime;
 	}
 	
-	// cached values
-	private BigDecimal progressFrom = BigDecimal.ZERO;
+	// Progress is maintained per top level message, in the same order as messagesTree: the
+	// contribution to the total progress, the smallest uncompleted portion (NONE if there is
+	// none), and the time stamp if the message has progress info (NO_TIME_STAMP otherwise).
+	// Joining an update only recomputes the top level messages that the update touched, and
+	// the totals are then aggregated from these arrays, so that asking for the progress is
+	// cheap and does not allocate.
+	private static final double NONE = Double.POSITIVE_INFINITY;
+	private static final long NO_TIME_STAMP = Long.MIN_VALUE;
+	private double[] topLevelProgress = new double[0];
+	private double[] topLevelInterval = new double[0];
+	private long[] topLevelTimeStamp = new long[0];
+	
+	// cached totals
+	private double progressFrom = 0.0;
 	private Long progressFromTime = null;
-	private BigDecimal progressInterval = BigDecimal.ZERO;
+	private double progressInterval = 0.0;
 	
-	// dirty state
-	private int lastMessageCount = 0;
+	// dirty state: whether everything needs to be recomputed (after changes through the List
+	// interface), and the positions in messagesTree of the top level messages that changed
 	private boolean dirty = true;
+	private final IntList changedTopLevel = new IntList();
 	
 	/**
-	 * Get the job progress.
+	 * Get the job progress, a number between 0 and 1.
 	 *
 	 * This represents the most up to date progress information from the server. The
 	 * progress is computed based on the messages present, if messages were skipped using
@@ -164,24 +595,11 @@ class JobMessages extends AbstractList<Message> {
 	 * Only used for testing because the total progress is normally available in the
 	 * `progress` attribute on the `messages` element.
 	 */
-	public BigDecimal getProgressFrom() {
+	public double getProgressFrom() {
 		updateProgress();
 		return progressFrom;
 	}
 	
-	private BigDecimal computeProgressFrom() {
-		return messagesTree
-			.stream()
-			.map(i -> messageIndex.get(i))
-			.map(Message::getProgressInfo)
-			.filter(o -> o != null)
-			.map(p -> p.portion.multiply(p.progress))
-			.reduce(
-				BigDecimal.ZERO,
-				(d1, d2) -> d1.add(d2))
-			.min(BigDecimal.ONE);
-	}
-	
 	/**
 	 * Get the time when the most up to date progress information from the server was received.
 	 */
@@ -190,64 +608,108 @@ class JobMessages extends AbstractList<Message> {
 		return progressFromTime;
 	}
 	
-	private Long computeProgressFromTime() {
-		try {
-			return messagesTree.stream()
-			                   .map(i -> messageIndex.get(i))
-			                   .filter(m -> m.progressInfo != null)
-			                   .mapToLong(m -> m.timeStamp)
-			                   .max()
-			                   .getAsLong();
-		} catch (NoSuchElementException e) {
-			return null;
-		}
-	}
-	
 	/**
-	 * Progress interval in which no updates from the server are expected.
+	 * Progress interval in which no updates from the server are expected, a number between 0 and 1.
 	 *
 	 * Not expected does not mean guaranteed not to happen.
 	 */
-	public BigDecimal getProgressInterval() {
+	public double getProgressInterval() {
 		updateProgress();
 		return progressInterval;
 	}
 	
-	public BigDecimal computeProgressInterval() {
-		List<BigDecimal> uncompletedMessages = new ArrayList<BigDecimal>();
-		getUncompletedMessages(uncompletedMessages, asTree());
-		return uncompletedMessages
-			.stream()
-			.reduce((d1, d2) -> d1.min(d2))
-			.orElse(BigDecimal.ZERO);
-	}
-	
-	private static void getUncompletedMessages(List<BigDecimal> collect, Iterable<Message> messages) {
-		for (Message message : messages) {
-			Message.ProgressInfo progress = message.getProgressInfo();
-			if (progress != null && progress.progress.compareTo(BigDecimal.ONE) < 0) {
-				List<BigDecimal> uncompletedChildren = new ArrayList<BigDecimal>();
-				getUncompletedMessages(uncompletedChildren, message);
-				if (uncompletedChildren.isEmpty()) {
-					collect.add(progress.portion.multiply(BigDecimal.ONE.subtract(progress.progress)));
-				} else {
-					for (BigDecimal p : uncompletedChildren) {
-						collect.add(p.multiply(progress.portion));
-					}
-				}
-			}
-		}
-	}
-	
 	/* Update state if messages have been added or modified */
 	private void updateProgress() {
-		if (!dirty && lastMessageCount == size()) {
+		int count = messagesTree.size();
+		if (topLevelProgress.length < count) {
+			int capacity = Math.max(count, topLevelProgress.length * 2);
+			topLevelProgress = Arrays.copyOf(topLevelProgress, capacity);
+			topLevelInterval = Arrays.copyOf(topLevelInterval, capacity);
+			topLevelTimeStamp = Arrays.copyOf(topLevelTimeStamp, capacity);
+		}
+		if (dirty) {
+			for (int i = 0; i < count; i++) {
+				updateProgress(i);
+			}
+		} else if (changedTopLevel.size() > 0) {
+			for (int i = 0; i < changedTopLevel.size(); i++) {
+				updateProgress(changedTopLevel.get(i));
+			}
+		} else {
 			return;
 		}
-		progressFrom = computeProgressFrom();
-		progressFromTime = computeProgressFromTime();
-		progressInterval = computeProgressInterval();
-		lastMessageCount = size();
 		dirty = false;
+		changedTopLevel.clear();
+		double sum = 0.0;
+		double interval = NONE;
+		long timeStamp = NO_TIME_STAMP;
+		for (int i = 0; i < count; i++) {
+			sum += topLevelProgress[i];
+			interval = Math.min(interval, topLevelInterval[i]);
+			timeStamp = Math.max(timeStamp, topLevelTimeStamp[i]);
+		}
+		progressFrom = Math.min(sum, 1.0);
+		progressInterval = interval == NONE ? 0.0 : interval;
+		progressFromTime = timeStamp == NO_TIME_STAMP ? null : timeStamp;
+	}
+	
+	/* Recompute the progress of the top level message at the given position in messagesTree */
+	private void updateProgress(int i) {
+		Message m = lookup(messagesTree.get(i));
+		Message.ProgressInfo progressInfo = m.progressInfo;
+		if (progressInfo == null) {
+			topLevelProgress[i] = 0.0;
+			topLevelInterval[i] = NONE;
+			topLevelTimeStamp[i] = NO_TIME_STAMP;
+		} else {
+			topLevelProgress[i] = progressInfo.portion.doubleValue() * progress(m);
+			topLevelInterval[i] = smallestUncompletedPortion(m);
+			topLevelTimeStamp[i] = m.timeStamp;
+		}
+	}
+	
+	/* The progress of a message with progress info, computed from its children if it is not
+	 * known, like Message.getProgressInfo() does */
+	private static double progress(Message m) {
+		if (m.progressInfo.progress != null) {
+			return m.progressInfo.progress.doubleValue();
+		}
+		double progress = 0.0;
+		for (Message child : childrenWithProgressInfo(m)) {
+			if (child.progressInfo != null) {
+				progress += child.progressInfo.portion.doubleValue() * progress(child);
+			}
+		}
+		return Math.min(progress, 1.0);
+	}
+	
+	/* The smallest portion of the job that is not completed within a message with progress
+	 * info, taking into account the uncompleted child messages, or NONE if the message is
+	 * completed. The portion is relative to the parent of the message. */
+	private static double smallestUncompletedPortion(Message m) {
+		double progress = progress(m);
+		if (progress >= 1.0) {
+			return NONE;
+		}
+		double smallest = NONE;
+		for (Message child : childrenWithProgressInfo(m)) {
+			if (child.progressInfo != null) {
+				smallest = Math.min(smallest, smallestUncompletedPortion(child));
+			}
+		}
+		double portion = m.progressInfo.portion.doubleValue();
+		return smallest == NONE
+			? portion * (1.0 - progress)
+			: portion * smallest;
+	}
+	
+	/* The children of a message that may have progress info, without creating Message objects
+	 * from the store for the others */
+	private static Iterable<Message> childrenWithProgressInfo(Message m) {
+		if (m.children instanceof StoreChildren) {
+			return ((StoreChildren)m.children).withProgressInfo();
+		} else {
+			return m;
+		}
 	}
 }
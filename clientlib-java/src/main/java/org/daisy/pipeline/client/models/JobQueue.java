@@ -2,10 +2,12 @@ package org.daisy.pipeline.client.models;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 import org.daisy.pipeline.client.Pipeline2Logger;
-import org.daisy.pipeline.client.utils.XPath;
+import org.daisy.pipeline.client.utils.DOM;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 /**
@@ -42,27 +44,34 @@ public class JobQueue {
 	
 	public String href;
 	public List<QueuedJob> queue;
+	
+	/** Create an empty queue. */
+	public JobQueue() {
+		queue = new ArrayList<QueuedJob>();
+	}
     
 	public JobQueue(Node queueNode) {
-		queue = new ArrayList<QueuedJob>();
+		this();
 		
 		try {
 			// select root element if the node is a document node
 			if (queueNode instanceof Document)
-				queueNode = XPath.selectNode("/d:jobs", queueNode, XPath.dp2ns);
+				queueNode = DOM.element(queueNode);
+			
+			this.href = DOM.attribute(queueNode, "href");
 
-			List<Node> queuedJobNodes = XPath.selectNodes("d:job", queueNode, XPath.dp2ns);
+			List<Element> queuedJobNodes = DOM.children(queueNode, "job");
 			for (Node queuedJobNode : queuedJobNodes) {
 				QueuedJob queuedJob = new QueuedJob();
-				queuedJob.id = XPath.selectText("@id", queuedJobNode, XPath.dp2ns);
-				queuedJob.href = XPath.selectText("@href", queuedJobNode, XPath.dp2ns);
-				queuedJob.computedPriority = Double.valueOf(XPath.selectText("@computedPriority", queuedJobNode, XPath.dp2ns));
-				queuedJob.jobPriority = Priority.valueOf(XPath.selectText("@jobPriority", queuedJobNode, XPath.dp2ns));
-				queuedJob.clientPriority = Priority.valueOf(XPath.selectText("@clientPriority", queuedJobNode, XPath.dp2ns));
-				queuedJob.relativeTime = Double.valueOf(XPath.selectText("@relativeTime", queuedJobNode, XPath.dp2ns));
-				queuedJob.timestamp = Long.valueOf(XPath.selectText("@timestamp", queuedJobNode, XPath.dp2ns));
-				queuedJob.moveUp = XPath.selectText("@moveUp", queuedJobNode, XPath.dp2ns);
-				queuedJob.moveDown = XPath.selectText("@moveDown", queuedJobNode, XPath.dp2ns);
+				queuedJob.id = DOM.attribute(queuedJobNode, "id");
+				queuedJob.href = DOM.attribute(queuedJobNode, "href");
+				queuedJob.computedPriority = Double.valueOf(DOM.attribute(queuedJobNode, "computedPriority"));
+				queuedJob.jobPriority = parsePriority(DOM.attribute(queuedJobNode, "jobPriority"));
+				queuedJob.clientPriority = parsePriority(DOM.attribute(queuedJobNode, "clientPriority"));
+				queuedJob.relativeTime = Double.valueOf(DOM.attribute(queuedJobNode, "relativeTime"));
+				queuedJob.timestamp = Long.valueOf(DOM.attribute(queuedJobNode, "timestamp"));
+				queuedJob.moveUp = DOM.attribute(queuedJobNode, "moveUp");
+				queuedJob.moveDown = DOM.attribute(queuedJobNode, "moveDown");
 				queue.add(queuedJob);
 			}
 			
@@ -71,4 +80,9 @@ public class JobQueue {
 		}
 	}
 	
+	// priorities are lower case in the XML ("medium")
+	static Priority parsePriority(String priority) {
+		return priority == null ? null : Priority.valueOf(priority.toUpperCase(Locale.ROOT));
+	}
+	
 }
@@ -5,8 +5,9 @@ import java.util.List;
 import java.util.Map;
 
 import org.daisy.pipeline.client.Pipeline2Logger;
-import org.daisy.pipeline.client.utils.XPath;
+import org.daisy.pipeline.client.utils.DOM;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 /**
@@ -52,24 +53,30 @@ public class JobSizes {
 	public Long total;
 	public Map<String, JobSize> jobSizes;
 	
+	/** Create an empty list of job sizes. */
+	public JobSizes() {
+		total = 0L;
+		jobSizes = new HashMap<String, JobSize>();
+	}
+	
 	public JobSizes(Node jobSizesNode) {
 		jobSizes = new HashMap<String, JobSize>();
 		
 		try {
 			// select root element if the node is a document node
 			if (jobSizesNode instanceof Document)
-				jobSizesNode = XPath.selectNode("/d:jobs", jobSizesNode, XPath.dp2ns);
+				jobSizesNode = DOM.element(jobSizesNode);
 			
-			this.href = XPath.selectText("@href", jobSizesNode, XPath.dp2ns);
-			this.total = Long.valueOf(XPath.selectText("@total", jobSizesNode, XPath.dp2ns));
+			this.href = DOM.attribute(jobSizesNode, "href");
+			this.total = Long.valueOf(DOM.attribute(jobSizesNode, "total"));
 
-			List<Node> jobSizeNodes = XPath.selectNodes("d:job", jobSizesNode, XPath.dp2ns);
+			List<Element> jobSizeNodes = DOM.children(jobSizesNode, "jobSize");
 			for (Node jobSizeNode : jobSizeNodes) {
 				JobSize jobSize = new JobSize();
-				jobSize.id = XPath.selectText("@id", jobSizeNode, XPath.dp2ns);
-				jobSize.context = Long.valueOf(XPath.selectText("@context", jobSizeNode, XPath.dp2ns));
-				jobSize.log = Long.valueOf(XPath.selectText("@log", jobSizeNode, XPath.dp2ns));
-				jobSize.output = Long.valueOf(XPath.selectText("@output", jobSizeNode, XPath.dp2ns));
+				jobSize.id = DOM.attribute(jobSizeNode, "id");
+				jobSize.context = Long.valueOf(DOM.attribute(jobSizeNode, "context"));
+				jobSize.log = Long.valueOf(DOM.attribute(jobSizeNode, "log"));
+				jobSize.output = Long.valueOf(DOM.attribute(jobSizeNode, "output"));
 				jobSizes.put(jobSize.id, jobSize);
 			}
 			
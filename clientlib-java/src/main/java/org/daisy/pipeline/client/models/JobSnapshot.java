@@ -0,0 +1,263 @@
+package org.daisy.pipeline.client.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable copy of the state of a job at a certain point in time. See {@link Job#snapshot()}.
+ *
+ * Unlike a Job, which loads its fields and messages lazily when they are first accessed and
+ * is updated in place when updates are joined, a snapshot is fully loaded when it is created
+ * and never changes afterwards. It can therefore be shared between any number of threads
+ * without locking, for instance by replacing the previous snapshot of a job in a volatile
+ * field or a concurrent map each time the job is updated.
+ *
+ * The messages and callbacks of a snapshot are copies: they are not updated when the job
+ * is, and they should not be modified.
+ *
+ * The script arguments (inputs, options and outputs) are not part of a snapshot. They are
+ * mutable Argument objects that are shared with the script, and they don't change while the
+ * job is running, so get them from the Job instead.
+ */
+public final class JobSnapshot {
+
+	private final long time;
+	private final String id;
+	private final String href;
+	private final Job.Status status;
+	private final Job.Priority priority;
+	private final Integer queuePosition;
+	private final String nicename;
+	private final String batchId;
+	private final String scriptId;
+	private final String scriptHref;
+	private final String logHref;
+	private final List<Callback> callbacks; // null if the job has no callbacks
+
+	private final JobMessages messages; // null if the job has no messages
+	private final List<Message> messagesView;
+
+	// see Job.progressEstimate()
+	private final double progressFrom;
+	private final Long progressFromTime;
+	private final double progressInterval;
+	private final Long jobStartTime;
+
+	private final Result result;
+	private final SortedMap<Result,List<Result>> results;
+	private final ResultIndex resultIndex;
+
+	JobSnapshot(Job job, JobMessages messages, ResultIndex resultIndex) {
+		time = new Date().getTime();
+		id = job.getId();
+		href = job.getHref();
+		status = job.getStatus();
+		priority = job.getPriority();
+		queuePosition = job.getQueuePosition();
+		nicename = job.getNicename();
+		batchId = job.getBatchId();
+		Script script = job.getScript();
+		scriptId = script == null ? null : script.getId();
+		scriptHref = job.getScriptHref();
+		logHref = job.getLogHref();
+		List<Callback> callbacks = job.getCallback();
+		if (callbacks == null) {
+			this.callbacks = null;
+		} else {
+			List<Callback> copy = new ArrayList<Callback>(callbacks.size());
+			for (Callback callback : callbacks) {
+				copy.add(new Callback(callback.href, callback.type, callback.frequency));
+			}
+			this.callbacks = Collections.unmodifiableList(copy);
+		}
+		progressFrom = job.getProgressFrom();
+		if (messages == null) {
+			this.messages = null;
+			messagesView = null;
+			progressFromTime = null;
+			progressInterval = 0.0;
+			jobStartTime = null;
+		} else {
+			this.messages = new JobMessages(messages.copyTree(), messages.msgSeq);
+			messagesView = Collections.unmodifiableList(this.messages);
+			progressFromTime = messages.getProgressFromTime();
+			progressInterval = messages.getProgressInterval() * 100.0;
+			jobStartTime = messages.getJobStartTime();
+		}
+		// results are replaced, not modified, when an update is joined, so they can be shared,
+		// but the map and the lists that hold them are copied
+		result = job.getResult();
+		SortedMap<Result,List<Result>> results = job.getResults();
+		if (results == null) {
+			this.results = null;
+		} else {
+			SortedMap<Result,List<Result>> copy = new TreeMap<Result,List<Result>>(results.comparator());
+			for (Map.Entry<Result,List<Result>> e : results.entrySet()) {
+				copy.put(e.getKey(), e.getValue() == null ? null : Collections.unmodifiableList(new ArrayList<Result>(e.getValue())));
+			}
+			this.results = Collections.unmodifiableSortedMap(copy);
+		}
+		this.resultIndex = resultIndex;
+	}
+
+	/** @return the time when the snapshot was taken, as UNIX time */
+	public long getTime() { return time; }
+	public String getId() { return id; }
+	public String getHref() { return href; }
+	public Job.Status getStatus() { return status; }
+	public Job.Priority getPriority() { return priority; }
+	public Integer getQueuePosition() { return queuePosition; }
+	public String getNicename() { return nicename; }
+	public String getBatchId() { return batchId; }
+	public String getScriptId() { return scriptId; }
+	public String getScriptHref() { return scriptHref; }
+	public String getLogHref() { return logHref; }
+
+	/** @return The unmodifiable list of callbacks, or null if the job has no callbacks */
+	public List<Callback> getCallback() {
+		return callbacks;
+	}
+
+	/**
+	 * Get a list of all messages for the job.
+	 *
+	 * @return The unmodifiable list of messages, or null if the job has no messages
+	 */
+	public List<Message> getMessages() {
+		return messagesView;
+	}
+
+	/**
+	 * Get a page of messages for the job, in order of sequence number. See {@link Job#queryMessages(int, int, Message.Level, int)}.
+	 *
+	 * @return The list of messages, or null if the job has no messages
+	 */
+	public List<Message> queryMessages(int fromSequence, int limit, Message.Level minLevel, int maxDepth) {
+		if (messages == null) {
+			return null;
+		}
+		return messages.query(fromSequence, limit, minLevel, maxDepth);
+	}
+
+	/**
+	 * Get the number of messages for the job that are at least as severe as the given level.
+	 * See {@link Job#getMessageCount(Message.Level)}.
+	 */
+	public int getMessageCount(Message.Level minLevel) {
+		if (messages == null) {
+			return 0;
+		}
+		return messages.count(minLevel);
+	}
+
+	/**
+	 * Get the messages for the job, with runs of consecutive identical sibling messages
+	 * collapsed into one entry. See {@link Job#getCollapsedMessages(int)}.
+	 *
+	 * @param maxDepth Don't return messages deeper than this level (-1 for all messages)
+	 * @return The list of messages, or null if the job has no messages
+	 */
+	public List<CollapsedMessage> getCollapsedMessages(int maxDepth) {
+		if (messages == null) {
+			return null;
+		}
+		return messages.collapse(maxDepth);
+	}
+
+	/** See {@link Job#getResult()} */
+	public Result getResult() {
+		return result;
+	}
+
+	/** See {@link Job#getResult(String)} */
+	public Result getResult(String argumentName) {
+		if (argumentName == null || resultIndex == null) {
+			return null;
+		}
+		return resultIndex.getByName(argumentName);
+	}
+
+	/** See {@link Job#getResults(String)} */
+	public List<Result> getResults(String argumentName) {
+		Result argument = getResult(argumentName);
+		if (argument == null) {
+			return null;
+		}
+		return results.get(argument);
+	}
+
+	/** See {@link Job#getResults()} */
+	public SortedMap<Result,List<Result>> getResults() {
+		return results;
+	}
+
+	/** See {@link Job#getResultsByRelativeHref(String)} */
+	public SortedMap<String,Result> getResultsByRelativeHref(String prefix) {
+		if (resultIndex == null) {
+			return null;
+		}
+		return Collections.unmodifiableSortedMap(resultIndex.getByRelativeHrefPrefix(prefix));
+	}
+
+	/** See {@link Job#getProgressFrom()} */
+	public double getProgressFrom() {
+		return progressFrom;
+	}
+
+	/** See {@link Job#getProgressFromTime()} */
+	public Long getProgressFromTime() {
+		return progressFromTime;
+	}
+
+	/** See {@link Job#getProgressTo()} */
+	public double getProgressTo() {
+		return getProgressTo(1000);
+	}
+
+	/** See {@link Job#getProgressTo(Integer)} */
+	public double getProgressTo(Integer timeUntilUpdateRequest) {
+		return getProgressTo(new Date().getTime(), timeUntilUpdateRequest);
+	}
+
+	private double getProgressTo(long now, Integer timeUntilUpdateRequest) {
+		if (messages == null) {
+			return 100.0;
+		} else {
+			return Job.progressTo(progressFrom, progressInterval, jobStartTime, now, timeUntilUpdateRequest);
+		}
+	}
+
+	/**
+	 * Get the estimated job progress in between server updates as a percentage. See
+	 * {@link Job#getProgressEstimate()}.
+	 *
+	 * The estimate is for the current time, not the time of the snapshot, so it keeps
+	 * increasing until the next snapshot replaces this one.
+	 */
+	public double getProgressEstimate() {
+		return getProgressEstimate(1000);
+	}
+
+	/** See {@link Job#getProgressEstimate(Integer)} */
+	public double getProgressEstimate(Integer timeUntilUpdateRequest) {
+		return getProgressEstimate(new Date().getTime(), timeUntilUpdateRequest);
+	}
+
+	double getProgressEstimate(Long now, Integer timeUntilUpdateRequest) {
+		if (status == null || status == Job.Status.IDLE) {
+			return 0.0;
+		} else if (status != Job.Status.RUNNING) {
+			return 100.0;
+		} else if (messages == null) {
+			return 0.0;
+		} else {
+			return Job.progressEstimate(progressFrom, getProgressTo(), progressInterval, progressFromTime, jobStartTime,
+			                            now, timeUntilUpdateRequest);
+		}
+	}
+}
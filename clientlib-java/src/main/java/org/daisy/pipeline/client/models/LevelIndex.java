@@ -0,0 +1,125 @@
+package org.daisy.pipeline.client.models;
+
+/*
+ * The sequence numbers of messages, grouped by inferred level and sorted, together with the
+ * depth of every message. Used for paging through the messages of a certain level and depth
+ * without visiting the others, and for counting messages per level.
+ */
+class LevelIndex {
+
+	private static final Message.Level[] LEVELS = Message.Level.values();
+	private static final int NO_LEVEL = LEVELS.length; // group of messages without a level
+
+	private final IntList[] sequences = new IntList[LEVELS.length + 1];
+	private final IntList[] depths = new IntList[LEVELS.length + 1];
+
+	LevelIndex() {
+		for (int g = 0; g < sequences.length; g++) {
+			sequences[g] = new IntList();
+			depths[g] = new IntList();
+		}
+	}
+
+	private static int group(Message.Level level) {
+		return level == null ? NO_LEVEL : level.ordinal();
+	}
+
+	void add(int sequence, Message.Level inferredLevel, int depth) {
+		int g = group(inferredLevel);
+		IntList list = sequences[g];
+		// messages are normally added in order
+		int i = list.size();
+		if (i > 0 && list.get(i - 1) > sequence) {
+			i = lowerBound(list, sequence);
+		}
+		list.add(i, sequence);
+		depths[g].add(i, depth);
+	}
+
+	void remove(int sequence) {
+		for (int g = 0; g < sequences.length; g++) {
+			int i = sequences[g].binarySearch(sequence);
+			if (i >= 0) {
+				sequences[g].remove(i);
+				depths[g].remove(i);
+				return;
+			}
+		}
+	}
+
+	/* Move a message to another level, if it is indexed */
+	void setLevel(int sequence, Message.Level inferredLevel) {
+		int group = group(inferredLevel);
+		for (int g = 0; g < sequences.length; g++) {
+			int i = sequences[g].binarySearch(sequence);
+			if (i >= 0) {
+				if (g != group) {
+					int depth = depths[g].remove(i);
+					sequences[g].remove(i);
+					add(sequence, inferredLevel, depth);
+				}
+				return;
+			}
+		}
+	}
+
+	/* The number of messages with an inferred level at least as severe as the given level, or all messages if null */
+	int count(Message.Level minLevel) {
+		int count = 0;
+		for (int g = 0; g <= lastGroup(minLevel); g++) {
+			count += sequences[g].size();
+		}
+		return count;
+	}
+
+	/*
+	 * Add the sequence numbers of the first messages from fromSequence on, in order, with an
+	 * inferred level at least as severe as minLevel (all levels if null), and not deeper than
+	 * maxDepth (all depths if negative).
+	 */
+	void query(int fromSequence, int limit, Message.Level minLevel, int maxDepth, IntList result) {
+		int last = lastGroup(minLevel);
+		int[] position = new int[last + 1];
+		for (int g = 0; g <= last; g++) {
+			position[g] = lowerBound(sequences[g], fromSequence);
+		}
+		int count = 0;
+		while (count < limit) {
+			// the next message is the smallest sequence number among the groups
+			int next = -1;
+			for (int g = 0; g <= last; g++) {
+				if (position[g] < sequences[g].size()
+				    && (next < 0 || sequences[g].get(position[g]) < sequences[next].get(position[next]))) {
+					next = g;
+				}
+			}
+			if (next < 0) {
+				break;
+			}
+			if (maxDepth < 0 || depths[next].get(position[next]) <= maxDepth) {
+				result.add(sequences[next].get(position[next]));
+				count++;
+			}
+			position[next]++;
+		}
+	}
+
+	private static int lastGroup(Message.Level minLevel) {
+		return minLevel == null ? NO_LEVEL : minLevel.ordinal();
+	}
+
+	/* Position of the first element that is not smaller than the given value */
+	private static int lowerBound(IntList list, int value) {
+		int low = 0;
+		int high = list.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (list.get(mid) < value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -4,12 +4,12 @@ import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
 
-import javax.xml.transform.OutputKeys;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.daisy.pipeline.client.utils.XML;
 
@@ -33,6 +33,9 @@ public class Message implements Comparable<Message>, Iterable<Message>, Cloneabl
     
     List<Message> children;
     Message parent;
+    
+    // cached result of getInferredLevel(), or null if not computed yet
+    Level inferredLevel;
 
 	Message(long timeStamp) {
 		// the timeStamp is currently not exposed through the web api so we just set it here
@@ -69,12 +72,15 @@ public class Message implements Comparable<Message>, Iterable<Message>, Cloneabl
 	
 	/** Most severe level among itself and it's sub-messages */
 	public Level getInferredLevel() {
-		Level inferredLevel = level;
-		for (Message m : this) {
-			Level childLevel = m.getInferredLevel();
-			if (childLevel.compareTo(inferredLevel) < 0) {
-				inferredLevel = childLevel;
+		if (inferredLevel == null) {
+			Level inferredLevel = level;
+			for (Message m : this) {
+				Level childLevel = m.getInferredLevel();
+				if (childLevel.compareTo(inferredLevel) < 0) {
+					inferredLevel = childLevel;
+				}
 			}
+			this.inferredLevel = inferredLevel;
 		}
 		return inferredLevel;
 	}
@@ -126,35 +132,68 @@ public class Message implements Comparable<Message>, Iterable<Message>, Cloneabl
 	}
 	
 	/**
-	 * Merge with a previous version of this message
+	 * Update in place with a newer version of this message, without its children.
+	 *
+	 * The time stamp, which is the time the message was received, is only updated if the progress changed.
+	 *
+	 * @return whether the progress changed
 	 */
-	void join(Message oldMessage) {
-		if (oldMessage.sequence != null && sequence != null && oldMessage.sequence.intValue() != sequence.intValue()) {
+	boolean update(Message newMessage) {
+		if (newMessage.sequence != null && sequence != null && newMessage.sequence.intValue() != sequence.intValue()) {
 			throw new IllegalArgumentException();
 		}
-		Message.ProgressInfo progressInfo = getProgressInfo();
-		if (progressInfo != null && progressInfo.equals(oldMessage.getProgressInfo())) {
-			timeStamp = oldMessage.timeStamp;
-		}
-		Map<Integer,Message> index = new HashMap<Integer,Message>(); {
-			for (Message m : this) {
-				index.put(m.sequence, m);
+		if (newMessage.level != null && newMessage.level != level) {
+			level = newMessage.level;
+			for (Message m = this; m != null; m = m.parent) {
+				m.inferredLevel = null;
 			}
 		}
-		int i = 0;
-		for (Message oldChild : oldMessage) {
-			Message newChild = index.get(oldChild.sequence);
-			if (newChild != null) {
-				newChild.join(oldChild);
-			} else {
-				children.add(i++, oldChild);
-				oldChild.parent = this;
+		if (newMessage.text != null) text = newMessage.text;
+		if (newMessage.line != null) line = newMessage.line;
+		if (newMessage.column != null) column = newMessage.column;
+		if (newMessage.file != null) file = newMessage.file;
+		Message.ProgressInfo oldProgressInfo = getProgressInfo();
+		Message.ProgressInfo newProgressInfo = newMessage.getProgressInfo();
+		if (newProgressInfo != null && newProgressInfo.equals(oldProgressInfo)) {
+			return false;
+		}
+		progressInfo = newMessage.progressInfo;
+		timeStamp = newMessage.timeStamp;
+		return newProgressInfo != null || oldProgressInfo != null;
+	}
+
+	/* Whether this message is an identical sibling of another message, see CollapsedMessage */
+	boolean isRepetitionOf(Message other) {
+		return parent == other.parent
+			&& (children == null || children.isEmpty())
+			&& (other.children == null || other.children.isEmpty())
+			&& progressInfo == null && other.progressInfo == null
+			&& level == other.level
+			&& Objects.equals(text, other.text)
+			&& Objects.equals(file, other.file)
+			&& Objects.equals(line, other.line)
+			&& Objects.equals(column, other.column);
+	}
+
+	/* Append a new child message */
+	void addChild(Message child) {
+		if (children == null) {
+			children = new ArrayList<Message>();
+		}
+		children.add(child);
+		child.parent = this;
+		// the ancestors for which the inferred level was not computed yet will include the child when they are
+		Level level = child.getInferredLevel();
+		if (level != null) {
+			for (Message m = this; m != null && m.inferredLevel != null && level.compareTo(m.inferredLevel) < 0; m = m.parent) {
+				m.inferredLevel = level;
 			}
 		}
 	}
-	
+
 	public Document toXml() {
-		Document xml = XML.getXml("<message xmlns=\"http://www.daisy.org/ns/pipeline/data\"/>");
+		Document xml = XML.newDocument();
+		xml.appendChild(xml.createElementNS(StaxWriter.NS, "message"));
 		toXml(xml.getDocumentElement(), true);
 		return xml;
 	}
@@ -167,10 +206,10 @@ public class Message implements Comparable<Message>, Iterable<Message>, Cloneabl
 			target.setAttribute("sequence", ""+sequence);
 		}
 		if (line != null) {
-			target.setAttribute("line", ""+sequence);
+			target.setAttribute("line", ""+line);
 		}
 		if (column != null) {
-			target.setAttribute("column", ""+sequence);
+			target.setAttribute("column", ""+column);
 		}
 		if (timeStamp != null) {
 			target.setAttribute("timeStamp", formatTimeStamp());
@@ -198,16 +237,39 @@ public class Message implements Comparable<Message>, Iterable<Message>, Cloneabl
 		}
 	}
 	
+	/* Streaming equivalent of toXml(Element, boolean): writes the attributes and children of the current element */
+	void toXml(XMLStreamWriter writer, boolean progress) throws XMLStreamException {
+		StaxWriter.attribute(writer, "level", level);
+		StaxWriter.attribute(writer, "sequence", sequence);
+		StaxWriter.attribute(writer, "line", line);
+		StaxWriter.attribute(writer, "column", column);
+		if (timeStamp != null) {
+			writer.writeAttribute("timeStamp", formatTimeStamp());
+		}
+		StaxWriter.attribute(writer, "file", file);
+		StaxWriter.attribute(writer, "content", text);
+		if (progress) {
+			Message.ProgressInfo progressInfo = getProgressInfo();
+			if (progressInfo != null
+			    && progressInfo.portion.compareTo(BigDecimal.ZERO) > 0) {
+				writer.writeAttribute("portion", Float.toString(progressInfo.portion.floatValue()));
+				writer.writeAttribute("progress", Float.toString(progressInfo.progress.floatValue()));
+			} else {
+				progress = false;
+			}
+		}
+		for (Message m : this) {
+			StaxWriter.startElement(writer, "message", false);
+			m.toXml(writer, progress);
+			writer.writeEndElement();
+		}
+	}
+	
 	@Override
 	public String toString() {
 		Element elem = XML.getXml("<message/>").getDocumentElement();
 		toXml(elem, true);
-		return XML.toString(elem, outputProps);
-	}
-	
-	private final static Map<String,String> outputProps = new HashMap<String,String>(); {
-		outputProps.put(OutputKeys.INDENT, "yes");
-		outputProps.put(OutputKeys.OMIT_XML_DECLARATION, "yes");
+		return XML.toString(elem, XML.INDENT_NO_DECLARATION);
 	}
 	
 	/* Get a deep copy of this message and its children. The original parent reference is
@@ -235,6 +297,23 @@ public class Message implements Comparable<Message>, Iterable<Message>, Cloneabl
 		return clone;
 	}
 	
+	/* Get a copy of this message without its parent and children */
+	Message copyWithoutRelatives() {
+		Message copy; {
+			try {
+				copy = (Message)super.clone(); }
+			catch (CloneNotSupportedException e) {
+				throw new InternalError("coding error"); }}
+		if (progressInfo != null) {
+			copy.progressInfo = new ProgressInfo();
+			copy.progressInfo.portion = progressInfo.portion;
+			copy.progressInfo.progress = progressInfo.progress;
+		}
+		copy.parent = null;
+		copy.children = null;
+		return copy;
+	}
+	
 	public static class ProgressInfo {
 		
 		/** Portion of this block within the parent block. A number between 0 and 1. */
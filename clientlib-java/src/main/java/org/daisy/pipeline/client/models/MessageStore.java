@@ -0,0 +1,330 @@
+package org.daisy.pipeline.client.models;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Job messages packed into parallel arrays of primitives, one entry per message, in document
+ * order. Texts and file names are kept UTF-8 encoded in a shared byte pool, in which every
+ * distinct string is stored once: jobs often emit thousands of identical messages.
+ *
+ * A Message object costs several hundred bytes (boxed numbers, BigDecimals, a String, a list
+ * of children); an entry in the store costs about 45 bytes. JobMessages creates
+ * Message objects from the store only for the messages that are actually accessed.
+ */
+class MessageStore {
+
+	// value of int fields that are not set
+	static final int NO_VALUE = Integer.MIN_VALUE;
+
+	private static final Message.Level[] LEVELS = Message.Level.values();
+
+	// progress and portion are stored as fixed point numbers with this many decimals
+	private static final int SCALE = 9;
+
+	private int size = 0;
+	private int[] sequence;
+	private int[] parent; // index of the parent, or -1
+	private IntList[] children; // indexes of the children, or null
+	private byte[] level; // ordinal, or -1
+	private long[] timeStamp;
+	private int[] line;
+	private int[] column;
+	private int[] portion; // NO_VALUE if the message has no progress info
+	private int[] progress;
+	private int[] text; // offset in pool, or -1
+	private int[] file; // offset in pool, or -1
+	private byte[] inferredLevel = null; // most severe level of every message and its descendants (computed when needed)
+
+	private byte[] pool = new byte[1024];
+	private int poolSize = 0;
+	// offset in the pool of every distinct string, while messages are being added
+	private Map<String,Integer> dictionary = null;
+
+	// for finding messages by sequence number: whether the sequence numbers are strictly
+	// increasing in document order, which they normally are, or else the sequence number and
+	// index of every message, sorted (computed when needed)
+	private Boolean sorted = null;
+	private long[] bySequence = null;
+
+	MessageStore() {
+		this(64);
+	}
+
+	MessageStore(int capacity) {
+		sequence = new int[capacity];
+		parent = new int[capacity];
+		children = new IntList[capacity];
+		level = new byte[capacity];
+		timeStamp = new long[capacity];
+		line = new int[capacity];
+		column = new int[capacity];
+		portion = new int[capacity];
+		progress = new int[capacity];
+		text = new int[capacity];
+		file = new int[capacity];
+	}
+
+	/*
+	 * Add a message as the last child of another message.
+	 *
+	 * @param parentIndex the index of the parent, or -1 for a top level message
+	 * @return the index of the new message
+	 */
+	int add(int parentIndex, long timeStamp) {
+		if (size == sequence.length) {
+			grow();
+		}
+		int i = size++;
+		inferredLevel = null;
+		this.sequence[i] = NO_VALUE;
+		this.parent[i] = parentIndex;
+		this.level[i] = -1;
+		this.timeStamp[i] = timeStamp;
+		this.line[i] = NO_VALUE;
+		this.column[i] = NO_VALUE;
+		this.portion[i] = NO_VALUE;
+		this.progress[i] = 0;
+		this.text[i] = -1;
+		this.file[i] = -1;
+		if (parentIndex >= 0) {
+			if (children[parentIndex] == null) {
+				children[parentIndex] = new IntList();
+			}
+			children[parentIndex].add(i);
+		}
+		return i;
+	}
+
+	private void grow() {
+		resize(Math.max(16, sequence.length * 2));
+	}
+
+	private void resize(int capacity) {
+		sequence = Arrays.copyOf(sequence, capacity);
+		parent = Arrays.copyOf(parent, capacity);
+		children = Arrays.copyOf(children, capacity);
+		level = Arrays.copyOf(level, capacity);
+		timeStamp = Arrays.copyOf(timeStamp, capacity);
+		line = Arrays.copyOf(line, capacity);
+		column = Arrays.copyOf(column, capacity);
+		portion = Arrays.copyOf(portion, capacity);
+		progress = Arrays.copyOf(progress, capacity);
+		text = Arrays.copyOf(text, capacity);
+		file = Arrays.copyOf(file, capacity);
+	}
+
+	void setSequence(int i, int sequence) {
+		this.sequence[i] = sequence;
+		sorted = null;
+		bySequence = null;
+	}
+
+	void setLevel(int i, Message.Level level) {
+		this.level[i] = (byte)level.ordinal();
+		inferredLevel = null;
+	}
+
+	void setTimeStamp(int i, long timeStamp) {
+		this.timeStamp[i] = timeStamp;
+	}
+
+	void setLine(int i, int line) {
+		this.line[i] = line;
+	}
+
+	void setColumn(int i, int column) {
+		this.column[i] = column;
+	}
+
+	/* @throws NumberFormatException or ArithmeticException if a value is not a number between 0 and 2 */
+	void setProgress(int i, String portion, String progress) {
+		this.portion[i] = toFixedPoint(portion);
+		this.progress[i] = progress != null ? toFixedPoint(progress) : 0;
+	}
+
+	void setText(int i, String text) {
+		this.text[i] = addToPool(text);
+	}
+
+	void setFile(int i, String file) {
+		this.file[i] = addToPool(file);
+	}
+
+	/* @return the offset of the string in the pool */
+	private int addToPool(String s) {
+		if (dictionary == null) {
+			dictionary = new HashMap<String,Integer>();
+		}
+		Integer offset = dictionary.get(s);
+		if (offset == null) {
+			offset = addToPool(s.getBytes(StandardCharsets.UTF_8));
+			dictionary.put(s, offset);
+		}
+		return offset;
+	}
+
+	/* Strings in the pool are prefixed with their length in bytes */
+	private int addToPool(byte[] bytes) {
+		int offset = poolSize;
+		int length = 4 + bytes.length;
+		if (poolSize + length > pool.length) {
+			pool = Arrays.copyOf(pool, Math.max(poolSize + length, pool.length * 2));
+		}
+		pool[offset] = (byte)(bytes.length >>> 24);
+		pool[offset + 1] = (byte)(bytes.length >>> 16);
+		pool[offset + 2] = (byte)(bytes.length >>> 8);
+		pool[offset + 3] = (byte)bytes.length;
+		System.arraycopy(bytes, 0, pool, offset + 4, bytes.length);
+		poolSize += length;
+		return offset;
+	}
+
+	private String fromPool(int offset) {
+		int length = (pool[offset] & 0xFF) << 24
+		           | (pool[offset + 1] & 0xFF) << 16
+		           | (pool[offset + 2] & 0xFF) << 8
+		           | (pool[offset + 3] & 0xFF);
+		return new String(pool, offset + 4, length, StandardCharsets.UTF_8);
+	}
+
+	/* Release the unused capacity, when no more messages will be added */
+	void trimToSize() {
+		if (size < sequence.length) {
+			resize(size);
+		}
+		if (poolSize < pool.length) {
+			pool = Arrays.copyOf(pool, poolSize);
+		}
+		dictionary = null;
+	}
+
+	private static int toFixedPoint(String number) {
+		return new BigDecimal(number).scaleByPowerOfTen(SCALE).setScale(0, RoundingMode.HALF_UP).intValueExact();
+	}
+
+	private static BigDecimal fromFixedPoint(int number) {
+		return BigDecimal.valueOf(number, SCALE).stripTrailingZeros();
+	}
+
+	int size() {
+		return size;
+	}
+
+	int sequence(int i) {
+		return sequence[i];
+	}
+
+	int parent(int i) {
+		return parent[i];
+	}
+
+	int childCount(int i) {
+		return children[i] == null ? 0 : children[i].size();
+	}
+
+	int child(int i, int n) {
+		return children[i].get(n);
+	}
+
+	boolean hasProgressInfo(int i) {
+		return portion[i] != NO_VALUE;
+	}
+
+	long timeStamp(int i) {
+		return timeStamp[i];
+	}
+
+	/* Most severe level among a message and its descendants, like Message.getInferredLevel() */
+	Message.Level inferredLevel(int i) {
+		if (inferredLevel == null) {
+			// children come after their parent, so going backwards every message is done before its parent
+			inferredLevel = Arrays.copyOf(level, size);
+			for (int j = size - 1; j >= 0; j--) {
+				int p = parent[j];
+				if (p >= 0 && inferredLevel[j] >= 0 && (inferredLevel[p] < 0 || inferredLevel[j] < inferredLevel[p])) {
+					inferredLevel[p] = inferredLevel[j];
+				}
+			}
+		}
+		return inferredLevel[i] < 0 ? null : LEVELS[inferredLevel[i]];
+	}
+
+	int depth(int i) {
+		int depth = 0;
+		for (int p = parent[i]; p >= 0; p = parent[p]) {
+			depth++;
+		}
+		return depth;
+	}
+
+	/*
+	 * Whether two messages are identical siblings: messages with the same parent, level, text,
+	 * file, line and column, and without children or progress info. Because every distinct
+	 * string is stored once, this does not need to look at the texts.
+	 */
+	boolean isRepetitionOf(int i, int j) {
+		return parent[i] == parent[j]
+			&& children[i] == null && children[j] == null
+			&& portion[i] == NO_VALUE && portion[j] == NO_VALUE
+			&& level[i] == level[j]
+			&& text[i] == text[j]
+			&& file[i] == file[j]
+			&& line[i] == line[j]
+			&& column[i] == column[j];
+	}
+
+	/*
+	 * Create a Message object with the fields of a message, without its parent and children.
+	 */
+	Message message(int i) {
+		Message m = new Message(timeStamp[i]);
+		m.sequence = sequence[i] == NO_VALUE ? null : sequence[i];
+		m.level = level[i] < 0 ? null : LEVELS[level[i]];
+		m.text = text[i] < 0 ? null : fromPool(text[i]);
+		m.file = file[i] < 0 ? null : fromPool(file[i]);
+		m.line = line[i] == NO_VALUE ? null : line[i];
+		m.column = column[i] == NO_VALUE ? null : column[i];
+		if (parent[i] >= 0 && sequence[parent[i]] != NO_VALUE) {
+			m.parentSequence = sequence[parent[i]];
+		}
+		m.inferredLevel = inferredLevel(i);
+		if (portion[i] != NO_VALUE) {
+			m.progressInfo = new Message.ProgressInfo();
+			m.progressInfo.portion = fromFixedPoint(portion[i]);
+			m.progressInfo.progress = fromFixedPoint(progress[i]);
+		}
+		return m;
+	}
+
+	/* @return the index of the message with the given sequence number, or -1 */
+	int indexOf(int sequence) {
+		if (sorted == null) {
+			sorted = true;
+			for (int i = 1; i < size && sorted; i++) {
+				sorted = this.sequence[i - 1] < this.sequence[i];
+			}
+		}
+		if (sorted) {
+			int i = Arrays.binarySearch(this.sequence, 0, size, sequence);
+			return i < 0 ? -1 : i;
+		}
+		if (bySequence == null) {
+			bySequence = new long[size];
+			for (int i = 0; i < size; i++) {
+				bySequence[i] = ((long)this.sequence[i] << 32) | i;
+			}
+			Arrays.sort(bySequence);
+		}
+		int i = Arrays.binarySearch(bySequence, (long)sequence << 32);
+		i = i < 0 ? -i - 1 : i;
+		if (i < size && (int)(bySequence[i] >> 32) == sequence) {
+			return (int)bySequence[i];
+		}
+		return -1;
+	}
+}
@@ -7,11 +7,14 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.daisy.pipeline.client.Pipeline2Exception;
 import org.daisy.pipeline.client.Pipeline2Logger;
+import org.daisy.pipeline.client.utils.DOM;
 import org.daisy.pipeline.client.utils.Files;
 import org.daisy.pipeline.client.utils.XML;
-import org.daisy.pipeline.client.utils.XPath;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -36,19 +39,19 @@ public class Result implements Comparable<Result> {
 	private static Pattern relativeHrefPattern = Pattern.compile("^.*?/jobs/[^/]+/result(.*)$");
 
 	public static Result parseResultXml(Node resultNode) throws Pipeline2Exception {
-		String parentHref = XPath.selectText("../@href", resultNode, XPath.dp2ns); // can be from /job/@href, /job/results/@href or /job/results/result/@href
+		String parentHref = DOM.attribute(resultNode.getParentNode(), "href"); // can be from /job/@href, /job/results/@href or /job/results/result/@href
 		return parseResultXml(resultNode, parentHref);
 	}
 
 	public static Result parseResultXml(Node resultNode, String base) throws Pipeline2Exception {
 		Result item = new Result();
 
-		item.href = XPath.selectText("@href", resultNode, XPath.dp2ns);
-		item.file= XPath.selectText("@file", resultNode, XPath.dp2ns);
-		item.mimeType = XPath.selectText("@mime-type", resultNode, XPath.dp2ns);
-		item.name = XPath.selectText("@name", resultNode, XPath.dp2ns);
-		item.from = XPath.selectText("@from", resultNode, XPath.dp2ns);
-		item.nicename = XPath.selectText("@nicename", resultNode, XPath.dp2ns);
+		item.href = DOM.attribute(resultNode, "href");
+		item.file= DOM.attribute(resultNode, "file");
+		item.mimeType = DOM.attribute(resultNode, "mime-type");
+		item.name = DOM.attribute(resultNode, "name");
+		item.from = DOM.attribute(resultNode, "from");
+		item.nicename = DOM.attribute(resultNode, "nicename");
 		
 		if ("results".equals(resultNode.getNodeName())) {
 			// all results
@@ -80,21 +83,43 @@ public class Result implements Comparable<Result> {
 			}
 		}
 
-		String sizeText = XPath.selectText("@size", resultNode, XPath.dp2ns);
+		String sizeText = DOM.attribute(resultNode, "size");
 		if (sizeText != null && sizeText.length() > 0) {
 			item.size = Long.parseLong(sizeText);
 		} else {
 			item.size = 0L;
-			List<Node> leafNodes = XPath.selectNodes(".//d:result[not(*)]", resultNode, XPath.dp2ns);
-			for (Node leafNode : leafNodes) {
-				String childSize = XPath.selectText("@size", leafNode, XPath.dp2ns);
-				item.size += childSize == null ? 0 : Long.parseLong(childSize);
-			}
+			item.size = leafSize(resultNode);
 		}
 
 		return item;
 	}
 
+	/* The total size of the descendant result elements that have no child elements, like XPath ".//d:result[not(*)]/@size" */
+	private static long leafSize(Node node) {
+		long size = 0;
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			if (DOM.isElement(child, "result") && !hasChildElements(child)) {
+				String childSize = DOM.attribute(child, "size");
+				size += childSize == null ? 0 : Long.parseLong(childSize);
+			} else {
+				size += leafSize(child);
+			}
+		}
+		return size;
+	}
+
+	private static boolean hasChildElements(Node node) {
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public int compareTo(Result other) {
 		return href.compareTo(other.href);
 	}
@@ -120,6 +145,16 @@ public class Result implements Comparable<Result> {
 		}
 	}
 
+	/* Streaming equivalent of toXml(Element): writes the attributes of the current element */
+	void toXml(XMLStreamWriter writer) throws XMLStreamException {
+		StaxWriter.attribute(writer, "href", href);
+		StaxWriter.attribute(writer, "file", file);
+		StaxWriter.attribute(writer, "mime-type", mimeType);
+		StaxWriter.attribute(writer, "name", name);
+		StaxWriter.attribute(writer, "from", from);
+		StaxWriter.attribute(writer, "size", size);
+	}
+
 	/**
 	 * Get the result as a File object if possible; null otherwise.
 	 * 
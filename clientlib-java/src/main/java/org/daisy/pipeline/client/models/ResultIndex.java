@@ -0,0 +1,87 @@
+package org.daisy.pipeline.client.models;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/*
+ * Lookup tables for the results of a job, so that a result can be found by its href
+ * without scanning all results or evaluating an XPath expression per href.
+ *
+ * When several results share a key, the first one in the order of Job.getResults() wins,
+ * which is the result that the linear searches used to return.
+ */
+class ResultIndex {
+
+	private final Map<String,Result> byHref = new HashMap<String,Result>();
+	private final TreeMap<String,Result> byRelativeHref = new TreeMap<String,Result>();
+	private final Map<String,Result> byName = new HashMap<String,Result>();
+	private final Map<Result,Map<String,Result>> byArgumentHref = new HashMap<Result,Map<String,Result>>();
+
+	/**
+	 * @param result the result representing "all results", may be null
+	 * @param results the results for each named output, and the files in each of them
+	 */
+	ResultIndex(Result result, SortedMap<Result,List<Result>> results) {
+		if (result != null) {
+			add(result);
+		}
+		for (Result argument : results.keySet()) {
+			add(argument);
+			if (argument.name != null) {
+				byName.putIfAbsent(argument.name, argument);
+			}
+			Map<String,Result> files = new HashMap<String,Result>();
+			for (Result file : results.get(argument)) {
+				if (file == null) {
+					continue;
+				}
+				add(file);
+				if (file.href != null) {
+					files.putIfAbsent(file.href, file);
+				}
+				if (file.prettyRelativeHref != null) {
+					files.putIfAbsent(file.prettyRelativeHref, file);
+				}
+			}
+			byArgumentHref.put(argument, files);
+		}
+	}
+
+	private void add(Result result) {
+		if (result.href != null) {
+			byHref.putIfAbsent(result.href, result);
+		}
+		if (result.relativeHref != null) {
+			byRelativeHref.putIfAbsent(result.relativeHref, result);
+		}
+	}
+
+	/* Get a result by its absolute href or by its href relative to the "…/result" URL */
+	Result getByHref(String href) {
+		Result result = byHref.get(href);
+		return result != null ? result : byRelativeHref.get(href);
+	}
+
+	/* Get the result for the output with the given name */
+	Result getByName(String argumentName) {
+		return byName.get(argumentName);
+	}
+
+	/* Get a file from the given output by its absolute href or by its pretty relative href */
+	Result getFile(Result argument, String href) {
+		Map<String,Result> files = byArgumentHref.get(argument);
+		return files == null ? null : files.get(href);
+	}
+
+	/* Get all results whose relative href starts with the given prefix, sorted by relative href */
+	SortedMap<String,Result> getByRelativeHrefPrefix(String prefix) {
+		if (prefix == null || prefix.isEmpty()) {
+			return Collections.unmodifiableSortedMap(byRelativeHref);
+		}
+		return Collections.unmodifiableSortedMap(byRelativeHref.subMap(prefix, prefix + Character.MAX_VALUE));
+	}
+}
@@ -4,8 +4,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.daisy.pipeline.client.Pipeline2Exception;
 import org.daisy.pipeline.client.Pipeline2Logger;
+import org.daisy.pipeline.client.utils.DOM;
 import org.daisy.pipeline.client.utils.XML;
 import org.daisy.pipeline.client.utils.XPath;
 import org.w3c.dom.Document;
@@ -62,14 +66,17 @@ public class Script implements Comparable<Script> {
 		
 		try {
 			// select root element if the node is a document node
-			if (scriptNode instanceof Document)
-				scriptNode = XPath.selectNode("/d:script", scriptNode, XPath.dp2ns);
+			if (scriptNode instanceof Document) {
+				scriptNode = DOM.element(scriptNode);
+				if (scriptNode != null && !DOM.isElement(scriptNode, "script"))
+					scriptNode = null;
+			}
 			
-			this.id = XPath.selectText("@id", scriptNode, XPath.dp2ns);
-			this.href = XPath.selectText("@href", scriptNode, XPath.dp2ns);
+			this.id = DOM.attribute(scriptNode, "id");
+			this.href = DOM.attribute(scriptNode, "href");
 			
-			String inputFilesetsString = XPath.selectText("@input-filesets", scriptNode, XPath.dp2ns);
-			String outputFilesetsString = XPath.selectText("@output-filesets", scriptNode, XPath.dp2ns);
+			String inputFilesetsString = DOM.attribute(scriptNode, "input-filesets");
+			String outputFilesetsString = DOM.attribute(scriptNode, "output-filesets");
 			
 			if (inputFilesetsString != null && !"".equals(inputFilesetsString)) {
 				for (String fileset : inputFilesetsString.split("\\s+")) {
@@ -102,13 +109,13 @@ public class Script implements Comparable<Script> {
 				}
 			}
 			
-			this.nicename = XPath.selectText("d:nicename", scriptNode, XPath.dp2ns);
-			this.description = XPath.selectText("d:description", scriptNode, XPath.dp2ns);
-			this.version = XPath.selectText("d:version", scriptNode, XPath.dp2ns);
-			this.homepage = XPath.selectText("d:homepage", scriptNode, XPath.dp2ns);
+			this.nicename = DOM.childText(scriptNode, "nicename");
+			this.description = DOM.childText(scriptNode, "description");
+			this.version = DOM.childText(scriptNode, "version");
+			this.homepage = DOM.childText(scriptNode, "homepage");
 			
-			List<Node> inputNodes = XPath.selectNodes("d:input | d:option", scriptNode, XPath.dp2ns);
-			List<Node> outputNodes = XPath.selectNodes("d:output", scriptNode, XPath.dp2ns);
+			List<Element> inputNodes = DOM.children(scriptNode, "input", "option");
+			List<Element> outputNodes = DOM.children(scriptNode, "output");
 			
 			for (Node inputNode : inputNodes) {
 				Argument argument = new Argument(inputNode);
@@ -283,6 +290,36 @@ public class Script implements Comparable<Script> {
 		return scriptDocument;
 	}
 	
+	/* Streaming equivalent of toXml(), used by StaxWriter */
+	void toXml(XMLStreamWriter writer) throws XMLStreamException {
+		lazyLoad();
+		
+		StaxWriter.startElement(writer, "script", true);
+		StaxWriter.attribute(writer, "id", id);
+		StaxWriter.attribute(writer, "href", href);
+		if (inputFilesets != null) {
+		    StaxWriter.attribute(writer, "input-filesets", String.join(" ", inputFilesets));
+		}
+		if (outputFilesets != null) {
+		    StaxWriter.attribute(writer, "output-filesets", String.join(" ", outputFilesets));
+		}
+		StaxWriter.textElement(writer, "nicename", nicename, false);
+		StaxWriter.textElement(writer, "description", description, false);
+		StaxWriter.textElement(writer, "version", version, false);
+		StaxWriter.textElement(writer, "homepage", homepage, false);
+		if (inputs != null) {
+		    for (Argument arg : inputs) {
+		        arg.toXml(writer);
+		    }
+		}
+		if (outputs != null) {
+		    for (Argument arg : outputs) {
+		        arg.toXml(writer);
+		    }
+		}
+		writer.writeEndElement();
+	}
+	
 	/**
 	 * Get all arguments, both inputs and outputs.
 	 * 
@@ -0,0 +1,403 @@
+package org.daisy.pipeline.client.models;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.daisy.pipeline.client.Pipeline2Exception;
+import org.daisy.pipeline.client.utils.XML;
+import org.daisy.pipeline.client.utils.XPath;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Builds models directly from a stream of XML, for instance the body of a Web API response.
+ *
+ * The body is read once with a StAX pull parser, without first buffering it as a String and
+ * without building a DOM of the whole response. Job messages, which make up the bulk of a
+ * large job, are packed into a compact message store directly, from which Message objects
+ * are only created when they are accessed. The other, small parts of a job (script,
+ * results, arguments, ...) are kept as a DOM so that they can still be lazily parsed,
+ * modified and serialized like before.
+ *
+ * Use {@link org.daisy.pipeline.client.utils.XML#getXml(InputStream)} to get a Document instead.
+ */
+public class StaxParser {
+
+	private static final String NS = XPath.dp2ns.get("d");
+
+	private static final ThreadLocal<XMLInputFactory> inputFactory = ThreadLocal.withInitial(() -> {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	});
+
+	private StaxParser() {}
+
+	/**
+	 * Parse a job, like the response to /jobs/{id}.
+	 *
+	 * @param in the XML
+	 * @return the job
+	 * @throws Pipeline2Exception thrown when the XML can not be parsed
+	 */
+	public static Job parseJob(InputStream in) throws Pipeline2Exception {
+		XMLStreamReader reader = open(in);
+		try {
+			toRootElement(reader, "job");
+			return readJob(reader, XML.newDocument(), System.currentTimeMillis());
+
+		} catch (XMLStreamException e) {
+			throw new Pipeline2Exception("Unable to parse job XML", e);
+		} finally {
+			close(reader);
+		}
+	}
+
+	/**
+	 * Parse a list of jobs, like the response to /jobs or /batch/{id}.
+	 *
+	 * @param in the XML
+	 * @return the jobs
+	 * @throws Pipeline2Exception thrown when the XML can not be parsed
+	 */
+	public static List<Job> parseJobs(InputStream in) throws Pipeline2Exception {
+		return parseJobs(in, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Parse a list of jobs, like the response to /jobs or /batch/{id}, and when there are
+	 * many jobs, also parse everything that is otherwise parsed lazily, in parallel.
+	 *
+	 * The XML is read sequentially, but most of the work of parsing a job is done later,
+	 * when its fields are first accessed. For a long list of jobs this work is split over
+	 * the common fork-join pool (see {@link Job#materialize()}). Every job has its own
+	 * document, so the jobs can be parsed independently of each other.
+	 *
+	 * @param in the XML
+	 * @param parallelismThreshold the number of jobs from which on the jobs are parsed in
+	 *                             parallel; Integer.MAX_VALUE to never do so
+	 * @return the jobs, fully parsed if there are at least parallelismThreshold
+	 * @throws Pipeline2Exception thrown when the XML can not be parsed
+	 */
+	public static List<Job> parseJobs(InputStream in, int parallelismThreshold) throws Pipeline2Exception {
+		List<Job> jobs = readJobs(in);
+		if (jobs.size() >= parallelismThreshold) {
+			jobs.parallelStream().forEach(Job::materialize);
+		}
+		return jobs;
+	}
+
+	private static List<Job> readJobs(InputStream in) throws Pipeline2Exception {
+		XMLStreamReader reader = open(in);
+		try {
+			toRootElement(reader, null);
+			List<Job> jobs = new ArrayList<Job>();
+			long now = System.currentTimeMillis();
+			while (nextChildElement(reader)) {
+				if (isElement(reader, "job")) {
+					jobs.add(readJob(reader, XML.newDocument(), now));
+				} else {
+					skipElement(reader);
+				}
+			}
+			return jobs;
+
+		} catch (XMLStreamException e) {
+			throw new Pipeline2Exception("Unable to parse jobs XML", e);
+		} finally {
+			close(reader);
+		}
+	}
+
+	/**
+	 * Parse a script, like the response to /scripts/{id}.
+	 *
+	 * @param in the XML
+	 * @return the script
+	 * @throws Pipeline2Exception thrown when the XML can not be parsed
+	 */
+	public static Script parseScript(InputStream in) throws Pipeline2Exception {
+		XMLStreamReader reader = open(in);
+		try {
+			toRootElement(reader, "script");
+			Document document = XML.newDocument();
+			document.appendChild(readElement(reader, document));
+			return new Script(document);
+
+		} catch (XMLStreamException e) {
+			throw new Pipeline2Exception("Unable to parse script XML", e);
+		} finally {
+			close(reader);
+		}
+	}
+
+	/**
+	 * Parse the job queue, like the response to /queue.
+	 *
+	 * @param in the XML
+	 * @return the queue
+	 * @throws Pipeline2Exception thrown when the XML can not be parsed
+	 */
+	public static JobQueue parseQueue(InputStream in) throws Pipeline2Exception {
+		XMLStreamReader reader = open(in);
+		try {
+			toRootElement(reader, "queue");
+			JobQueue queue = new JobQueue();
+			queue.href = reader.getAttributeValue(null, "href");
+			while (nextChildElement(reader)) {
+				if (isElement(reader, "job")) {
+					JobQueue.QueuedJob queuedJob = queue.new QueuedJob();
+					queuedJob.id = reader.getAttributeValue(null, "id");
+					queuedJob.href = reader.getAttributeValue(null, "href");
+					queuedJob.computedPriority = Double.valueOf(reader.getAttributeValue(null, "computedPriority"));
+					queuedJob.jobPriority = JobQueue.parsePriority(reader.getAttributeValue(null, "jobPriority"));
+					queuedJob.clientPriority = JobQueue.parsePriority(reader.getAttributeValue(null, "clientPriority"));
+					queuedJob.relativeTime = Double.valueOf(reader.getAttributeValue(null, "relativeTime"));
+					queuedJob.timestamp = Long.valueOf(reader.getAttributeValue(null, "timestamp"));
+					queuedJob.moveUp = reader.getAttributeValue(null, "moveUp");
+					queuedJob.moveDown = reader.getAttributeValue(null, "moveDown");
+					queue.queue.add(queuedJob);
+				}
+				skipElement(reader);
+			}
+			return queue;
+
+		} catch (XMLStreamException | RuntimeException e) {
+			throw new Pipeline2Exception("Unable to parse job queue XML", e);
+		} finally {
+			close(reader);
+		}
+	}
+
+	/**
+	 * Parse the job sizes, like the response to /admin/sizes.
+	 *
+	 * @param in the XML
+	 * @return the job sizes
+	 * @throws Pipeline2Exception thrown when the XML can not be parsed
+	 */
+	public static JobSizes parseSizes(InputStream in) throws Pipeline2Exception {
+		XMLStreamReader reader = open(in);
+		try {
+			toRootElement(reader, "jobSizes");
+			JobSizes sizes = new JobSizes();
+			sizes.href = reader.getAttributeValue(null, "href");
+			sizes.total = Long.valueOf(reader.getAttributeValue(null, "total"));
+			while (nextChildElement(reader)) {
+				if (isElement(reader, "jobSize")) {
+					JobSizes.JobSize jobSize = sizes.new JobSize();
+					jobSize.id = reader.getAttributeValue(null, "id");
+					jobSize.context = Long.valueOf(reader.getAttributeValue(null, "context"));
+					jobSize.log = Long.valueOf(reader.getAttributeValue(null, "log"));
+					jobSize.output = Long.valueOf(reader.getAttributeValue(null, "output"));
+					sizes.jobSizes.put(jobSize.id, jobSize);
+				}
+				skipElement(reader);
+			}
+			return sizes;
+
+		} catch (XMLStreamException | RuntimeException e) {
+			throw new Pipeline2Exception("Unable to parse job sizes XML", e);
+		} finally {
+			close(reader);
+		}
+	}
+
+	// the reader is positioned on a job element; the messages are parsed, everything else is kept as DOM
+	private static Job readJob(XMLStreamReader reader, Document document, long now) throws XMLStreamException, Pipeline2Exception {
+		Element jobElement = startElement(reader, document);
+		document.appendChild(jobElement);
+		MessageStore messages = null;
+		int msgSeq = -1;
+		while (next(reader, jobElement)) {
+			if (isElement(reader, "messages")) {
+				Element messagesElement = startElement(reader, document);
+				jobElement.appendChild(messagesElement);
+				String msgSeqString = reader.getAttributeValue(null, "msgSeq");
+				if (msgSeqString != null) {
+					msgSeq = Integer.parseInt(msgSeqString);
+				}
+				messages = new MessageStore();
+				readMessages(reader, messages, -1, now);
+				messages.trimToSize();
+			} else {
+				jobElement.appendChild(readElement(reader, document));
+			}
+		}
+		Job job = new Job(jobElement);
+		if (messages != null) {
+			job.setParsedMessages(new JobMessages(messages, msgSeq));
+		}
+		return job;
+	}
+
+	// the message children of the current element, added to the store as children of the
+	// given message (-1 for top level messages); the reader ends up on its end tag
+	private static void readMessages(XMLStreamReader reader, MessageStore messages, int parent, long now) throws XMLStreamException, Pipeline2Exception {
+		while (nextChildElement(reader)) {
+			if (isElement(reader, "message")) {
+				readMessage(reader, messages, parent, now);
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	private static void readMessage(XMLStreamReader reader, MessageStore messages, int parent, long now) throws XMLStreamException, Pipeline2Exception {
+		int m = messages.add(parent, now);
+		String portion = null;
+		String progress = null;
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			String namespace = reader.getAttributeNamespace(i);
+			if (namespace != null && !namespace.isEmpty()) {
+				continue;
+			}
+			String value = reader.getAttributeValue(i);
+			try {
+				switch (reader.getAttributeLocalName(i)) {
+				case "content": messages.setText(m, value); break;
+				case "level": messages.setLevel(m, Message.Level.valueOf(value)); break;
+				case "sequence": messages.setSequence(m, Integer.parseInt(value)); break;
+				case "line": messages.setLine(m, Integer.parseInt(value)); break;
+				case "column": messages.setColumn(m, Integer.parseInt(value)); break;
+				case "timeStamp": messages.setTimeStamp(m, Long.parseLong(value)); break;
+				case "file": messages.setFile(m, value); break;
+				case "portion": portion = value; break;
+				case "progress": progress = value; break;
+				}
+			} catch (IllegalArgumentException e) {
+				throw new Pipeline2Exception("Unable to parse message attribute "+reader.getAttributeLocalName(i)+"=\""+value+"\"", e);
+			}
+		}
+		if (portion != null) {
+			try {
+				messages.setProgress(m, portion, progress);
+			} catch (IllegalArgumentException | ArithmeticException e) {
+				throw new Pipeline2Exception("Unable to parse message progress portion=\""+portion+"\" progress=\""+progress+"\"", e);
+			}
+		}
+		readMessages(reader, messages, m, now);
+	}
+
+	// a DOM copy of the current element and its descendants; the reader ends up on its end tag
+	private static Element readElement(XMLStreamReader reader, Document document) throws XMLStreamException {
+		Element element = startElement(reader, document);
+		while (next(reader, element)) {
+			element.appendChild(readElement(reader, document));
+		}
+		return element;
+	}
+
+	// a DOM element with the name, namespace declarations and attributes of the current start tag
+	private static Element startElement(XMLStreamReader reader, Document document) {
+		Element element = document.createElementNS(emptyToNull(reader.getNamespaceURI()), qualifiedName(reader.getPrefix(), reader.getLocalName()));
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			String prefix = reader.getNamespacePrefix(i);
+			element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:"+prefix, reader.getNamespaceURI(i));
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			element.setAttributeNS(emptyToNull(reader.getAttributeNamespace(i)), qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+		}
+		return element;
+	}
+
+	// move to the next child element of the current element, copying text into the given element; false at the end tag
+	private static boolean next(XMLStreamReader reader, Element parent) throws XMLStreamException {
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				return true;
+			case XMLStreamConstants.END_ELEMENT:
+				return false;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				parent.appendChild(parent.getOwnerDocument().createTextNode(reader.getText()));
+				break;
+			default:
+				break;
+			}
+		}
+		return false;
+	}
+
+	// move to the next child element of the current element, ignoring text; false at the end tag
+	private static boolean nextChildElement(XMLStreamReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				return true;
+			case XMLStreamConstants.END_ELEMENT:
+				return false;
+			default:
+				break;
+			}
+		}
+		return false;
+	}
+
+	// move to the end tag of the current element
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private static void toRootElement(XMLStreamReader reader, String localName) throws XMLStreamException, Pipeline2Exception {
+		while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT);
+		if (!reader.isStartElement() || localName != null && !isElement(reader, localName)) {
+			throw new Pipeline2Exception("Expected a "+(localName == null ? "" : localName+" ")+"element in the "+NS+" namespace"
+			                             +(reader.isStartElement() ? ", found: "+reader.getName() : ""));
+		}
+	}
+
+	private static boolean isElement(XMLStreamReader reader, String localName) {
+		return localName.equals(reader.getLocalName()) && NS.equals(reader.getNamespaceURI());
+	}
+
+	private static XMLStreamReader open(InputStream in) throws Pipeline2Exception {
+		try {
+			return inputFactory.get().createXMLStreamReader(in);
+		} catch (XMLStreamException e) {
+			throw new Pipeline2Exception("Unable to read XML", e);
+		}
+	}
+
+	private static void close(XMLStreamReader reader) {
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+			// ignore
+		}
+	}
+
+	private static String qualifiedName(String prefix, String localName) {
+		return prefix == null || prefix.isEmpty() ? localName : prefix+":"+localName;
+	}
+
+	private static String emptyToNull(String string) {
+		return string == null || string.isEmpty() ? null : string;
+	}
+
+}
@@ -0,0 +1,165 @@
+package org.daisy.pipeline.client.models;
+
+import java.io.OutputStream;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.daisy.pipeline.client.Pipeline2Exception;
+import org.daisy.pipeline.client.utils.XPath;
+
+/**
+ * Serializes models directly to a stream of XML, for instance a job.xml file in the job storage.
+ *
+ * The output is the same XML as the toXml() methods of the models produce, but it is written
+ * with a StAX writer while walking the models, without first building a DOM. This matters for
+ * jobs with many messages, where toXml() creates and imports a document for every message.
+ *
+ * The XML is encoded as UTF-8 and is not indented. The stream is not closed.
+ */
+public class StaxWriter {
+
+	static final String NS = XPath.dp2ns.get("d");
+
+	private static final ThreadLocal<XMLOutputFactory> outputFactory = ThreadLocal.withInitial(XMLOutputFactory::newInstance);
+
+	private StaxWriter() {}
+
+	/**
+	 * Write a job, in the same format as {@link Job#toXml()}.
+	 *
+	 * @param job the job
+	 * @param out the stream to write to
+	 * @throws Pipeline2Exception thrown when the XML can not be written
+	 */
+	public static void writeJob(Job job, OutputStream out) throws Pipeline2Exception {
+		XMLStreamWriter writer = open(out);
+		try {
+			writer.writeStartDocument("UTF-8", "1.0");
+			job.toXml(writer);
+			writer.writeEndDocument();
+			writer.flush();
+
+		} catch (XMLStreamException e) {
+			throw new Pipeline2Exception("Unable to write job XML", e);
+		} finally {
+			close(writer);
+		}
+	}
+
+	/**
+	 * Write a script, in the same format as {@link Script#toXml()}.
+	 *
+	 * @param script the script
+	 * @param out the stream to write to
+	 * @throws Pipeline2Exception thrown when the XML can not be written
+	 */
+	public static void writeScript(Script script, OutputStream out) throws Pipeline2Exception {
+		XMLStreamWriter writer = open(out);
+		try {
+			writer.writeStartDocument("UTF-8", "1.0");
+			script.toXml(writer);
+			writer.writeEndDocument();
+			writer.flush();
+
+		} catch (XMLStreamException e) {
+			throw new Pipeline2Exception("Unable to write script XML", e);
+		} finally {
+			close(writer);
+		}
+	}
+
+	/**
+	 * Write an input, option or output, in the same format as {@link Argument#toXml()}.
+	 *
+	 * @param argument the argument
+	 * @param out the stream to write to
+	 * @throws Pipeline2Exception thrown when the XML can not be written
+	 */
+	public static void writeArgument(Argument argument, OutputStream out) throws Pipeline2Exception {
+		XMLStreamWriter writer = open(out);
+		try {
+			writer.writeStartDocument("UTF-8", "1.0");
+			argument.toXml(writer);
+			writer.writeEndDocument();
+			writer.flush();
+
+		} catch (XMLStreamException e) {
+			throw new Pipeline2Exception("Unable to write argument XML", e);
+		} finally {
+			close(writer);
+		}
+	}
+
+	/**
+	 * Write a message and its child messages, in the same format as {@link Message#toXml()}.
+	 *
+	 * @param message the message
+	 * @param out the stream to write to
+	 * @throws Pipeline2Exception thrown when the XML can not be written
+	 */
+	public static void writeMessage(Message message, OutputStream out) throws Pipeline2Exception {
+		XMLStreamWriter writer = open(out);
+		try {
+			writer.writeStartDocument("UTF-8", "1.0");
+			startElement(writer, "message", true);
+			message.toXml(writer, true);
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.flush();
+
+		} catch (XMLStreamException e) {
+			throw new Pipeline2Exception("Unable to write message XML", e);
+		} finally {
+			close(writer);
+		}
+	}
+
+	private static XMLStreamWriter open(OutputStream out) throws Pipeline2Exception {
+		try {
+			XMLStreamWriter writer = outputFactory.get().createXMLStreamWriter(out, "UTF-8");
+			writer.setDefaultNamespace(NS);
+			return writer;
+		} catch (XMLStreamException e) {
+			throw new Pipeline2Exception("Unable to create XML writer", e);
+		}
+	}
+
+	private static void close(XMLStreamWriter writer) {
+		try {
+			writer.close();
+		} catch (XMLStreamException e) {
+			// ignore
+		}
+	}
+
+	/* Start an element in the Pipeline 2 Web API namespace. Models that can also be written on their
+	 * own declare the namespace, like the documents returned by their toXml() methods do. */
+	static void startElement(XMLStreamWriter writer, String localName, boolean declareNamespace) throws XMLStreamException {
+		writer.writeStartElement(NS, localName);
+		if (declareNamespace) {
+			writer.writeDefaultNamespace(NS);
+		}
+	}
+
+	/* Write an attribute, unless the value is null */
+	static void attribute(XMLStreamWriter writer, String name, Object value) throws XMLStreamException {
+		if (value != null) {
+			writer.writeAttribute(name, value.toString());
+		}
+	}
+
+	/* Write an element with only text, unless the text is null */
+	static void textElement(XMLStreamWriter writer, String localName, String text, boolean preserveSpace) throws XMLStreamException {
+		if (text != null) {
+			startElement(writer, localName, false);
+			if (preserveSpace) {
+				writer.writeAttribute("xml", XMLConstants.XML_NS_URI, "space", "preserve");
+			}
+			writer.writeCharacters(text);
+			writer.writeEndElement();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package org.daisy.pipeline.client.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Utility methods for reading models from XML by walking the DOM directly.
+ *
+ * These are cheaper equivalents of the most common XPath selections, like "@id",
+ * "d:nicename" or "d:log/@href", for use in the hot parsing paths of the models.
+ * Child elements are looked up in the Pipeline 2 Web API namespace (the "d" prefix of
+ * {@link XPath#dp2ns}).
+ */
+public class DOM {
+
+	/** The Pipeline 2 Web API namespace */
+	public static final String DP2 = XPath.dp2ns.get("d");
+
+	private DOM() {}
+
+	/**
+	 * Get the element itself, or the document element if the node is a document.
+	 *
+	 * @param node an element or a document
+	 * @return the element, or null if there is none
+	 */
+	public static Element element(Node node) {
+		if (node instanceof Document) {
+			return ((Document)node).getDocumentElement();
+		} else if (node instanceof Element) {
+			return (Element)node;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the value of an attribute without a namespace, like XPath "@name" but without evaluating XPath.
+	 *
+	 * @param node the element
+	 * @param name the attribute name
+	 * @return the value, or null if the element does not have the attribute
+	 */
+	public static String attribute(Node node, String name) {
+		if (!(node instanceof Element)) {
+			return null;
+		}
+		Attr attribute = ((Element)node).getAttributeNode(name);
+		return attribute == null ? null : attribute.getValue();
+	}
+
+	/**
+	 * Get the first child element in the Pipeline 2 Web API namespace with the given name, like XPath "d:name".
+	 *
+	 * @param node the parent node
+	 * @param localName the local name of the child
+	 * @return the child, or null if there is none
+	 */
+	public static Element child(Node node, String localName) {
+		if (node == null) {
+			return null;
+		}
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (isElement(child, localName)) {
+				return (Element)child;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get all child elements in the Pipeline 2 Web API namespace with one of the given names,
+	 * in document order, like XPath "d:name1 | d:name2".
+	 *
+	 * @param node the parent node
+	 * @param localNames the local names of the children
+	 * @return the children
+	 */
+	public static List<Element> children(Node node, String... localNames) {
+		List<Element> children = new ArrayList<Element>();
+		if (node == null) {
+			return children;
+		}
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			for (String localName : localNames) {
+				if (isElement(child, localName)) {
+					children.add((Element)child);
+					break;
+				}
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Get the text of the first child element with the given name, like XPath "d:name".
+	 *
+	 * @param node the parent node
+	 * @param localName the local name of the child
+	 * @return the text, or null if there is no such child
+	 */
+	public static String childText(Node node, String localName) {
+		Element child = child(node, localName);
+		return child == null ? null : child.getTextContent();
+	}
+
+	/**
+	 * Get an attribute of the first child element with the given name, like XPath "d:name/@attribute".
+	 *
+	 * @param node the parent node
+	 * @param localName the local name of the child
+	 * @param attribute the attribute name
+	 * @return the value, or null if there is no such child or attribute
+	 */
+	public static String childAttribute(Node node, String localName, String attribute) {
+		return attribute(child(node, localName), attribute);
+	}
+
+	/**
+	 * Get the first text child of a node, like XPath "text()".
+	 *
+	 * @param node the parent node
+	 * @return the text, or null if the node has no text children
+	 */
+	public static String text(Node node) {
+		if (node == null) {
+			return null;
+		}
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+				return child.getNodeValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Whether the node is an element in the Pipeline 2 Web API namespace with the given name.
+	 *
+	 * @param node the node
+	 * @param localName the local name
+	 * @return true if the node is such an element
+	 */
+	public static boolean isElement(Node node, String localName) {
+		return node.getNodeType() == Node.ELEMENT_NODE
+		       && localName.equals(node.getLocalName())
+		       && DP2.equals(node.getNamespaceURI());
+	}
+}
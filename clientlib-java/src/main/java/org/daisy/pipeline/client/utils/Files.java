@@ -9,6 +9,7 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
@@ -322,9 +323,24 @@ public class Files {
 	 */
 	public static void zip(File dir, File zip) throws IOException {
 		zip.getParentFile().mkdirs();
-		ZipOutputStream zipOs = new ZipOutputStream(new FileOutputStream(zip));
+		try (OutputStream os = new FileOutputStream(zip)) {
+			zip(dir, os);
+		}
+	}
+	
+	/**
+	 * Zip up the directory `dir` and write the ZIP archive to the stream `os`. If `dir` is a file, then only that single file is zipped.
+	 * 
+	 * The archive is generated on the fly; no temporary file is created. The stream is not closed.
+	 * 
+	 * @param dir The directory
+	 * @param os The stream to write the ZIP archive to
+	 * @throws IOException thrown when an IOException occurs 
+	 */
+	public static void zip(File dir, OutputStream os) throws IOException {
+		ZipOutputStream zipOs = new ZipOutputStream(os);
 		
-		byte buff[]= new byte[4 * 1024 * 1024];
+		byte buff[]= new byte[64 * 1024];
         
 		Map<String, File> files = listFilesRecursively(dir, dir.toURI(), true);
         for (String entryName : files.keySet()){
@@ -332,16 +348,15 @@ public class Files {
             if (entry.isDirectory())
             	continue;
             zipOs.putNextEntry(entry);
-            InputStream is=new FileInputStream(files.get(entryName));
-            int read=0;
-            while((read=is.read(buff))>0){
-                zipOs.write(buff,0,read);
+            try (InputStream is = new FileInputStream(files.get(entryName))) {
+                int read=0;
+                while((read=is.read(buff))>0){
+                    zipOs.write(buff,0,read);
+                }
             }
-            is.close();
         }
         
-        zipOs.close();
-        
+        zipOs.finish();
 	}
 	
 	/**
@@ -1,9 +1,12 @@
 package org.daisy.pipeline.client.utils;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -27,6 +30,65 @@ import org.xml.sax.InputSource;
  */
 public class XML {
 	
+	/** Output properties for indented XML. This is the default. */
+	public static final Map<String,String> INDENT;
+	
+	/** Output properties for indented XML without an XML declaration, for instance for XML fragments. */
+	public static final Map<String,String> INDENT_NO_DECLARATION;
+	
+	static {
+		Map<String,String> props = new HashMap<String,String>();
+		props.put(OutputKeys.INDENT, "yes");
+		INDENT = Collections.unmodifiableMap(props);
+		props = new HashMap<String,String>(props);
+		props.put(OutputKeys.OMIT_XML_DECLARATION, "yes");
+		INDENT_NO_DECLARATION = Collections.unmodifiableMap(props);
+	}
+	
+	// Factory lookups are expensive, and neither builders nor transformers may be used by
+	// several threads at once, so every thread keeps one of each and resets it before use.
+	private static final ThreadLocal<DocumentBuilder> documentBuilder = ThreadLocal.withInitial(() -> {
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			return factory.newDocumentBuilder();
+		} catch (ParserConfigurationException e) {
+			throw new RuntimeException(e);
+		}
+	});
+	
+	private static final ThreadLocal<Transformer> transformer = ThreadLocal.withInitial(() -> {
+		try {
+			return TransformerFactory.newInstance().newTransformer();
+		} catch (TransformerException e) {
+			throw new RuntimeException(e);
+		}
+	});
+	
+	private static DocumentBuilder documentBuilder() {
+		DocumentBuilder builder = documentBuilder.get();
+		builder.reset();
+		return builder;
+	}
+	
+	private static Transformer transformer(Map<String,String> outputProps) {
+		Transformer t = transformer.get();
+		t.reset();
+		for (Map.Entry<String,String> prop : outputProps.entrySet()) {
+			t.setOutputProperty(prop.getKey(), prop.getValue());
+		}
+		return t;
+	}
+	
+	/**
+	 * Create an empty, namespace aware DOM document.
+	 * 
+	 * @return The new document
+	 */
+	public static Document newDocument() {
+		return documentBuilder().newDocument();
+	}
+	
 	/**
 	 * Parse an XML string as DOM.
 	 * 
@@ -72,19 +134,9 @@ public class XML {
      * @return The resulting XML document
      */
     public static Document getXml(InputStream in, String encoding) {
-       DocumentBuilderFactory factory = null;
-       DocumentBuilder builder = null;
+       DocumentBuilder builder = documentBuilder();
        Document ret = null;
 
-       try {
-           factory = DocumentBuilderFactory.newInstance();
-           factory.setNamespaceAware(true);
-           builder = factory.newDocumentBuilder();
-//         builder.setEntityResolver(new NoOpEntityResolver());
-       } catch (ParserConfigurationException e) {
-           throw new RuntimeException(e);
-       }
-
        try {
            InputSource is = new InputSource(in);
            is.setEncoding(encoding);
@@ -103,19 +155,19 @@ public class XML {
      * @return The serialized XML node
      */
     public static String toString(Node xml) {
-        return toString(xml, defaultOutputProps);
-    }
-    
-    private final static Map<String,String> defaultOutputProps = new HashMap<String,String>(); static {
-        defaultOutputProps.put(OutputKeys.INDENT, "yes");
+        return toString(xml, INDENT);
     }
     
+    /**
+     * Serialize an XML node as a string.
+     * 
+     * @param xml The XML to serialize
+     * @param outputProps The output properties, for instance {@link #INDENT} or {@link #INDENT_NO_DECLARATION}
+     * @return The serialized XML node, or null if it could not be serialized
+     */
     public static String toString(Node xml, Map<String,String> outputProps) {
     	try {
-			Transformer transformer = TransformerFactory.newInstance().newTransformer();
-			for (String k : outputProps.keySet()) {
-				transformer.setOutputProperty(k, outputProps.get(k));
-			}
+			Transformer transformer = transformer(outputProps);
 			StreamResult result = new StreamResult(new StringWriter());
 			DOMSource source = new DOMSource(xml);
 			transformer.transform(source, result);
@@ -127,6 +179,26 @@ public class XML {
 		}
     }
     
+    /**
+     * Serialize an XML node to a stream, encoded as UTF-8.
+     * 
+     * The stream is not closed.
+     * 
+     * @param xml The XML to serialize
+     * @param os The stream to write to
+     * @throws IOException thrown if the XML could not be serialized or written
+     */
+    public static void write(Node xml, OutputStream os) throws IOException {
+    	try {
+			Transformer transformer = transformer(INDENT);
+			transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+			transformer.transform(new DOMSource(xml), new StreamResult(os));
+			
+		} catch (TransformerException e) {
+			throw new IOException("Could not serialize XML", e);
+		}
+    }
+    
     /**
      * Cross-document appendChild. Appends child into parent.
      * 
@@ -9,7 +9,6 @@ import java.util.Map;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.daisy.pipeline.client.Pipeline2Exception;
 import org.w3c.dom.Node;
@@ -29,39 +28,22 @@ public class XPath {
     	dp2ns = Collections.unmodifiableMap(nsMap);
 	}
 	
-	private static Map<String,XPathExpression> expressions = new HashMap<String,XPathExpression>();
+	private static final XPathCache cache = new XPathCache(1000);
 	public Map<String,String> namespaces = new HashMap<String,String>();
-	private static NamespaceContextMap nsContext = new NamespaceContextMap();
 	
 	private XPath() {}
 	
-	private static XPathExpression xpath(String expression, Map<String, String> ns) throws XPathExpressionException {
-		updateNs(ns);
-		if (expressions.containsKey(expression)) {
-			return expressions.get(expression);
-		} else {
-			javax.xml.xpath.XPath xpath = XPathFactory.newInstance().newXPath();
-			xpath.setNamespaceContext(nsContext);
-			XPathExpression compiledExpression = xpath.compile(expression);
-			expressions.put(expression, compiledExpression);
-			return compiledExpression;
-		}
+	/**
+	 * Get the cache of compiled expressions that is used by the select methods, for instance to look at its statistics.
+	 * 
+	 * @return the cache
+	 */
+	public static XPathCache getCache() {
+		return cache;
 	}
 	
-	private static void updateNs(Map<String, String> ns) {
-		boolean equals = ns.size() == nsContext.getMap().size()-2;
-		if (equals) {
-			for (String prefix : ns.keySet()) {
-				if (!nsContext.getMap().containsKey(prefix) || !nsContext.getMap().get(prefix).equals(ns.get(prefix))) {
-					equals = false;
-					break;
-				}
-			}
-		}
-		if (!equals) {
-			nsContext = new NamespaceContextMap(ns);
-			expressions.clear();
-		}
+	private static XPathExpression xpath(String expression, Map<String, String> ns) throws XPathExpressionException {
+		return cache.get(expression, ns);
 	}
 	
 	/**
@@ -104,11 +86,12 @@ public class XPath {
 			return null;
 		
 		try {
-			if (((NodeList)xpath(expr,ns).evaluate(doc, XPathConstants.NODESET)).getLength() == 0) {
+			XPathExpression expression = xpath(expr,ns);
+			if (((NodeList)expression.evaluate(doc, XPathConstants.NODESET)).getLength() == 0) {
 				return null;
 				
 			} else {
-				String nodeText = (String) xpath(expr,ns).evaluate(doc, XPathConstants.STRING);
+				String nodeText = (String) expression.evaluate(doc, XPathConstants.STRING);
 				return nodeText;
 			}
 			
@@ -0,0 +1,161 @@
+package org.daisy.pipeline.client.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * A cache of compiled XPath expressions, keyed by namespace context and expression.
+ *
+ * The cache can be used from several threads at once. Since an XPathExpression must not
+ * be evaluated by more than one thread at a time, every thread gets its own compiled
+ * instance of each expression. When the cache is full, the least recently used
+ * expression is evicted.
+ */
+public class XPathCache {
+
+	private static final ThreadLocal<XPathFactory> factory = ThreadLocal.withInitial(XPathFactory::newInstance);
+
+	private final int capacity;
+	private final Map<Key,Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/* An expression together with the namespaces it is compiled with */
+	private static class Key {
+		final Map<String,String> namespaces;
+		final String expression;
+		final int hash;
+		Key(Map<String,String> namespaces, String expression) {
+			this.namespaces = namespaces;
+			this.expression = expression;
+			this.hash = 31 * namespaces.hashCode() + expression.hashCode();
+		}
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Key that = (Key)o;
+			return hash == that.hash
+				&& expression.equals(that.expression)
+				&& (namespaces == that.namespaces || namespaces.equals(that.namespaces));
+		}
+	}
+
+	/* The compiled instances of an expression, one per thread */
+	private class Entry extends ThreadLocal<XPathExpression> {
+		final Key key;
+		final NamespaceContextMap namespaceContext;
+		Entry(Key key) {
+			this.key = key;
+			this.namespaceContext = new NamespaceContextMap(key.namespaces);
+		}
+		XPathExpression compile() throws XPathExpressionException {
+			XPathExpression compiled = get();
+			if (compiled == null) {
+				misses.incrementAndGet();
+				javax.xml.xpath.XPath xpath = factory.get().newXPath();
+				xpath.setNamespaceContext(namespaceContext);
+				compiled = xpath.compile(key.expression);
+				set(compiled);
+			} else {
+				hits.incrementAndGet();
+			}
+			return compiled;
+		}
+	}
+
+	/**
+	 * @param capacity the maximum number of expressions to keep
+	 */
+	public XPathCache(int capacity) {
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Key,Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,Entry> eldest) {
+				if (size() > XPathCache.this.capacity) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get the compiled expression for the current thread, compiling it if needed.
+	 *
+	 * @param expression the XPath expression
+	 * @param namespaces the namespaces used in the expression ({@code Map<String prefix, String namespace> })
+	 * @return the compiled expression, to be used by the current thread only
+	 * @throws XPathExpressionException thrown if the expression can not be compiled
+	 */
+	public XPathExpression get(String expression, Map<String,String> namespaces) throws XPathExpressionException {
+		Key key = new Key(namespaces, expression);
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry == null) {
+				// copied, so that the key can not change if the caller modifies the map later on
+				entry = new Entry(new Key(Collections.unmodifiableMap(new HashMap<String,String>(namespaces)), expression));
+				entries.put(entry.key, entry);
+			}
+		}
+		return entry.compile();
+	}
+
+	/** Remove all expressions from the cache. The statistics are kept. */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/** @return the number of expressions in the cache */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/** @return the maximum number of expressions in the cache */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** @return the number of lookups where the current thread already had a compiled expression */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/** @return the number of times an expression had to be compiled */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/** @return the number of expressions that were evicted because the cache was full */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "XPathCache[size=" + size() + ", capacity=" + capacity + ", hits=" + getHitCount()
+		       + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+}
@@ -0,0 +1,124 @@
+package org.daisy.pipeline.client.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Measures JobMessages on a long job with 200k messages: building the sequential view from
+ * the message tree, reading it, looking up, replacing and removing messages, and joining
+ * updates with new messages.
+ *
+ * Not run as part of the build. Run with: mvn test -Dtest=JobMessagesBenchmark
+ */
+public class JobMessagesBenchmark {
+
+	private static final int TOP_LEVEL = 2000;
+	private static final int CHILDREN = 99; // 2000 * (1 + 99) = 200k messages
+	private static final int LOOKUPS = 20000;
+	private static final int UPDATES = 100;
+	private static final int UPDATE_SIZE = 100;
+
+	@Test
+	public void benchmark() {
+		// warm up
+		for (int i = 0; i < 3; i++) {
+			run(false);
+		}
+		run(true);
+	}
+
+	private static void run(boolean print) {
+		long now = System.currentTimeMillis();
+		List<Message> tree = createTree(0, TOP_LEVEL, CHILDREN, now);
+		Random random = new Random(1);
+
+		long start = System.nanoTime();
+		JobMessages messages = new JobMessages(tree, -1);
+		long build = System.nanoTime() - start;
+		assertEquals(TOP_LEVEL * (1 + CHILDREN), messages.size());
+
+		start = System.nanoTime();
+		long sum = 0;
+		for (Message m : messages) {
+			sum += m.sequence;
+		}
+		for (int i = 0; i < messages.size(); i++) {
+			sum += messages.get(i).sequence;
+		}
+		long read = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < LOOKUPS; i++) {
+			int index = random.nextInt(messages.size());
+			assertEquals(index, messages.indexOf(messages.get(index)));
+		}
+		long lookup = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < LOOKUPS; i++) {
+			int index = random.nextInt(messages.size());
+			Message m = messages.get(index);
+			assertSame(m, messages.set(index, m));
+		}
+		long replace = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < LOOKUPS / 10; i++) {
+			messages.remove(messages.get(random.nextInt(messages.size())));
+		}
+		long remove = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int sequence = TOP_LEVEL * (1 + CHILDREN);
+		for (int i = 0; i < UPDATES; i++) {
+			List<Message> update = createTree(sequence, 1, UPDATE_SIZE - 1, now);
+			messages.join(new JobMessages(update, sequence - 1));
+			sequence += UPDATE_SIZE;
+		}
+		long join = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		Collections.sort(messages);
+		long sort = System.nanoTime() - start;
+
+		if (print) {
+			System.out.println(String.format(
+				"JobMessages with %d messages: build %d ms, read all %d ms, %d x indexOf %d ms, %d x set %d ms, "
+				+ "%d x remove %d ms, %d x join %d ms, sort %d ms (%d)",
+				TOP_LEVEL * (1 + CHILDREN), build / 1000000, read / 1000000, LOOKUPS, lookup / 1000000, LOOKUPS,
+				replace / 1000000, LOOKUPS / 10, remove / 1000000, UPDATES, join / 1000000, sort / 1000000, sum));
+		}
+	}
+
+	/* Messages with progress, each with a number of child messages, numbered from the given sequence number */
+	private static List<Message> createTree(int sequence, int count, int children, long now) {
+		List<Message> tree = new ArrayList<Message>();
+		for (int i = 0; i < count; i++) {
+			Message m = createMessage(sequence++, now);
+			m.progressInfo = new Message.ProgressInfo();
+			m.progressInfo.portion = BigDecimal.ONE.divide(new BigDecimal(count), BigDecimal.ROUND_HALF_UP);
+			m.progressInfo.progress = BigDecimal.ONE;
+			for (int j = 0; j < children; j++) {
+				m.addChild(createMessage(sequence++, now));
+			}
+			tree.add(m);
+		}
+		return tree;
+	}
+
+	private static Message createMessage(int sequence, long now) {
+		Message m = new Message(now);
+		m.sequence = sequence;
+		m.level = Message.Level.INFO;
+		m.text = "Message " + sequence;
+		return m;
+	}
+}
@@ -0,0 +1,88 @@
+package org.daisy.pipeline.client.models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Measures the memory used by the messages of a job with 300k warnings, like the
+ * "display property ignored" warnings in src/test/resources/responses/jobs/job7/62.xml,
+ * when they are kept in a MessageStore and when Message objects are created for all of them,
+ * and the time to collapse the repeated warnings into one entry and to query pages of warnings.
+ *
+ * Not run as part of the build. Run with: mvn test -Dtest=MessageStoreBenchmark
+ */
+public class MessageStoreBenchmark {
+
+	private static final int WARNINGS = 300000;
+	private static final int PAGES = 1000;
+	private static final int PAGE_SIZE = 50;
+
+	@Test
+	public void benchmark() throws Exception {
+		byte[] xml = createJobXml().getBytes(StandardCharsets.UTF_8);
+
+		long before = usedMemory();
+		long start = System.nanoTime();
+		Job job = StaxParser.parseJob(new ByteArrayInputStream(xml));
+		List<Message> messages = job.getMessages();
+		long parse = System.nanoTime() - start;
+		long store = usedMemory() - before;
+		assertEquals(WARNINGS + 3, messages.size());
+
+		start = System.nanoTime();
+		List<CollapsedMessage> collapsed = job.getCollapsedMessages();
+		long collapse = System.nanoTime() - start;
+		assertEquals(4, collapsed.size());
+
+		start = System.nanoTime();
+		Random random = new Random(1);
+		for (int i = 0; i < PAGES; i++) {
+			int from = 1400 + random.nextInt(WARNINGS);
+			assertEquals(PAGE_SIZE, job.queryMessages(from, PAGE_SIZE, Message.Level.WARNING, 3).size());
+		}
+		long query = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int length = 0;
+		for (Message m : messages) {
+			length += m.text.length();
+		}
+		long access = System.nanoTime() - start;
+		long objects = usedMemory() - before;
+
+		System.out.println(String.format(
+			"%d messages: parsed in %d ms, %d MB in store, collapsed in %d ms, %d pages of %d queried in %d ms; "
+			+ "all Message objects created in %d ms, %d MB (%d)",
+			messages.size(), parse / 1000000, store / 1000000, collapse / 1000000, PAGES, PAGE_SIZE, query / 1000000,
+			access / 1000000, objects / 1000000, length));
+	}
+
+	private static String createJobXml() {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<job xmlns=\"http://www.daisy.org/ns/pipeline/data\" id=\"job\" status=\"RUNNING\">");
+		xml.append("<messages msgSeq=\"0\" progress=\"0.459829\">");
+		xml.append("<message content=\"Transforming from DTBook to PEF\" level=\"INFO\" portion=\"0.92\" progress=\"0.478075\" sequence=\"124\">");
+		xml.append("<message content=\"Transforming from XML with inline CSS to PEF\" level=\"INFO\" portion=\"0.84\" progress=\"0.414375\" sequence=\"269\">");
+		xml.append("<message content=\"Transforming from CSS to OBFL\" level=\"INFO\" portion=\"0.7\" progress=\"0.20625\" sequence=\"1399\">");
+		for (int i = 0; i < WARNINGS; i++) {
+			xml.append("<message content=\"&quot;display&quot; property on &quot;tr&quot; element ignored.\" level=\"WARNING\" sequence=\"")
+			   .append(1400 + i).append("\" timeStamp=\"1550487959130\"/>");
+		}
+		xml.append("</message></message></message></messages></job>");
+		return xml.toString();
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,93 @@
+package org.daisy.pipeline.client.models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Compares parsing a list of 20k jobs, like the response to /jobs, and then accessing all
+ * their fields, sequentially and with the jobs parsed in parallel by
+ * {@link StaxParser#parseJobs(java.io.InputStream, int)}.
+ *
+ * Not run as part of the build. Run with: mvn test -Dtest=ParseJobsBenchmark
+ */
+public class ParseJobsBenchmark {
+
+	private static final int JOBS = 20000;
+	private static final int RUNS = 5;
+
+	@Test
+	public void benchmark() throws Exception {
+		byte[] xml = createJobsXml().getBytes(StandardCharsets.UTF_8);
+		long sequential = Long.MAX_VALUE;
+		long parallel = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; run++) {
+			long start = System.nanoTime();
+			List<Job> jobs = StaxParser.parseJobs(new ByteArrayInputStream(xml));
+			for (Job job : jobs) {
+				job.materialize();
+			}
+			sequential = Math.min(sequential, System.nanoTime() - start);
+			assertJobs(jobs);
+
+			start = System.nanoTime();
+			jobs = StaxParser.parseJobs(new ByteArrayInputStream(xml), 1);
+			parallel = Math.min(parallel, System.nanoTime() - start);
+			assertJobs(jobs);
+		}
+		System.out.println(String.format(
+			"%d jobs: sequential in %d ms, parallel in %d ms (%d processors)",
+			JOBS, sequential / 1000000, parallel / 1000000, Runtime.getRuntime().availableProcessors()));
+	}
+
+	private static void assertJobs(List<Job> jobs) {
+		assertEquals(JOBS, jobs.size());
+		int done = 0;
+		for (Job job : jobs) {
+			if (job.getStatus() == Job.Status.SUCCESS) {
+				done++;
+				assertEquals(3, job.getResults().size());
+			}
+		}
+		assertEquals(JOBS / 2, done);
+	}
+
+	private static String createJobsXml() {
+		StringBuilder xml = new StringBuilder();
+		String ws = "http://localhost:8181/ws";
+		xml.append("<jobs xmlns=\"http://www.daisy.org/ns/pipeline/data\" href=\"").append(ws).append("/jobs\">");
+		for (int i = 0; i < JOBS; i++) {
+			String id = "job-" + i;
+			String job = ws + "/jobs/" + id;
+			xml.append("<job id=\"").append(id).append("\" href=\"").append(job).append("\" status=\"")
+			   .append(i % 2 == 0 ? "SUCCESS" : "RUNNING").append("\" priority=\"medium\">");
+			xml.append("<script href=\"").append(ws).append("/scripts/dtbook-to-epub3\" id=\"dtbook-to-epub3\">")
+			   .append("<nicename>DTBook to EPUB 3</nicename>")
+			   .append("<description>Converts multiple dtbooks to epub3 format</description>")
+			   .append("</script>");
+			xml.append("<nicename>Job ").append(i).append("</nicename>");
+			xml.append("<batchId>batch-").append(i / 100).append("</batchId>");
+			xml.append("<log href=\"").append(job).append("/log\"/>");
+			if (i % 2 == 0) {
+				xml.append("<results href=\"").append(job).append("/result\" mime-type=\"application/zip\">");
+				for (String name : new String[]{"epub", "html", "validation-report"}) {
+					xml.append("<result from=\"option\" href=\"").append(job).append("/result/option/").append(name)
+					   .append("\" mime-type=\"application/zip\" name=\"").append(name).append("\" nicename=\"").append(name).append("\">");
+					for (int f = 0; f < 3; f++) {
+						xml.append("<result href=\"").append(job).append("/result/option/").append(name).append("/file-").append(f)
+						   .append(".xhtml\" mime-type=\"application/xhtml+xml\" size=\"").append(1000 + f).append("\"/>");
+					}
+					xml.append("</result>");
+				}
+				xml.append("</results>");
+			}
+			xml.append("</job>");
+		}
+		xml.append("</jobs>");
+		return xml.toString();
+	}
+}
@@ -0,0 +1,77 @@
+package org.daisy.pipeline.client.models;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.daisy.pipeline.client.Pipeline2Exception;
+import org.daisy.pipeline.client.utils.XML;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Measures progress estimation for 1000 running jobs, each replaying the recorded polling
+ * sequence in src/test/resources/responses/jobs/job7: after every poll the updates are
+ * joined and the progress of all jobs is estimated a number of times, like a UI that
+ * refreshes more often than it polls.
+ *
+ * Not run as part of the build. Run with: mvn test -Dtest=ProgressBenchmark
+ */
+public class ProgressBenchmark {
+
+	private static final int JOBS = 1000;
+	private static final int STEPS = 78;
+	private static final int REFRESHES = 10; // per poll
+
+	@Test
+	public void benchmark() throws Exception {
+		List<Document> steps = new ArrayList<Document>();
+		for (int i = 1; i <= STEPS; i++) {
+			try (InputStream xml = new FileInputStream("src/test/resources/responses/jobs/job7/" + i + ".xml")) {
+				steps.add(XML.getXml(xml));
+			}
+		}
+
+		// warm up
+		for (int i = 0; i < 3; i++) {
+			run(steps, false);
+		}
+		run(steps, true);
+	}
+
+	private static void run(List<Document> steps, boolean print) throws Pipeline2Exception {
+		long now = System.currentTimeMillis();
+		Job[] jobs = new Job[JOBS];
+		long join = 0;
+		long estimate = 0;
+		double sum = 0;
+		for (Document step : steps) {
+			long start = System.nanoTime();
+			for (int j = 0; j < JOBS; j++) {
+				Job update = new Job(step);
+				update.getMessages(-1, now);
+				if (jobs[j] == null) {
+					jobs[j] = update;
+				} else {
+					jobs[j].joinMessages(update);
+				}
+			}
+			join += System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int r = 0; r < REFRESHES; r++) {
+				for (Job job : jobs) {
+					sum += job.getProgressEstimate(now);
+				}
+				now += 100;
+			}
+			estimate += System.nanoTime() - start;
+		}
+		if (print) {
+			System.out.println(String.format(
+				"%d jobs, %d polls: parse and join %d ms, %d progress estimates %d ms (%.2f ms per refresh of all jobs) (%.0f)",
+				JOBS, steps.size(), join / 1000000, JOBS * steps.size() * REFRESHES, estimate / 1000000,
+				estimate / 1000000.0 / (steps.size() * REFRESHES), sum));
+		}
+	}
+}
@@ -2,15 +2,23 @@ package org.daisy.pipeline.client.models;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.daisy.pipeline.client.Pipeline2Exception;
 import org.daisy.pipeline.client.utils.XML;
@@ -134,6 +142,31 @@ public class ProgressTest {
 		}
 	}
 	
+	@Test
+	public void testMessagesList() throws Pipeline2Exception {
+		List<Message> messages = new Job(loadResourceXml("responses/jobs/job6.xml")).getMessages();
+		Message first = messages.get(0);
+		Message last = messages.get(27);
+		assertEquals(27, messages.indexOf(last));
+		assertTrue(messages.contains(first));
+
+		// out of order
+		assertSame(first, messages.set(0, last));
+		assertSame(last, messages.set(27, first));
+		assertEquals(27, messages.indexOf(first));
+		assertEquals(0, messages.indexOf(last));
+		messages.sort(null);
+		assertSame(first, messages.get(0));
+		assertSame(last, messages.get(27));
+
+		assertTrue(messages.remove(first));
+		assertEquals(-1, messages.indexOf(first));
+		assertTrue(!messages.contains(first));
+		assertTrue(!messages.remove(first));
+		assertEquals(27, messages.size());
+		assertEquals(26, messages.indexOf(last));
+	}
+
 	// Note that the progress is not monotonically increasing, but this is not a bug. It is the
 	// progress information in this specific job XML that is unreliable.
 	@Test
@@ -161,4 +194,233 @@ public class ProgressTest {
 			now += 500;
 		}
 	}
+
+	@Test
+	public void testJoinUpdate() throws Pipeline2Exception {
+		Job job = new Job(loadResourceXml("responses/jobs/job7/1.xml"));
+		Set<Integer> sequences = new TreeSet<Integer>();
+		Map<Integer,Message> first = new HashMap<Integer,Message>();
+		Job update = null;
+		for (int i = 2; i <= 78; i++) {
+			update = new Job(loadResourceXml("responses/jobs/job7/"+i+".xml"));
+			for (Message m : update.getMessages()) {
+				for (; m != null; m = m.parent) {
+					sequences.add(m.sequence);
+				}
+			}
+			job.joinUpdate(update);
+			for (Message m : job.getMessages()) {
+				first.putIfAbsent(m.sequence, m);
+			}
+
+			// the progress that is maintained incrementally is the same as when computed from scratch
+			JobMessages live = (JobMessages)job.getMessages();
+			List<Message> tree = new ArrayList<Message>();
+			for (Message m : live.asTree()) {
+				tree.add(m);
+			}
+			JobMessages full = new JobMessages(tree, -1);
+			assertEquals(full.getProgressFrom(), live.getProgressFrom(), 1e-9);
+			assertEquals(full.getProgressInterval(), live.getProgressInterval(), 1e-9);
+			assertEquals(full.getProgressFromTime(), live.getProgressFromTime());
+		}
+		assertEquals(Job.Status.SUCCESS, job.getStatus());
+		assertEquals(100.0, job.getProgressFrom(), 0.0);
+
+		// all messages that were received once, in order, and updated in place
+		List<Integer> actual = new ArrayList<Integer>();
+		for (Message m : job.getMessages()) {
+			actual.add(m.sequence);
+			assertSame(first.get(m.sequence), m);
+		}
+		assertEquals(new ArrayList<Integer>(sequences), actual);
+
+		assertQueryMessages(job);
+
+		// with the progress of the last update
+		for (Message m : update.getMessages()) {
+			for (; m != null; m = m.parent) {
+				Message live = first.get(m.sequence);
+				assertEquals(m.getProgressInfo() == null, live.getProgressInfo() == null);
+				if (m.getProgressInfo() != null) {
+					assertTrue(m.getProgressInfo().equals(live.getProgressInfo()));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testJoinUpdateFromStore() throws Exception {
+		// messages parsed with StaxParser are kept in a MessageStore until they are accessed
+		Job dom = null;
+		Job stax = null;
+		for (int i = 1; i <= 78; i++) {
+			File file = new File(resources, "responses/jobs/job7/"+i+".xml");
+			Job domUpdate = new Job(XML.getXml(new FileInputStream(file)));
+			Job staxUpdate = StaxParser.parseJob(new FileInputStream(file));
+			if (dom == null) {
+				dom = domUpdate;
+				stax = staxUpdate;
+			} else {
+				dom.joinUpdate(domUpdate);
+				stax.joinUpdate(staxUpdate);
+			}
+			JobMessages expected = (JobMessages)dom.getMessages();
+			JobMessages actual = (JobMessages)stax.getMessages();
+			assertEquals(expected.getProgressFrom(), actual.getProgressFrom(), 1e-9);
+			assertEquals(expected.getProgressInterval(), actual.getProgressInterval(), 1e-9);
+			assertEquals(expected.size(), actual.size());
+		}
+		assertQueryMessages(dom);
+		assertQueryMessages(stax);
+		List<Message> expected = dom.getMessages();
+		List<Message> actual = stax.getMessages();
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).sequence, actual.get(i).sequence);
+			assertEquals(expected.get(i).text, actual.get(i).text);
+			assertEquals(expected.get(i).getDepth(), actual.get(i).getDepth());
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		Job job = null;
+		JobSnapshot previous = null;
+		List<Integer> previousSequences = null;
+		double previousProgress = 0.0;
+		for (int i = 1; i <= 78; i++) {
+			Job update = StaxParser.parseJob(new FileInputStream(new File(resources, "responses/jobs/job7/"+i+".xml")));
+			if (job == null) {
+				job = update;
+			} else {
+				job.joinUpdate(update);
+			}
+			JobSnapshot snapshot = job.snapshot();
+			assertEquals(job.getId(), snapshot.getId());
+			assertEquals(job.getStatus(), snapshot.getStatus());
+			assertEquals(job.getProgressFrom(), snapshot.getProgressFrom(), 0.0);
+			assertEquals(job.getProgressFromTime(), snapshot.getProgressFromTime());
+			long now = new Date().getTime();
+			assertEquals(job.getProgressEstimate(now, 1000), snapshot.getProgressEstimate(now, 1000), 1e-9);
+
+			// the messages are equal copies
+			List<Message> expected = job.getMessages();
+			List<Message> actual = snapshot.getMessages();
+			assertEquals(expected.size(), actual.size());
+			for (int k = 0; k < expected.size(); k++) {
+				Message m = expected.get(k);
+				Message c = actual.get(k);
+				assertTrue(m != c);
+				assertEquals(m.sequence, c.sequence);
+				assertEquals(m.text, c.text);
+				assertEquals(m.getDepth(), c.getDepth());
+				assertEquals(m.getInferredLevel(), c.getInferredLevel());
+				assertEquals(m.getProgressInfo() == null, c.getProgressInfo() == null);
+			}
+			for (Message.Level minLevel : new Message.Level[]{null, Message.Level.WARNING}) {
+				assertEquals(job.getMessageCount(minLevel), snapshot.getMessageCount(minLevel));
+			}
+			assertEquals(job.getCollapsedMessages(-1).size(), snapshot.getCollapsedMessages(-1).size());
+			try {
+				actual.clear();
+				fail();
+			} catch (UnsupportedOperationException e) {
+			}
+
+			// the previous snapshot did not change
+			if (previous != null) {
+				assertEquals(previousProgress, previous.getProgressFrom(), 0.0);
+				List<Integer> sequences = new ArrayList<Integer>();
+				for (Message m : previous.getMessages()) {
+					sequences.add(m.sequence);
+				}
+				assertEquals(previousSequences, sequences);
+			}
+			previous = snapshot;
+			previousProgress = snapshot.getProgressFrom();
+			previousSequences = new ArrayList<Integer>();
+			for (Message m : actual) {
+				previousSequences.add(m.sequence);
+			}
+		}
+		assertEquals(Job.Status.SUCCESS, previous.getStatus());
+		assertEquals(100.0, previous.getProgressEstimate(), 0.0);
+	}
+
+	@Test
+	public void testSnapshotResultsAndCallbacks() throws Exception {
+		Job job = StaxParser.parseJob(new FileInputStream(new File(resources, "responses/jobs/job1.xml")));
+		List<Callback> callbacks = new ArrayList<Callback>();
+		callbacks.add(new Callback("http://localhost/status", Callback.Type.status, "1"));
+		job.setCallback(callbacks);
+		JobSnapshot snapshot = job.snapshot();
+
+		// the result lists are copies that can not be modified
+		assertNotNull(snapshot.getResults());
+		assertEquals(job.getResults().size(), snapshot.getResults().size());
+		for (Result result : snapshot.getResults().keySet()) {
+			List<Result> files = snapshot.getResults().get(result);
+			if (files == null) {
+				continue;
+			}
+			assertEquals(job.getResults().get(result), files);
+			try {
+				files.clear();
+				fail();
+			} catch (UnsupportedOperationException e) {
+			}
+			int size = files.size();
+			job.getResults().get(result).clear();
+			assertEquals(size, files.size());
+		}
+
+		// the callbacks are copies too
+		callbacks.get(0).href = "http://localhost/changed";
+		callbacks.clear();
+		assertEquals(1, snapshot.getCallback().size());
+		assertEquals("http://localhost/status", snapshot.getCallback().get(0).href);
+		assertEquals(Callback.Type.status, snapshot.getCallback().get(0).type);
+	}
+
+	/* Compare paging through the messages with filtering all messages */
+	private static void assertQueryMessages(Job job) {
+		List<Message> all = job.getMessages();
+		for (Message.Level minLevel : new Message.Level[]{null, Message.Level.ERROR, Message.Level.WARNING, Message.Level.INFO}) {
+			for (int maxDepth = -1; maxDepth <= 3; maxDepth++) {
+				List<Message> expected = new ArrayList<Message>();
+				for (Message m : all) {
+					if ((minLevel == null || inferredLevel(m).compareTo(minLevel) <= 0)
+					    && (maxDepth < 0 || m.getDepth() <= maxDepth)) {
+						expected.add(m);
+					}
+				}
+				List<Message> actual = new ArrayList<Message>();
+				int from = Integer.MIN_VALUE;
+				List<Message> page;
+				do {
+					page = job.queryMessages(from, 7, minLevel, maxDepth);
+					actual.addAll(page);
+					if (!page.isEmpty()) {
+						from = page.get(page.size() - 1).sequence + 1;
+					}
+				} while (page.size() == 7);
+				assertEquals(expected, actual);
+				if (maxDepth < 0) {
+					assertEquals(expected.size(), job.getMessageCount(minLevel));
+				}
+			}
+		}
+	}
+
+	/* Message.getInferredLevel() without the cached values */
+	private static Message.Level inferredLevel(Message message) {
+		Message.Level level = message.level;
+		for (Message m : message) {
+			Message.Level childLevel = inferredLevel(m);
+			if (childLevel.compareTo(level) < 0) {
+				level = childLevel;
+			}
+		}
+		return level;
+	}
 }
@@ -2,6 +2,8 @@ package org.daisy.pipeline.jobs.test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -9,7 +11,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.daisy.pipeline.client.Pipeline2Exception;
 import org.daisy.pipeline.client.Pipeline2Logger;
@@ -276,4 +282,28 @@ public class JobStorageTest {
 		}
 	}
 
+	@Test
+	public void testWriteContextZip() throws IOException {
+		Job job = new Job();
+		job.setId("zipJob");
+		JobStorage jobStorage = new JobStorage(job, jobStorageDir, null);
+		jobStorage.addContextFile(new File(jobStorageDir, "job1/context/hauy_valid.xml"), "hauy_valid.xml");
+		jobStorage.addContextFile(new File(jobStorageDir, "job1/context/dtbook.2005.basic.css"), "css/style.css");
+		jobStorage.save(false);
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		jobStorage.writeContextZip(os);
+		List<String> entries = new ArrayList<String>();
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(os.toByteArray()))) {
+			for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+				entries.add(entry.getName());
+			}
+		}
+		Collections.sort(entries);
+		assertEquals(2, entries.size());
+		assertEquals("css/style.css", entries.get(0));
+		assertEquals("hauy_valid.xml", entries.get(1));
+		assertEquals(entries, org.daisy.pipeline.client.utils.Files.listZipFiles(jobStorage.makeContextZip()).stream().filter(e -> !e.endsWith("/")).sorted().collect(Collectors.toList()));
+	}
+
 }
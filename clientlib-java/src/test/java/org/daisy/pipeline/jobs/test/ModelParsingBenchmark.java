@@ -0,0 +1,119 @@
+package org.daisy.pipeline.jobs.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.daisy.pipeline.client.Pipeline2Exception;
+import org.daisy.pipeline.client.models.Job;
+import org.daisy.pipeline.client.models.Message;
+import org.daisy.pipeline.client.utils.XML;
+import org.daisy.pipeline.client.utils.XPath;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Compares reading the recorded jobs in src/test/resources/responses/jobs with the job model
+ * to reading the same attributes with one XPath evaluation per attribute, which is how the
+ * models used to be parsed.
+ *
+ * Not run as part of the build. Run with: mvn test -Dtest=ModelParsingBenchmark
+ */
+public class ModelParsingBenchmark {
+
+	private static final int ROUNDS = 20;
+
+	@Test
+	public void benchmark() throws Exception {
+		List<Document> documents = loadJobs(new File("src/test/resources/responses/jobs"));
+
+		// warm up
+		for (int i = 0; i < 5; i++) {
+			readWithXPath(documents);
+			readWithModel(documents);
+		}
+
+		long xpath = time(() -> readWithXPath(documents));
+		long model = time(() -> readWithModel(documents));
+		System.out.println(String.format("Read %d jobs %d times: XPath per attribute %d ms, DOM binding %d ms (%.1fx)",
+		                                 documents.size(), ROUNDS, xpath / 1000000, model / 1000000, (double)xpath / model));
+	}
+
+	private interface Reader {
+		int read() throws Pipeline2Exception;
+	}
+
+	private static long time(Reader reader) throws Pipeline2Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			reader.read();
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static List<Document> loadJobs(File directory) throws IOException {
+		List<Document> documents = new ArrayList<Document>();
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory()) {
+				documents.addAll(loadJobs(file)); // polling sequences like job7/1.xml, job7/2.xml, ...
+			} else if (file.getName().matches(directory.getName().equals("jobs") ? ".*\\.xml" : "\\d+\\.xml")) {
+				try (InputStream in = new FileInputStream(file)) {
+					documents.add(XML.getXml(in));
+				}
+			}
+		}
+		return documents;
+	}
+
+	private static int readWithModel(List<Document> documents) throws Pipeline2Exception {
+		int messages = 0;
+		for (Document document : documents) {
+			Job job = new Job(document);
+			job.getStatus();
+			job.getResults();
+			List<Message> jobMessages = job.getMessages();
+			messages += jobMessages == null ? 0 : jobMessages.size();
+		}
+		return messages;
+	}
+
+	private static int readWithXPath(List<Document> documents) throws Pipeline2Exception {
+		int messages = 0;
+		for (Document document : documents) {
+			Node job = XPath.selectNode("/*", document, XPath.dp2ns);
+			for (String attribute : new String[]{"@id", "@href", "@status", "@priority", "@queue-position",
+			                                     "d:nicename", "d:batchId", "d:log/@href", "d:messages/@progress"}) {
+				XPath.selectText(attribute, job, XPath.dp2ns);
+			}
+			for (Node result : XPath.selectNodes("d:results | d:results//d:result", job, XPath.dp2ns)) {
+				for (String attribute : new String[]{"@href", "@file", "@mime-type", "@name", "@from", "@nicename", "@size"}) {
+					XPath.selectText(attribute, result, XPath.dp2ns);
+				}
+			}
+			Node messagesNode = XPath.selectNode("d:messages", job, XPath.dp2ns);
+			if (messagesNode != null) {
+				messages += readMessagesWithXPath(messagesNode);
+			}
+		}
+		return messages;
+	}
+
+	private static int readMessagesWithXPath(Node parent) throws Pipeline2Exception {
+		int messages = 0;
+		for (Node message : XPath.selectNodes("d:message", parent, XPath.dp2ns)) {
+			for (String attribute : new String[]{"@content", "@level", "@sequence", "@line", "@column",
+			                                     "@timeStamp", "@file", "@portion", "@progress"}) {
+				XPath.selectText(attribute, message, XPath.dp2ns);
+			}
+			messages += 1 + readMessagesWithXPath(message);
+		}
+		return messages;
+	}
+}
@@ -2,13 +2,18 @@ package org.daisy.pipeline.jobs.test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -27,21 +32,29 @@ import org.daisy.pipeline.client.models.Alive;
 import org.daisy.pipeline.client.models.Argument;
 import org.daisy.pipeline.client.models.Job;
 import org.daisy.pipeline.client.models.Argument.Kind;
+import org.daisy.pipeline.client.models.CollapsedMessage;
 import org.daisy.pipeline.client.models.DataType;
 import org.daisy.pipeline.client.models.Job.Priority;
 import org.daisy.pipeline.client.models.Job.Status;
+import org.daisy.pipeline.client.models.JobQueue;
+import org.daisy.pipeline.client.models.JobSizes;
 import org.daisy.pipeline.client.models.Message;
 import org.daisy.pipeline.client.models.Message.Level;
 import org.daisy.pipeline.client.models.Result;
 import org.daisy.pipeline.client.models.Script;
+import org.daisy.pipeline.client.models.StaxParser;
+import org.daisy.pipeline.client.models.StaxWriter;
 import org.daisy.pipeline.client.models.datatypes.EnumType;
 import org.daisy.pipeline.client.models.datatypes.RegexType;
 import org.daisy.pipeline.client.utils.NamespaceContextMap;
 import org.daisy.pipeline.client.utils.XML;
+import org.daisy.pipeline.client.utils.XPathCache;
 import org.junit.Assert;
 import org.junit.Test;
 import static org.hamcrest.CoreMatchers.*;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 public class ParsingTest {
@@ -105,6 +118,137 @@ public class ParsingTest {
 		}
 	}
 
+	@Test
+	public void testParseQueue() {
+		JobQueue queue = new JobQueue(loadResourceXml("responses/queue.xml"));
+		assertEquals("http://localhost:8181/ws/queue", queue.href);
+		assertEquals(3, queue.queue.size());
+	}
+
+	@Test
+	public void testStaxParseQueue() throws Exception {
+		JobQueue dom = new JobQueue(loadResourceXml("responses/queue.xml"));
+		JobQueue stax = StaxParser.parseQueue(new FileInputStream(new File(resources, "responses/queue.xml")));
+		assertEquals(dom.href, stax.href);
+		assertEquals(dom.queue.size(), stax.queue.size());
+	}
+
+	@Test
+	public void testParseSizes() throws Exception {
+		String xml = "<jobSizes xmlns=\"http://www.daisy.org/ns/pipeline/data\" href=\"http://localhost:8181/ws/admin/sizes\" total=\"231558\">"
+		           + "<jobSize context=\"0\" id=\"job1\" log=\"53404\" output=\"178154\"/>"
+		           + "<jobSize context=\"0\" id=\"job2\" log=\"0\" output=\"0\"/>"
+		           + "</jobSizes>";
+		for (JobSizes sizes : Arrays.asList(new JobSizes(XML.getXml(xml)),
+		                                    StaxParser.parseSizes(new ByteArrayInputStream(xml.getBytes("UTF-8"))))) {
+			assertEquals("http://localhost:8181/ws/admin/sizes", sizes.href);
+			assertEquals(Long.valueOf(231558), sizes.total);
+			assertEquals(2, sizes.jobSizes.size());
+			assertEquals(Long.valueOf(178154), sizes.jobSizes.get("job1").output);
+		}
+	}
+
+	@Test
+	public void testCollapsedMessages() throws Exception {
+		File file = new File(resources, "responses/jobs/job7/62.xml");
+		Job dom = new Job(XML.getXml(new FileInputStream(file)));
+		Job stax = StaxParser.parseJob(new FileInputStream(file));
+		Job staxAccessed = StaxParser.parseJob(new FileInputStream(file));
+		staxAccessed.getMessages().get(5); // created from the store before collapsing
+		for (Job job : Arrays.asList(dom, stax, staxAccessed)) {
+			List<Message> messages = job.getMessages();
+			assertEquals(23, messages.size());
+			assertSame(messages.get(0).text, messages.get(22).text);
+
+			// 23 identical "display" property warnings
+			List<CollapsedMessage> collapsed = job.getCollapsedMessages();
+			assertEquals(1, collapsed.size());
+			assertSame(messages.get(0), collapsed.get(0).message);
+			assertEquals(23, collapsed.get(0).count);
+			assertEquals(1491, collapsed.get(0).firstSequence);
+			assertEquals(1513, collapsed.get(0).lastSequence);
+			assertEquals(0, job.getCollapsedMessages(2).size());
+		}
+
+		// only the two "Normalize mixed section and block content model for level1" messages are collapsed
+		Job job = new Job(loadResourceXml("responses/jobs/job6.xml"));
+		List<CollapsedMessage> collapsed = job.getCollapsedMessages();
+		assertEquals(job.getMessages().size() - 1, collapsed.size());
+		assertEquals(2, collapsed.get(23).count);
+		assertEquals(292, collapsed.get(23).firstSequence);
+		assertEquals(293, collapsed.get(23).lastSequence);
+	}
+
+	@Test
+	public void testStaxParseJobs() throws Exception {
+		List<File> files = new ArrayList<File>();
+		for (int i = 1; i <= 6; i++) {
+			files.add(new File(resources, "responses/jobs/job" + i + ".xml"));
+		}
+		for (int i = 1; new File(resources, "responses/jobs/job7/" + i + ".xml").exists(); i++) {
+			files.add(new File(resources, "responses/jobs/job7/" + i + ".xml"));
+		}
+		for (File file : files) {
+			Job dom = new Job(XML.getXml(new FileInputStream(file)));
+			Job stax = StaxParser.parseJob(new FileInputStream(file));
+			assertJobEquals(file.getPath(), dom, stax);
+			assertJobEquals(file.getPath(), dom, new Job(stax.toXml())); // serialized like before
+		}
+
+		List<Job> dom = Job.parseJobsXml(loadResourceXml("responses/jobs.xml"));
+		List<Job> stax = StaxParser.parseJobs(new FileInputStream(new File(resources, "responses/jobs.xml")));
+		assertEquals(dom.size(), stax.size());
+		for (int i = 0; i < dom.size(); i++) {
+			assertJobEquals("responses/jobs.xml", dom.get(i), stax.get(i));
+		}
+
+		// a list of the jobs above, parsed in parallel
+		StringBuilder jobs = new StringBuilder("<jobs xmlns=\"http://www.daisy.org/ns/pipeline/data\">");
+		for (File file : files) {
+			jobs.append(loadResource(file.getPath().substring(resources.getPath().length() + 1)).replaceFirst("^<\\?xml[^>]*>", ""));
+		}
+		jobs.append("</jobs>");
+		dom = Job.parseJobsXml(XML.getXml(jobs.toString()));
+		List<Job> parallel = StaxParser.parseJobs(new ByteArrayInputStream(jobs.toString().getBytes("UTF-8")), 1);
+		assertEquals(files.size(), parallel.size());
+		for (int i = 0; i < files.size(); i++) {
+			assertJobEquals(files.get(i).getPath(), dom.get(i), parallel.get(i));
+		}
+	}
+
+	private static void assertJobEquals(String message, Job expected, Job actual) {
+		assertEquals(message, expected.getId(), actual.getId());
+		assertEquals(message, expected.getHref(), actual.getHref());
+		assertEquals(message, expected.getStatus(), actual.getStatus());
+		assertEquals(message, expected.getNicename(), actual.getNicename());
+		assertEquals(message, expected.getProgress(), actual.getProgress());
+		assertEquals(message, expected.getScript() == null ? null : expected.getScript().getId(),
+		                      actual.getScript() == null ? null : actual.getScript().getId());
+		assertEquals(message, expected.getResults() == null ? null : expected.getResults().size(),
+		                      actual.getResults() == null ? null : actual.getResults().size());
+		List<Message> expectedMessages = expected.getMessages();
+		List<Message> actualMessages = actual.getMessages();
+		assertEquals(message, expectedMessages == null, actualMessages == null);
+		if (expectedMessages != null) {
+			assertEquals(message, expectedMessages.size(), actualMessages.size());
+			for (int i = 0; i < expectedMessages.size(); i++) {
+				Message e = expectedMessages.get(i);
+				Message a = actualMessages.get(i);
+				assertEquals(message, e.sequence, a.sequence);
+				assertEquals(message, e.parentSequence, a.parentSequence);
+				assertEquals(message, e.level, a.level);
+				assertEquals(message, e.text, a.text);
+				assertEquals(message, e.line, a.line);
+				assertEquals(message, e.column, a.column);
+				assertEquals(message, e.file, a.file);
+				assertEquals(message, e.getDepth(), a.getDepth());
+				assertEquals(message, e.getProgressInfo(), a.getProgressInfo());
+				assertEquals(message, e.getInferredLevel(), a.getInferredLevel()); // same children
+				assertSame(message, a, actualMessages.get(i));
+			}
+		}
+	}
+
 	@Test
 	public void testParseAndSerializeJobXml() {
 		try {
@@ -142,6 +286,53 @@ public class ParsingTest {
 		}
 	}
 	
+	@Test
+	public void testStaxWriteJob() throws Exception {
+		Job job = new Job(loadResourceXml("responses/jobs/job1.xml"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StaxWriter.writeJob(job, out);
+		responsesJobsJob1ParseTestHelper(new Job(XML.getXml(new ByteArrayInputStream(out.toByteArray()))));
+
+		// same XML as toXml(), also with messages, results, callbacks and arguments
+		for (String href : new String[]{"responses/jobs/job1.xml", "responses/jobs/job2.xml", "responses/jobRequest.xml"}) {
+			job = new Job(loadResourceXml(href));
+			job.getMessages();
+			job.getResults();
+			out = new ByteArrayOutputStream();
+			StaxWriter.writeJob(job, out);
+			Document expected = XML.getXml(XML.toString(job.toXml()));
+			Document actual = XML.getXml(new ByteArrayInputStream(out.toByteArray()));
+			normalize(expected);
+			normalize(actual);
+			assertTrue(href, expected.getDocumentElement().isEqualNode(actual.getDocumentElement()));
+		}
+
+		Message message = new Job(loadResourceXml("responses/jobs/job2.xml")).getMessages().get(0);
+		out = new ByteArrayOutputStream();
+		StaxWriter.writeMessage(message, out);
+		Document expected = XML.getXml(XML.toString(message.toXml()));
+		Document actual = XML.getXml(new ByteArrayInputStream(out.toByteArray()));
+		normalize(expected);
+		normalize(actual);
+		assertTrue(expected.getDocumentElement().isEqualNode(actual.getDocumentElement()));
+	}
+
+	/* Remove indentation and namespace declarations, which do not matter when comparing documents */
+	private static void normalize(Node node) {
+		if (node instanceof Element) {
+			((Element)node).removeAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns");
+		}
+		for (Node child = node.getFirstChild(); child != null;) {
+			Node next = child.getNextSibling();
+			if (child.getNodeType() == Node.TEXT_NODE && child.getNodeValue().trim().isEmpty() && child.getParentNode().getChildNodes().getLength() > 1) {
+				node.removeChild(child);
+			} else {
+				normalize(child);
+			}
+			child = next;
+		}
+	}
+
 	private void responsesJobsJob1ParseTestHelper(Job job) throws Pipeline2Exception {
 		assertNotNull(job);
 		assertEquals("job1", job.getId());
@@ -421,6 +612,40 @@ public class ParsingTest {
 		}
 	}
 	
+	@Test
+	public void testResultIndex() throws Exception {
+		Job job = new Job(loadResourceXml("responses/jobs/job2.xml"));
+		List<Result> results = job.getResults("output-dir");
+		Result mimetype = results.get(25);
+
+		assertSame(job.getResult(), job.getResultFromHref(""));
+		assertSame(job.getResult("output-dir"), job.getResultFromHref("option/output-dir"));
+		assertSame(mimetype, job.getResultFromHref(mimetype.href));
+		assertSame(mimetype, job.getResultFromHref("option/output-dir/idx/output-dir/epub/mimetype"));
+		assertSame(mimetype, job.getResult("output-dir", "epub/mimetype"));
+		assertSame(mimetype, job.getResult("output-dir", mimetype.href));
+		assertNull(job.getResultFromHref("does/not/exist"));
+		assertNull(job.getResult("output-dir", "does/not/exist"));
+		assertNull(job.getResult("does-not-exist", "epub/mimetype"));
+
+		SortedMap<String,Result> epub = job.getResultsByRelativeHref("option/output-dir/idx/output-dir/epub/");
+		assertSame(mimetype, epub.get("option/output-dir/idx/output-dir/epub/mimetype"));
+		for (String relativeHref : epub.keySet()) {
+			assertTrue(relativeHref.startsWith("option/output-dir/idx/output-dir/epub/"));
+		}
+		assertEquals(results.size() + 2, job.getResultsByRelativeHref("").size()); // all files, the option and all results
+		assertTrue(job.getResultsByRelativeHref("does/not/exist/").isEmpty());
+
+		// looking up results without parsing all of them does not compile an XPath expression per href
+		int cacheSize = org.daisy.pipeline.client.utils.XPath.getCache().size();
+		for (Result result : results) {
+			Result found = Job.getResultFromHref(loadResourceXml("responses/jobs/job2.xml"), result.href);
+			assertEquals(result.href, found.href);
+			assertEquals(result.size, found.size);
+		}
+		assertEquals(cacheSize, org.daisy.pipeline.client.utils.XPath.getCache().size());
+	}
+
 	@Test
 	public void testParseDataTypes() {
 			Map<String, String> dataTypes = DataType.getDataTypes(loadResourceXml("responses/datatypes.xml"));
@@ -511,6 +736,91 @@ public class ParsingTest {
 		}
 	}
 
+	@Test
+	public void testXPathCache() throws Exception {
+		final Document xml = XML.getXml("<foo:data xmlns:foo='http://foo' xmlns:bar='http://bar'><bar:foo bar=\"hello\" /></foo:data>");
+		final Map<String, String> foo = new HashMap<String, String>();
+		foo.put("x", "http://foo");
+		final Map<String, String> bar = new HashMap<String, String>();
+		bar.put("x", "http://bar");
+
+		// the same expression means different things in different namespace contexts, also when used concurrently
+		List<Thread> threads = new ArrayList<Thread>();
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		for (int t = 0; t < 8; t++) {
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < 1000; i++) {
+						assertNotNull(org.daisy.pipeline.client.utils.XPath.selectNode("//x:data", xml, foo));
+						assertNull(org.daisy.pipeline.client.utils.XPath.selectNode("//x:data", xml, bar));
+						assertEquals("hello", org.daisy.pipeline.client.utils.XPath.selectText("//x:foo/@bar", xml, bar));
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(Collections.emptyList(), errors);
+
+		// bounded, least recently used expressions are evicted first
+		XPathCache cache = new XPathCache(2);
+		XPathExpression a = cache.get("/x:a", foo);
+		cache.get("/x:b", foo);
+		assertSame(a, cache.get("/x:a", foo));
+		cache.get("/x:c", foo);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertSame(a, cache.get("/x:a", foo));
+		assertEquals(3, cache.getMissCount());
+		assertEquals(2, cache.getHitCount());
+		assertNotSame(a, cache.get("/x:a", bar));
+	}
+
+	@Test
+	public void testXmlReuse() throws Exception {
+		// the pooled parser and serializer are reset between uses, also after a failure
+		try {
+			XML.getXml("<not-well-formed>");
+			fail("the XML should not be parsed");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		Document xml = XML.getXml("<d:data xmlns:d='http://www.daisy.org/ns/pipeline/data'><d:item value='1'/></d:data>");
+		assertEquals("http://www.daisy.org/ns/pipeline/data", xml.getDocumentElement().getNamespaceURI());
+		assertFalse(XML.toString(xml.getDocumentElement(), XML.INDENT_NO_DECLARATION).startsWith("<?xml"));
+		assertTrue(XML.toString(xml).startsWith("<?xml"));
+
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int id = t;
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < 200; i++) {
+						Document doc = XML.getXml("<item id='" + id + "-" + i + "'/>");
+						assertEquals(id + "-" + i, doc.getDocumentElement().getAttribute("id"));
+						assertTrue(XML.toString(doc, XML.INDENT_NO_DECLARATION).contains(id + "-" + i));
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(Collections.emptyList(), errors);
+	}
+
 	@Test
 	public void testXPathContext() {
 		Map<String, String> mappings = new HashMap<String, String>();